@@ -0,0 +1,21 @@
+package chat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Entry point of benchmarks.jar: runs JMH with the GC profiler switched on,
+ * so every result also reports allocation rate (gc.alloc.rate.norm is bytes
+ * per operation). Any JMH option can follow, e.g. a benchmark name filter:
+ *
+ *   java -jar benchmarks/target/benchmarks.jar Broadcast -p members=1000
+ */
+public class BenchmarkMain {
+
+    public static void main(String[] args) throws Exception {
+        List<String> jmhArgs = new ArrayList<>(Arrays.asList("-prof", "gc"));
+        jmhArgs.addAll(Arrays.asList(args));
+        org.openjdk.jmh.Main.main(jmhArgs.toArray(new String[0]));
+    }
+}
@@ -0,0 +1,39 @@
+package chat;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/** ChatRoom.broadcast() fan-out, including the history append, for rooms of different sizes. */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BroadcastBenchmark {
+
+    @Param({"10", "1000", "10000"})
+    public int members;
+
+    private ChatRoom room;
+
+    @Setup
+    public void setup() {
+        room = new ChatRoom("bench");
+        for (int i = 0; i < members; i++) {
+            room.addUser("m" + i, new StubClientHandler("m" + i));
+        }
+    }
+
+    @Benchmark
+    public void broadcast() throws IOException {
+        room.broadcast(new Message("m0", null, "load message", false));
+    }
+
+    @Benchmark
+    public void sendPrivate() throws IOException {
+        room.sendPrivate("m0", "m1", "psst");
+    }
+}
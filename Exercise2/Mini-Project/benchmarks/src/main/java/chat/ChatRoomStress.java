@@ -0,0 +1,101 @@
+package chat;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Stress harness for ChatRoom: hammers one room with a mix of MSG broadcasts,
+ * history reads, PMs and join/leave churn from a growing number of threads
+ * and prints operations per second for each thread count. With no room-wide
+ * lock the throughput should grow with the number of cores.
+ *
+ * Members are detached ClientHandlers whose outbound queues drop the oldest
+ * frame when full, so the numbers measure room work, not socket I/O.
+ *
+ * Usage:
+ *   java -cp benchmarks/target/benchmarks.jar chat.ChatRoomStress [--members=1000] [--seconds=5] [--max-threads=<2 x cores>]
+ */
+public class ChatRoomStress {
+
+    public static void main(String[] args) throws InterruptedException {
+        List<String> withDefaults = new ArrayList<>();
+        withDefaults.add("--outbound-capacity=64");
+        withDefaults.add("--outbound-policy=drop-oldest");
+        withDefaults.addAll(List.of(args));
+        ServerConfig config = ServerConfig.parse(withDefaults.toArray(new String[0]));
+        ServerConfig.install(config);
+        Logger.getLogger("").setLevel(Level.WARNING);
+
+        int members = config.getInt("members", 1000);
+        int seconds = config.getInt("seconds", 5);
+        int cores = Runtime.getRuntime().availableProcessors();
+        int maxThreads = config.getInt("max-threads", cores * 2);
+
+        System.out.printf("cores=%d members=%d seconds=%d%n", cores, members, seconds);
+        System.out.printf("%8s %14s %10s%n", "threads", "ops/sec", "speedup");
+        double base = 0;
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            double opsPerSec = run(threads, members, seconds);
+            if (base == 0) base = opsPerSec;
+            System.out.printf("%8d %14.0f %9.2fx%n", threads, opsPerSec, opsPerSec / base);
+        }
+    }
+
+    private static double run(int threads, int members, int seconds) throws InterruptedException {
+        ChatRoom room = new ChatRoom("stress");
+        for (int i = 0; i < members; i++) {
+            room.addUser("m" + i, new ClientHandler(null, "stress-m" + i));
+        }
+
+        LongAdder ops = new LongAdder();
+        CountDownLatch start = new CountDownLatch(1);
+        long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            String self = "w" + t;
+            ClientHandler handler = new ClientHandler(null, "stress-" + self);
+            Thread worker = new Thread(() -> {
+                ThreadLocalRandom rnd = ThreadLocalRandom.current();
+                boolean joined = room.addUser(self, handler);
+                try { start.await(); } catch (InterruptedException e) { return; }
+                try {
+                    while (System.nanoTime() < deadline) {
+                        int op = rnd.nextInt(100);
+                        if (op < 80) {
+                            room.broadcast(new Message(self, null, "load message", false));
+                        } else if (op < 90) {
+                            int n = 0;
+                            for (Message ignored : room.getHistory()) {
+                                if (++n == 20) break;
+                            }
+                        } else if (op < 95) {
+                            room.sendPrivate(self, "m" + rnd.nextInt(members), "psst");
+                        } else if (joined) {
+                            room.removeUser(self);
+                            joined = false;
+                        } else {
+                            joined = room.addUser(self, handler);
+                        }
+                        ops.increment();
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);   // no MessageLog here
+                }
+            }, "stress-" + t);
+            workers.add(worker);
+            worker.start();
+        }
+        long t0 = System.nanoTime();
+        start.countDown();
+        for (Thread w : workers) w.join();
+        double elapsed = (System.nanoTime() - t0) / 1e9;
+        return ops.sum() / elapsed;
+    }
+}
@@ -0,0 +1,65 @@
+package chat;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Text command parsing: CommandParser on the raw bytes versus the former
+ * decode + split(" ", 3) + toUpperCase + alias chain, on a mix of lines.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CommandParserBenchmark {
+
+    private static final String[] LINES = {
+        "MSG hello everyone, how is it going?",
+        "/pm bob see you at five",
+        "/jn lobby alice",
+        "HISTORY BEFORE 120 20",
+        "/u",
+    };
+
+    private final CommandParser parser = new CommandParser();
+    private byte[][] lines;
+
+    @Setup
+    public void setup() {
+        lines = new byte[LINES.length][];
+        for (int i = 0; i < LINES.length; i++) lines[i] = LINES[i].getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(5)
+    public void commandParser(Blackhole bh) {
+        for (byte[] line : lines) {
+            parser.parse(line, 0, line.length);
+            bh.consume(parser.command());
+            bh.consume(parser.parts());
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(5)
+    public void splitAndUpperCase(Blackhole bh) {
+        for (byte[] bytes : lines) {
+            String line = new String(bytes, StandardCharsets.UTF_8).trim();
+            String[] parts = line.split(" ", 3);
+            String cmd = parts[0].toUpperCase();
+            if (cmd.equalsIgnoreCase("/JN")) cmd = "JOIN";
+            else if (cmd.equalsIgnoreCase("/PM")) cmd = "PM";
+            else if (cmd.equalsIgnoreCase("/U")) cmd = "USERS";
+            else if (cmd.equalsIgnoreCase("/H")) cmd = "HISTORY";
+            else if (cmd.equalsIgnoreCase("/PMH")) cmd = "PMH";
+            else if (cmd.equalsIgnoreCase("/Q")) cmd = "QUIT";
+            bh.consume(cmd);
+            bh.consume(parts);
+        }
+    }
+}
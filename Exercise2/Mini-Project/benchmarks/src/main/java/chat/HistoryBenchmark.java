@@ -0,0 +1,48 @@
+package chat;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Cost of reading room history: taking a snapshot, walking all of it (what
+ * a full HISTORY used to copy), and the JOIN-sized latest page.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class HistoryBenchmark {
+
+    @Param({"100", "10000"})
+    public int size;
+
+    private ChatRoom room;
+
+    @Setup
+    public void setup() throws IOException {
+        room = new ChatRoom("bench");
+        for (int i = 0; i < size; i++) {
+            room.broadcast(new Message("u" + (i % 10), null, "message " + i, false));
+        }
+    }
+
+    @Benchmark
+    public MessageHistory.Snapshot getHistory() {
+        return room.getHistory();
+    }
+
+    @Benchmark
+    public void iterateAll(Blackhole bh) {
+        for (Message m : room.getHistory()) bh.consume(m);
+    }
+
+    @Benchmark
+    public void latestPage(Blackhole bh) {
+        for (Message m : room.getHistory().latest(20)) bh.consume(m);
+    }
+}
@@ -0,0 +1,48 @@
+package chat;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Cost of turning a Message into what goes on the wire: the display string,
+ * its UTF-8 text frame and the binary frame. Each call builds from scratch
+ * (the per-message caches are bypassed by a fresh Message per invocation).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MessageBenchmark {
+
+    private Message publicMsg;
+    private Message privateMsg;
+
+    @Setup
+    public void setup() {
+        publicMsg = new Message("alice", null, "hello everyone, how is it going?", false).withId(12345);
+        privateMsg = new Message("alice", "bob", "see you at five", true).withId(42);
+    }
+
+    @Benchmark
+    public String toDisplayString() {
+        return publicMsg.toDisplayString();
+    }
+
+    @Benchmark
+    public String toDisplayStringPrivate() {
+        return privateMsg.toDisplayString();
+    }
+
+    @Benchmark
+    public byte[] textFrame() {
+        return publicMsg.withId(12345).frame();
+    }
+
+    @Benchmark
+    public byte[] binaryFrame() {
+        return publicMsg.withId(12345).binaryFrame();
+    }
+}
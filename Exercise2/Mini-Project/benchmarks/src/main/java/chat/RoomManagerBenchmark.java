@@ -0,0 +1,33 @@
+package chat;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/** ChatRoomManager.getOrCreateRoom() from several threads over a fixed set of room ids. */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+@State(Scope.Benchmark)
+public class RoomManagerBenchmark {
+
+    @Param({"16", "4096"})
+    public int rooms;
+
+    private String[] ids;
+
+    @Setup
+    public void setup() {
+        ids = new String[rooms];
+        for (int i = 0; i < rooms; i++) ids[i] = "room-" + i;
+    }
+
+    @Benchmark
+    public ChatRoom getOrCreateRoom() {
+        return ChatRoomManager.getInstance().getOrCreateRoom(ids[ThreadLocalRandom.current().nextInt(ids.length)]);
+    }
+}
@@ -0,0 +1,23 @@
+package chat;
+
+/**
+ * ClientHandler without a connection that only counts what it is handed,
+ * so room benchmarks measure fan-out rather than queueing or socket I/O.
+ */
+final class StubClientHandler extends ClientHandler {
+    long received;
+
+    StubClientHandler(String name) {
+        super(null, "stub-" + name);
+    }
+
+    @Override
+    public void notifyMessage(ChatRoom room, Message msg) {
+        received++;
+    }
+
+    @Override
+    void deliver(ChatRoom room, byte[] lineFrame) {
+        received++;
+    }
+}
@@ -0,0 +1,554 @@
+package chat;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Non-blocking chat client for bots and bridges, speaking the same text
+ * protocol as ChatClient (see ClientProtocol) over one NIO channel.
+ *
+ * Clients share a few daemon EventLoops, so one JVM can hold thousands of
+ * sessions on a handful of threads. Commands are pipelined: they are
+ * written as soon as they are issued, and the replies of JOIN, USERS and
+ * HISTORY complete their futures in the order the commands were sent. Any
+ * ERROR that arrives while a reply is awaited fails that reply, except the
+ * ones only a fire-and-forget send can cause ("ERROR rate limited",
+ * "ERROR Usage: PM ...", "ERROR message not saved"); those are published
+ * like every other line (room messages, [SYSTEM]/[PRESENCE] lines) by
+ * messages(). Sending before join() throws rather than drawing an ERROR
+ * that an awaited reply would take for its own.
+ *
+ * messages() honours backpressure: lines the subscriber has not requested
+ * are buffered, and once INBOX_CAPACITY of them are waiting the client
+ * stops reading from the socket until the subscriber catches up, so a slow
+ * consumer slows the server's writes to it instead of filling memory.
+ * Without a subscriber only the latest UNSUBSCRIBED_LINES are kept and
+ * reading never stops, so a bot that only uses the futures keeps getting
+ * replies and answering PINGs.
+ *
+ * The server's PINGs are answered, and the resume token from the SESSION
+ * line is kept (getSessionToken()).
+ */
+public final class AsyncChatClient implements AutoCloseable {
+    private static final Logger logger = Logger.getLogger(AsyncChatClient.class.getName());
+
+    static final int INBOX_CAPACITY = 1024;
+    static final int UNSUBSCRIBED_LINES = 128;
+    private static final int READ_BUFFER_SIZE = 8 * 1024;
+    private static final String HISTORY_START = "=== History start ===";
+    private static final String HISTORY_END = "=== History end ===";
+    private static final long CLOSE_TIMEOUT_MILLIS = 5_000;
+    /** ERRORs only MSG and PM cause; they never belong to an awaited reply. */
+    private static final String[] SEND_ERRORS = {"ERROR rate limited", "ERROR Usage: PM", "ERROR message not saved"};
+
+    /** The shared I/O loops, started on first use. */
+    private static final class Loops {
+        static final EventLoop[] LOOPS = start();
+        static final AtomicInteger next = new AtomicInteger();
+
+        private static EventLoop[] start() {
+            EventLoop[] loops = new EventLoop[Math.max(1, Runtime.getRuntime().availableProcessors() / 2)];
+            for (int i = 0; i < loops.length; i++) {
+                try {
+                    loops[i] = new EventLoop("chat-client-io-" + (i + 1), true);
+                } catch (IOException e) {
+                    throw new IllegalStateException("Cannot open selector", e);
+                }
+                loops[i].start();
+            }
+            return loops;
+        }
+
+        static EventLoop next() {
+            return LOOPS[Math.floorMod(next.getAndIncrement(), LOOPS.length)];
+        }
+    }
+
+    // reads only happen on loop threads, and the decoder keeps what it has not consumed
+    private static final ThreadLocal<ByteBuffer> readBuffer =
+            ThreadLocal.withInitial(() -> ByteBuffer.allocate(READ_BUFFER_SIZE));
+
+    private final EventLoop loop;
+    private final SocketChannel channel;
+    private final Connection connection = new Connection();
+    private final InboundDecoder decoder = new InboundDecoder(connection);
+    private final Inbox inbox;
+    private final Queue<ByteBuffer> outbound = new ConcurrentLinkedQueue<>();
+    private final Queue<Reply> replies = new ConcurrentLinkedQueue<>();   // awaited replies, in command order
+    private final CompletableFuture<AsyncChatClient> connected = new CompletableFuture<>();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private final AtomicBoolean closing = new AtomicBoolean();   // QUIT queued, nothing after it
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private volatile boolean joinSent;
+    private SelectionKey key;   // loop thread only
+    private boolean outputShut; // loop thread only
+    private volatile String sessionToken;
+
+    private AsyncChatClient(EventLoop loop, SocketChannel channel, Executor executor) {
+        this.loop = loop;
+        this.channel = channel;
+        this.inbox = new Inbox(executor);
+    }
+
+    /** Connects to a chat server; messages() delivers on the common ForkJoinPool. */
+    public static CompletableFuture<AsyncChatClient> connect(String host, int port) {
+        return connect(host, port, ForkJoinPool.commonPool());
+    }
+
+    /** Connects to a chat server; messages() calls its subscriber on executor. */
+    public static CompletableFuture<AsyncChatClient> connect(String host, int port, Executor executor) {
+        SocketChannel channel;
+        try {
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        AsyncChatClient client = new AsyncChatClient(Loops.next(), channel, executor);
+        client.open(new InetSocketAddress(host, port));
+        return client.connected;
+    }
+
+    private void open(InetSocketAddress address) {
+        loop.execute(() -> {
+            try {
+                boolean done = channel.connect(address);
+                key = loop.register(channel, done ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT, connection);
+                if (done) connected.complete(this);
+            } catch (IOException e) {
+                connected.completeExceptionally(e);
+                connection.close();
+            }
+        });
+    }
+
+    /**
+     * Joins (or creates) a room, leaving the current one. Completes with the
+     * replayed history lines, or fails if the name is taken.
+     */
+    public CompletableFuture<List<String>> join(String roomId, String username) {
+        joinSent = true;
+        return request(ClientProtocol.join(roomId, username), new JoinReply());
+    }
+
+    /** Members of the current room. */
+    public CompletableFuture<List<String>> users() {
+        return request(ClientProtocol.USERS, new UsersReply());
+    }
+
+    /** The latest page of room history. */
+    public CompletableFuture<List<String>> history() {
+        return request(ClientProtocol.HISTORY, new HistoryReply());
+    }
+
+    /** The last n messages of room history (at most one page). */
+    public CompletableFuture<List<String>> history(int n) {
+        return request(ClientProtocol.HISTORY + " " + n, new HistoryReply());
+    }
+
+    /**
+     * Posts to the current room; the message comes back through messages() like everyone else's.
+     * @throws IllegalStateException if join() was never called
+     */
+    public void send(String text) {
+        requireJoin();
+        write(ClientProtocol.msg(text));
+    }
+
+    /** @throws IllegalStateException if join() was never called */
+    public void sendPrivate(String toUser, String text) {
+        requireJoin();
+        write(ClientProtocol.pm(toUser, text));
+    }
+
+    private void requireJoin() {
+        if (!joinSent) throw new IllegalStateException("join a room first");
+    }
+
+    /** Room messages and every other line that is not a reply; one subscriber at a time. */
+    public Flow.Publisher<String> messages() {
+        return inbox;
+    }
+
+    /** Resume token from the last JOIN, or null if the server issued none. */
+    public String getSessionToken() {
+        return sessionToken;
+    }
+
+    /**
+     * Sends QUIT and closes the connection once it is written and the server
+     * has hung up (or after CLOSE_TIMEOUT_MILLIS); pending replies then fail
+     * and messages() completes. Nothing issued after close() is sent.
+     */
+    @Override
+    public void close() {
+        synchronized (replies) {
+            if (closed.get() || !closing.compareAndSet(false, true)) return;
+            outbound.add(encode(ClientProtocol.QUIT));
+        }
+        if (flushScheduled.compareAndSet(false, true)) loop.execute(connection::flush);
+        CompletableFuture.delayedExecutor(CLOSE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)
+                .execute(() -> loop.execute(connection::close));
+    }
+
+    private CompletableFuture<List<String>> request(String command, Reply reply) {
+        // the reply queue and the socket must see commands in the same order
+        synchronized (replies) {
+            if (closing.get() || closed.get()) {
+                reply.future.completeExceptionally(new IOException("connection closed"));
+                return reply.future;
+            }
+            replies.add(reply);
+            write(command);
+        }
+        return reply.future;
+    }
+
+    private void write(String line) {
+        synchronized (replies) {
+            if (closing.get()) return;
+            outbound.add(encode(line));
+        }
+        if (flushScheduled.compareAndSet(false, true)) loop.execute(connection::flush);
+    }
+
+    private static ByteBuffer encode(String line) {
+        return ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    /** Socket side of the client; runs on the loop thread. */
+    private final class Connection implements EventLoop.Handler, InboundDecoder.Sink {
+        @Override
+        public void onConnectable() throws IOException {
+            if (!channel.finishConnect()) return;
+            key.interestOps(SelectionKey.OP_READ);
+            connected.complete(AsyncChatClient.this);
+            flush();
+        }
+
+        @Override
+        public void onReadable() throws IOException {
+            ByteBuffer buf = readBuffer.get();
+            buf.clear();
+            if (channel.read(buf) < 0) {
+                close();
+                return;
+            }
+            buf.flip();
+            decoder.feed(buf);
+        }
+
+        @Override
+        public void onWritable() {
+            flush();
+        }
+
+        void flush() {
+            flushScheduled.set(false);
+            if (closed.get() || key == null || !channel.isConnected()) return;
+            try {
+                ByteBuffer head;
+                while ((head = outbound.peek()) != null) {
+                    channel.write(head);
+                    if (head.hasRemaining()) {
+                        // socket buffer full: resume when the selector reports writable
+                        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                    outbound.poll();
+                }
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                if (closing.get() && !outputShut) {
+                    // QUIT is out: the FIN follows it, and reading on until the server
+                    // hangs up keeps unread input from turning the close into a reset
+                    outputShut = true;
+                    channel.shutdownOutput();
+                }
+            } catch (IOException e) {
+                logger.log(Level.FINE, "Write failed", e);
+                close();
+            }
+        }
+
+        void pauseReading(boolean paused) {
+            if (key == null || !key.isValid()) return;
+            int ops = key.interestOps();
+            key.interestOps(paused ? ops & ~SelectionKey.OP_READ : ops | SelectionKey.OP_READ);
+        }
+
+        @Override
+        public void onLine(byte[] buf, int start, int end) {
+            String line = new String(buf, start, end - start, StandardCharsets.UTF_8);
+            if (line.startsWith("PING ")) {
+                write("PONG " + line.substring(5));
+                return;
+            }
+            if (line.startsWith("SESSION ")) {
+                String[] parts = line.split(" ");
+                sessionToken = parts.length > 1 ? parts[1] : null;
+                return;
+            }
+            Reply head = replies.peek();
+            if (head != null && !isSendError(line) && head.offer(line)) {
+                if (head.future.isDone()) replies.poll();
+                return;
+            }
+            inbox.publish(line);
+        }
+
+        private boolean isSendError(String line) {
+            for (String e : SEND_ERRORS) {
+                if (line.startsWith(e)) return true;
+            }
+            return false;
+        }
+
+        @Override
+        public void onFrame(byte opcode, ByteBuffer payload) {
+            // text protocol only
+        }
+
+        @Override
+        public void onOversized() {
+            logger.warning("Line from server too long, closing");
+            close();
+        }
+
+        @Override
+        public void close() {
+            if (!closed.compareAndSet(false, true)) return;
+            if (key != null) key.cancel();
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+            IOException gone = new IOException("connection closed");
+            connected.completeExceptionally(gone);
+            synchronized (replies) {
+                Reply r;
+                while ((r = replies.poll()) != null) r.future.completeExceptionally(gone);
+            }
+            inbox.complete();
+        }
+    }
+
+    /**
+     * An awaited reply: consumes the lines that belong to it and completes its
+     * future. An ERROR (other than a send's, which never gets here) fails it.
+     */
+    private abstract static class Reply {
+        final CompletableFuture<List<String>> future = new CompletableFuture<>();
+
+        /** True if line is part of this reply. */
+        abstract boolean offer(String line);
+
+        /** True (and the future failed) if line is an ERROR. */
+        boolean failed(String line) {
+            if (!line.startsWith("ERROR ")) return false;
+            future.completeExceptionally(new IllegalStateException(line.substring(6)));
+            return true;
+        }
+    }
+
+    /** "JOINED <room>" followed by the replayed history. */
+    private static final class JoinReply extends Reply {
+        private final HistoryReply history = new HistoryReply();
+        private boolean joined;
+
+        @Override
+        boolean offer(String line) {
+            if (!joined) {
+                if (line.startsWith("JOINED ")) return joined = true;
+                return failed(line);
+            }
+            if (!history.offer(line)) return false;
+            if (history.future.isDone()) future.complete(history.future.join());
+            return true;
+        }
+    }
+
+    /** "[USERS] a,b,c". */
+    private static final class UsersReply extends Reply {
+        @Override
+        boolean offer(String line) {
+            if (!line.startsWith("[USERS] ")) return failed(line);
+            String list = line.substring(8).trim();
+            future.complete(list.isEmpty() ? Collections.emptyList() : Arrays.asList(list.split(",")));
+            return true;
+        }
+    }
+
+    /** The lines between "=== History start ===" and "=== History end ===". */
+    private static final class HistoryReply extends Reply {
+        private List<String> lines;
+
+        @Override
+        boolean offer(String line) {
+            if (lines == null) {
+                if (line.equals(HISTORY_START)) {
+                    lines = new ArrayList<>();
+                    return true;
+                }
+                return failed(line);
+            }
+            if (line.equals(HISTORY_END)) {
+                future.complete(lines);
+            } else {
+                lines.add(line);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Publisher behind messages(): buffers lines the subscriber has not
+     * requested yet and pauses reading from the socket while it is full.
+     * Delivery runs on the executor, one drain at a time.
+     */
+    private final class Inbox implements Flow.Publisher<String>, Flow.Subscription {
+        private final Executor executor;
+        private final ArrayDeque<String> lines = new ArrayDeque<>();   // guarded by this
+        private Flow.Subscriber<? super String> subscriber;            // guarded by this
+        private long demand;                                           // guarded by this
+        private boolean draining;                                      // guarded by this
+        private boolean paused;                                        // guarded by this
+        private boolean completed;                                     // guarded by this
+
+        Inbox(Executor executor) {
+            this.executor = executor;
+        }
+
+        @Override
+        public void subscribe(Flow.Subscriber<? super String> s) {
+            synchronized (this) {
+                if (subscriber == null) {
+                    subscriber = s;
+                    s.onSubscribe(this);
+                    scheduleDrain();
+                    return;
+                }
+            }
+            s.onSubscribe(new Flow.Subscription() {
+                @Override public void request(long n) { }
+                @Override public void cancel() { }
+            });
+            s.onError(new IllegalStateException("messages() already has a subscriber"));
+        }
+
+        @Override
+        public void request(long n) {
+            synchronized (this) {
+                if (subscriber == null) return;
+                if (n <= 0) {
+                    // rule 3.9: the subscription ends with onError
+                    Flow.Subscriber<? super String> s = subscriber;
+                    subscriber = null;
+                    lines.clear();
+                    resumeIfPaused();
+                    executor.execute(() -> s.onError(new IllegalArgumentException("request " + n)));
+                    return;
+                }
+                demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+                scheduleDrain();
+            }
+        }
+
+        @Override
+        public void cancel() {
+            synchronized (this) {
+                subscriber = null;
+                lines.clear();
+                resumeIfPaused();
+            }
+        }
+
+        /** A line from the server; loop thread only. */
+        void publish(String line) {
+            synchronized (this) {
+                if (completed) return;
+                lines.add(line);
+                if (subscriber == null) {
+                    // nobody to slow down for: keep the latest few for a late subscriber
+                    if (lines.size() > UNSUBSCRIBED_LINES) lines.poll();
+                    return;
+                }
+                if (lines.size() >= INBOX_CAPACITY && !paused) {
+                    paused = true;
+                    connection.pauseReading(true);
+                }
+                scheduleDrain();
+            }
+        }
+
+        void complete() {
+            synchronized (this) {
+                completed = true;
+                scheduleDrain();
+            }
+        }
+
+        private void scheduleDrain() {
+            if (draining || subscriber == null) return;
+            draining = true;
+            executor.execute(this::drain);
+        }
+
+        private void drain() {
+            while (true) {
+                Flow.Subscriber<? super String> s;
+                String line = null;
+                synchronized (this) {
+                    s = subscriber;
+                    if (s == null) {
+                        draining = false;
+                        return;
+                    }
+                    if (demand > 0) line = lines.poll();
+                    if (line == null) {
+                        draining = false;
+                        if (lines.isEmpty() && completed) {
+                            subscriber = null;
+                        } else {
+                            resumeIfPaused();
+                            return;
+                        }
+                    } else {
+                        demand--;
+                    }
+                }
+                if (line == null) {
+                    s.onComplete();
+                    return;
+                }
+                s.onNext(line);
+            }
+        }
+
+        private void resumeIfPaused() {
+            if (paused && lines.size() <= INBOX_CAPACITY / 2) {
+                paused = false;
+                loop.execute(() -> connection.pauseReading(false));
+            }
+        }
+    }
+}
@@ -0,0 +1,264 @@
+package chat;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Compact binary framing for machine clients (bots, bridges, load generators).
+ *
+ * A client switches to it by sending "PROTO BIN" as its first line after the
+ * WELCOME; the server answers "PROTO BIN OK" as a text line and from then on
+ * both directions use frames:
+ *
+ *   [varint length][opcode][payload]      length counts opcode + payload
+ *
+ * Strings inside a payload are [varint byte length][UTF-8 bytes]; the last
+ * string of a payload (message text) runs to the end of the frame instead.
+ *
+ * Client -> server:
+ *   JOIN    str room, str username
+ *   MSG     text
+ *   PM      str toUsername, text
+ *   USERS   -
+ *   HISTORY mode, varint id, varint n     (mode: 0 latest n, 1 since id, 2 before id)
+ *   PMH     str username, mode, varint id, varint n
+ *   QUIT    -
+ *   STATS   text admin token
+ *   RESUME  str token, varint lastSeq
+ *   SEARCH  varint limit (0 = one page), text terms
+ *   SUB     str room, str username (empty: the JOIN name)
+ *   UNSUB   str room
+ *   IN      str room, then one command for that subscribed room: opcode, payload
+ *   PONG    text, the answer to a server "PING <n>" (which arrives as TEXT)
+ *
+ * Server -> client:
+ *   MESSAGE varint id, varint epochMillis, flags (bit 0 private), str from, str to, text
+ *   SYSTEM / USERS / PRESENCE / ERROR / TEXT
+ *           text, the line without its [SYSTEM], [USERS], [PRESENCE] or ERROR prefix
+ *   ROOM    str room, then one complete frame from that subscribed room (its own
+ *           length included); the text protocol prefixes such lines with "@room "
+ */
+final class BinaryProtocol {
+
+    static final byte JOIN = 0x01;
+    static final byte MSG = 0x02;
+    static final byte PM = 0x03;
+    static final byte USERS = 0x04;
+    static final byte HISTORY = 0x05;
+    static final byte PMH = 0x06;
+    static final byte QUIT = 0x07;
+    static final byte STATS = 0x08;
+    static final byte RESUME = 0x09;
+    static final byte SEARCH = 0x0A;
+    static final byte SUB = 0x0B;
+    static final byte UNSUB = 0x0C;
+    static final byte IN = 0x0D;
+    static final byte PONG = 0x0E;
+
+    static final byte OUT_TEXT = (byte) 0x81;
+    static final byte OUT_MESSAGE = (byte) 0x82;
+    static final byte OUT_SYSTEM = (byte) 0x83;
+    static final byte OUT_USERS = (byte) 0x84;
+    static final byte OUT_ERROR = (byte) 0x85;
+    static final byte OUT_PRESENCE = (byte) 0x86;
+    static final byte OUT_ROOM = (byte) 0x87;
+
+    static final int HISTORY_LATEST = 0;
+    static final int HISTORY_SINCE = 1;
+    static final int HISTORY_BEFORE = 2;
+
+    /** Largest frame either side accepts, same bound as a text line. */
+    static final int MAX_FRAME_LENGTH = 64 * 1024;
+
+    private static final byte FLAG_PRIVATE = 1;
+
+    private static final byte[] SYSTEM_PREFIX = "[SYSTEM] ".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] USERS_PREFIX = "[USERS] ".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] ERROR_PREFIX = "ERROR ".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] PRESENCE_PREFIX = "[PRESENCE] ".getBytes(StandardCharsets.UTF_8);
+
+    private BinaryProtocol() { }
+
+    /** Frame for a stored message, built from its fields without a display string. */
+    static byte[] messageFrame(Message msg) {
+        byte[] from = msg.getFrom().getBytes(StandardCharsets.UTF_8);
+        byte[] to = msg.getTo() != null ? msg.getTo().getBytes(StandardCharsets.UTF_8) : new byte[0];
+        byte[] text = msg.textBytes();
+        int length = 1 + varintSize(msg.getId()) + varintSize(msg.getEpochMillis()) + 1
+                + varintSize(from.length) + from.length + varintSize(to.length) + to.length + text.length;
+        ByteBuffer buf = ByteBuffer.allocate(varintSize(length) + length);
+        putVarint(buf, length);
+        buf.put(OUT_MESSAGE);
+        putVarint(buf, msg.getId());
+        putVarint(buf, msg.getEpochMillis());
+        buf.put(msg.isPrivate() ? FLAG_PRIVATE : 0);
+        putString(buf, from);
+        putString(buf, to);
+        buf.put(text);
+        return buf.array();
+    }
+
+    /**
+     * Re-frames an encoded text line (see OutboundQueue.encode). The opcode
+     * is picked from the line's prefix, which is dropped along with the newline.
+     */
+    static byte[] fromLine(byte[] line) {
+        int end = line.length > 0 && line[line.length - 1] == '\n' ? line.length - 1 : line.length;
+        byte op = OUT_TEXT;
+        int start = 0;
+        if (startsWith(line, SYSTEM_PREFIX)) {
+            op = OUT_SYSTEM;
+            start = SYSTEM_PREFIX.length;
+        } else if (startsWith(line, USERS_PREFIX)) {
+            op = OUT_USERS;
+            start = USERS_PREFIX.length;
+        } else if (startsWith(line, ERROR_PREFIX)) {
+            op = OUT_ERROR;
+            start = ERROR_PREFIX.length;
+        } else if (startsWith(line, PRESENCE_PREFIX)) {
+            op = OUT_PRESENCE;
+            start = PRESENCE_PREFIX.length;
+        }
+        int length = 1 + end - start;
+        ByteBuffer buf = ByteBuffer.allocate(varintSize(length) + length);
+        putVarint(buf, length);
+        buf.put(op);
+        buf.put(line, start, end - start);
+        return buf.array();
+    }
+
+    /** Wraps a complete frame from a subscribed room in a ROOM frame; room is the UTF-8 room id. */
+    static byte[] roomFrame(byte[] room, byte[] frame) {
+        int length = 1 + varintSize(room.length) + room.length + frame.length;
+        ByteBuffer buf = ByteBuffer.allocate(varintSize(length) + length);
+        putVarint(buf, length);
+        buf.put(OUT_ROOM);
+        putString(buf, room);
+        buf.put(frame);
+        return buf.array();
+    }
+
+    /** Opcode of an encoded frame. */
+    static byte opcodeOf(byte[] frame) {
+        int i = 0;
+        while ((frame[i] & 0x80) != 0) i++;
+        return frame[i + 1];
+    }
+
+    // ---- client side: request frames ----
+
+    static byte[] join(String room, String username) {
+        return request(JOIN, string(room), string(username));
+    }
+
+    static byte[] msg(String text) {
+        return request(MSG, text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    static byte[] pm(String to, String text) {
+        return request(PM, string(to), text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    static byte[] history(int mode, long id, int n) {
+        return request(HISTORY, historySpec(mode, id, n));
+    }
+
+    static byte[] pmh(String username, int mode, long id, int n) {
+        return request(PMH, string(username), historySpec(mode, id, n));
+    }
+
+    /** Request frame from raw payload parts; with no parts it is a bare USERS or QUIT. */
+    static byte[] request(byte op, byte[]... parts) {
+        int length = 1;
+        for (byte[] p : parts) length += p.length;
+        ByteBuffer buf = ByteBuffer.allocate(varintSize(length) + length);
+        putVarint(buf, length);
+        buf.put(op);
+        for (byte[] p : parts) buf.put(p);
+        return buf.array();
+    }
+
+    private static byte[] historySpec(int mode, long id, int n) {
+        ByteBuffer buf = ByteBuffer.allocate(1 + varintSize(id) + varintSize(n));
+        buf.put((byte) mode);
+        putVarint(buf, id);
+        putVarint(buf, n);
+        return buf.array();
+    }
+
+    static byte[] string(String s) {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buf = ByteBuffer.allocate(varintSize(bytes.length) + bytes.length);
+        putString(buf, bytes);
+        return buf.array();
+    }
+
+    // ---- varints and strings ----
+
+    static int varintSize(long v) {
+        int n = 1;
+        while ((v >>>= 7) != 0) n++;
+        return n;
+    }
+
+    static void putVarint(ByteBuffer buf, long v) {
+        while ((v & ~0x7FL) != 0) {
+            buf.put((byte) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        buf.put((byte) v);
+    }
+
+    /**
+     * Reads an unsigned varint.
+     * @return the value, or -1 if buf ends before the varint does
+     */
+    static long getVarint(ByteBuffer buf) {
+        long v = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (!buf.hasRemaining()) return -1;
+            byte b = buf.get();
+            v |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return v;
+        }
+        throw new IllegalArgumentException("varint too long");
+    }
+
+    private static void putString(ByteBuffer buf, byte[] s) {
+        putVarint(buf, s.length);
+        buf.put(s);
+    }
+
+    /** Reads a length-prefixed string field. */
+    static String getString(ByteBuffer buf) {
+        long len = getVarint(buf);
+        if (len < 0 || len > buf.remaining()) throw new IllegalArgumentException("truncated string");
+        return decode(buf, (int) len);
+    }
+
+    /** The rest of the payload as text. */
+    static String getText(ByteBuffer buf) {
+        return decode(buf, buf.remaining());
+    }
+
+    private static String decode(ByteBuffer buf, int len) {
+        String s;
+        if (buf.hasArray()) {
+            s = new String(buf.array(), buf.arrayOffset() + buf.position(), len, StandardCharsets.UTF_8);
+        } else {
+            byte[] bytes = new byte[len];
+            buf.duplicate().get(bytes);
+            s = new String(bytes, StandardCharsets.UTF_8);
+        }
+        buf.position(buf.position() + len);
+        return s;
+    }
+
+    private static boolean startsWith(byte[] line, byte[] prefix) {
+        if (line.length < prefix.length) return false;
+        for (int i = 0; i < prefix.length; i++) {
+            if (line[i] != prefix[i]) return false;
+        }
+        return true;
+    }
+}
@@ -1,3 +1,5 @@
+package chat;
+
 import java.io.*;
 import java.net.Socket;
 import java.util.Scanner;
@@ -5,11 +7,11 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
- * Console chat client.
+ * Console chat client (AsyncChatClient is the non-blocking one for programs).
  * Usage:
- *   java ChatClient <host> <port>
+ *   java chat.ChatClient <host> <port>
  * Example:
- *   java ChatClient localhost 9090
+ *   java chat.ChatClient localhost 9090
  *
  * After connecting, use commands:
  *   JOIN <roomId> <username>
@@ -26,6 +28,10 @@ import java.util.logging.Logger;
  *   /u
  *   /h
  *   /pmh <user>
+ *   /search <terms> [LIMIT n]
+ *   /sub <roomId> [<username>], /unsub <roomId>
+ *   @<roomId> <any of the above>            (for a room joined with /sub)
+ *   /stats <token>
  *   /q
  */
 public class ChatClient {
@@ -49,6 +55,11 @@ public class ChatClient {
                 try {
                     String s;
                     while ((s = in.readLine()) != null) {
+                        if (s.startsWith("PING ")) {
+                            // heartbeat: answer for the user, who may be idle for a while
+                            writeLine(out, "PONG " + s.substring(5));
+                            continue;
+                        }
                         System.out.println(s);
                     }
                 } catch (IOException e) {
@@ -76,38 +87,16 @@ public class ChatClient {
                 line = line.trim();
                 if (line.isEmpty()) continue;
 
-                String outLine = null;
-                if (line.startsWith("/jn ")) {
-                    outLine = "JOIN " + line.substring(4).trim();
-                } else if (line.startsWith("/msg ")) {
-                    outLine = "MSG " + line.substring(5).trim();
-                } else if (line.startsWith("/pm ")) {
-                    String rest = line.substring(4).trim();
-                    int firstSpace = rest.indexOf(' ');
-                    if (firstSpace <= 0) {
-                        System.out.println("Usage: /pm <user> <message>");
-                        continue;
-                    }
-                    String to = rest.substring(0, firstSpace);
-                    String msg = rest.substring(firstSpace + 1);
-                    outLine = "PM " + to + " " + msg;
-                } else if (line.equals("/u")) {
-                    outLine = "USERS";
-                } else if (line.equals("/h")) {
-                    outLine = "HISTORY";
-                } else if (line.startsWith("/pmh ")) {
-                    String target = line.length() > 5 ? line.substring(5).trim() : "";
-                    if (target.isEmpty()) {
-                        System.out.println("Usage: /pmh  <user>");
-                        continue;
-                    }
-                    outLine = "PMH " + target;
-                } else if (line.equals("/q")) {
-                    outLine = "QUIT";
+                String outLine;
+                try {
+                    outLine = ClientProtocol.translate(line);
+                } catch (IllegalArgumentException usage) {
+                    System.out.println(usage.getMessage());
+                    continue;
+                }
+                if (outLine.equals(ClientProtocol.QUIT)) {
                     writeLine(out, outLine);
                     break;
-                } else {
-                    outLine = "MSG " + line;
                 }
                 writeLine(out, outLine);
             }
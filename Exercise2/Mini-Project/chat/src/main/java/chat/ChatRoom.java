@@ -0,0 +1,738 @@
+package chat;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * ChatRoom maintains observers (clients) and message history.
+ * Histories are bounded ring buffers (see MessageHistory).
+ *
+ * No operation takes a room-wide lock. Membership is an immutable map that
+ * joins and leaves replace with compare-and-set, so a broadcast iterates a
+ * consistent snapshot while others come and go. History appends go through
+ * the lock-free MessageHistory, and private conversations live in a
+ * ConcurrentHashMap. Concurrent MSG senders, joins, PMs and history readers
+ * therefore never wait on one another.
+ *
+ * Members still get the room's messages in id order, which the SINCE and
+ * RESUME cursors rely on. Stored messages wait in a small window indexed by
+ * id, and only the contiguous run after the last delivered id is fanned
+ * out, by one thread at a time (see fanOut()). A sender that finds the
+ * drain busy returns at once and the draining thread delivers its message
+ * too; only a sender a whole window ahead of delivery helps or parks. A
+ * message that got an id reaches the window even if logging or relaying it
+ * fails, and a failed delivery is logged and skipped, so one error cannot
+ * stall the room. The same drain feeds the SearchIndex, so the index has a
+ * single writer that adds in id order.
+ *
+ * When the server runs with --log-dir every message is also appended to the
+ * durable MessageLog, from which a room's history is restored after a restart.
+ *
+ * In a Cluster the room is either owned here or a mirror of the owner's.
+ * The owner also tracks members connected to other nodes and relays what it
+ * stores to the mirroring nodes; appending and relaying happen under one
+ * small lock so every mirror receives the room's messages in id order. A
+ * mirror stores nothing itself: posts, PMs, joins and leaves go to the
+ * owner, and the relayed results are kept in the mirror's history and
+ * delivered to its local members.
+ *
+ * With --room-threads the server partitions rooms across RoomLoops. Client
+ * and cluster commands then reach a room through execute(), which runs
+ * them one at a time on the room's loop; the lock-free structures above
+ * stay, and are simply never contended. Without it execute() runs the
+ * command on the caller's thread.
+ *
+ * A room nobody has been in for --room-idle-timeout is evicted by the
+ * ChatRoomManager. Eviction swaps the membership for the EVICTED marker,
+ * after which the room refuses joins (addUser, addRemoteUser and
+ * addSubscriber report it) and the caller looks the room up again,
+ * getting the rehydrated replacement.
+ *
+ * Presence goes out as deltas. A joining member gets the full [USERS] list
+ * once; everyone else hears about joins and leaves through one
+ * "[PRESENCE] +alice -bob" line per --presence-window-ms, in which a join
+ * and a leave of the same user cancel out. Joins and leaves are not
+ * stored as [SYSTEM] messages, so they stay out of history, the search
+ * index and the log, and a join storm costs one line per member per
+ * window rather than a fan-out per join. An
+ * owner sends its mirrors the full list once per window, and each mirror
+ * turns it into a delta for its own members.
+ *
+ * Fan-out only queues frames on each client's OutboundQueue; no socket I/O
+ * happens on the broadcast path, so one slow client cannot stall the room.
+ * Each broadcast's duration goes into ServerMetrics, and posted messages are
+ * counted in the room's RoomMetrics.
+ */
+public class ChatRoom {
+    private static final Logger logger = Logger.getLogger(ChatRoom.class.getName());
+
+    private static final MessageHistory EMPTY_HISTORY = new MessageHistory(1, 0, 0);
+    private static final int FAN_OUT_WINDOW = 1024;   // stored messages that may await delivery
+    private static final long MIN_BACKOFF_NANOS = 1_000;
+    private static final long MAX_BACKOFF_NANOS = 1_000_000;
+    private static final ServerMetrics serverMetrics = ServerMetrics.getInstance();
+    private static final ScheduledExecutorService presenceTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "presence-timer");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /** Who is in the room: handlers connected here and, on an owner, users on other nodes. */
+    private static final class Members {
+        static final Members EMPTY = new Members(Collections.emptyMap(), Collections.emptyMap());
+        static final Members EVICTED = new Members(Collections.emptyMap(), Collections.emptyMap());
+
+        final Map<String, ClientHandler> local;
+        final Map<String, String> remote;   // username -> node id
+
+        Members(Map<String, ClientHandler> local, Map<String, String> remote) {
+            this.local = local;
+            this.remote = remote;
+        }
+
+        boolean isEmpty() {
+            return local.isEmpty() && remote.isEmpty();
+        }
+
+        boolean contains(String username) {
+            return local.containsKey(username) || remote.containsKey(username);
+        }
+
+        List<String> names() {
+            List<String> names = new ArrayList<>(local.size() + remote.size());
+            names.addAll(local.keySet());
+            names.addAll(remote.keySet());
+            return names;
+        }
+
+        Members withLocal(String username, ClientHandler handler) {
+            Map<String, ClientHandler> next = new LinkedHashMap<>(local);
+            next.put(username, handler);
+            return new Members(Collections.unmodifiableMap(next), remote);
+        }
+
+        Members withoutLocal(String username) {
+            Map<String, ClientHandler> next = new LinkedHashMap<>(local);
+            next.remove(username);
+            return new Members(Collections.unmodifiableMap(next), remote);
+        }
+
+        Members withRemote(String username, String node) {
+            Map<String, String> next = new LinkedHashMap<>(remote);
+            next.put(username, node);
+            return new Members(local, Collections.unmodifiableMap(next));
+        }
+
+        Members withoutRemote(String username) {
+            Map<String, String> next = new LinkedHashMap<>(remote);
+            next.remove(username);
+            return new Members(local, Collections.unmodifiableMap(next));
+        }
+    }
+
+    private final String roomId;
+    private final byte[] roomIdBytes;   // UTF-8, for tagging output to subscribers (see ClientHandler)
+    private final AtomicReference<Members> members = new AtomicReference<>(Members.EMPTY);
+    private final UserTable users = new UserTable();
+    private final MessageHistory history = MessageHistory.forRoom(users);
+    private final SearchIndex searchIndex = new SearchIndex(history);
+    private final Map<Long, MessageHistory> privateHistories = new ConcurrentHashMap<>();  // by UserTable.pair
+    private final AtomicReferenceArray<Message> undelivered = new AtomicReferenceArray<>(FAN_OUT_WINDOW);  // by id
+    private final AtomicBoolean fanningOut = new AtomicBoolean();
+    private final AtomicLong fannedOut = new AtomicLong();   // id of the last public message delivered here
+    private final MessageLog log;   // null when persistence is off
+    private final RoomMetrics metrics = new RoomMetrics(this);
+    private final TokenBucket rateLimit = TokenBucket.forRoom();  // null when --room-rate-limit is off
+    private final Executor mailbox;  // the room's RoomLoops loop, or RoomLoops.DIRECT
+    private final Cluster cluster;  // null when not clustered
+    private final String owner;     // owning node of a mirror; null where this node owns the room
+    private final Set<String> subscribers = ConcurrentHashMap.newKeySet();  // nodes mirroring an owned room
+    private final Object relayLock = new Object();
+    private volatile String clusterUsers;   // mirror: member list last sent by the owner
+    private final AtomicBoolean subscribed = new AtomicBoolean();
+    private volatile long lastActive = System.currentTimeMillis();  // last time someone left
+    private final long presenceWindowMillis = ServerConfig.get().getPresenceWindowMillis();
+    private final Map<String, Boolean> presence = new LinkedHashMap<>();  // pending deltas, true = joined; guarded by itself
+    private boolean presenceFlushScheduled;  // guarded by presence
+    private final CountDownLatch loaded = new CountDownLatch(1);  // open once restore() is done
+
+    public ChatRoom(String roomId) {
+        this(roomId, null);
+    }
+
+    ChatRoom(String roomId, MessageLog log) {
+        this(roomId, log, null, null, RoomLoops.DIRECT);
+    }
+
+    ChatRoom(String roomId, MessageLog log, Cluster cluster, String owner, Executor mailbox) {
+        this.roomId = roomId;
+        this.roomIdBytes = roomId.getBytes(StandardCharsets.UTF_8);
+        this.log = log;
+        this.mailbox = mailbox;
+        this.cluster = cluster;
+        this.owner = owner;
+    }
+
+    public String getRoomId() { return roomId; }
+
+    /** The room id as UTF-8; callers must not modify the array. */
+    byte[] getRoomIdBytes() { return roomIdBytes; }
+
+    /** Node owning this room if it is a mirror, null if this node owns it. */
+    String getOwner() { return owner; }
+
+    RoomMetrics getMetrics() { return metrics; }
+
+    /** Takes a token from the room's MSG/PM limit; false (and counted) if the room is over it. */
+    boolean admitMessage() {
+        if (rateLimit == null || rateLimit.tryAcquire()) return true;
+        metrics.onRateLimited();
+        return false;
+    }
+
+    int getMemberCount() {
+        Members m = members.get();
+        return m.local.size() + m.remote.size();
+    }
+
+    int getHistorySize() { return history.size(); }
+
+    long getHistoryBytes() { return history.bytes(); }
+
+    int getPrivateConversationCount() { return privateHistories.size(); }
+
+    int getIndexedTermCount() { return searchIndex.termCount(); }
+
+    /** Runs command on this room's loop, after every command submitted before it. */
+    void execute(Runnable command) {
+        mailbox.execute(command);
+    }
+
+    /** True if handler is in the room as username. */
+    boolean hasMember(String username, ClientHandler handler) {
+        return members.get().local.get(username) == handler;
+    }
+
+    /** Ends the restore() phase; the room may be shared from now on. */
+    void markLoaded() {
+        loaded.countDown();
+    }
+
+    /** Waits until whoever created the room has restored its history (see ChatRoomManager). */
+    void awaitLoaded() {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                loaded.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+    }
+
+    /** True once the room was evicted; look it up in the ChatRoomManager again. */
+    boolean isEvicted() { return members.get() == Members.EVICTED; }
+
+    /** True if nobody is in the room or mirrors it and nobody has left since idleSince. */
+    boolean isIdle(long idleSince) {
+        return members.get().isEmpty() && subscribers.isEmpty() && lastActive <= idleSince;
+    }
+
+    /**
+     * Evicts the room if it is still idle. Under relayLock, so a node cannot
+     * subscribe in between; a join racing with this either lands first (and
+     * the room stays) or finds the room evicted.
+     */
+    boolean evictIfIdle(long idleSince) {
+        synchronized (relayLock) {
+            Members current = members.get();
+            return current != Members.EVICTED && loaded.getCount() == 0 && isIdle(idleSince)
+                    && members.compareAndSet(current, Members.EVICTED);
+        }
+    }
+
+    /** The room history followed by every private conversation, for spilling an evicted room. */
+    List<MessageHistory.Snapshot> getStoredHistories() {
+        List<MessageHistory.Snapshot> all = new ArrayList<>(1 + privateHistories.size());
+        all.add(history.snapshot());
+        for (MessageHistory h : privateHistories.values()) all.add(h.snapshot());
+        return all;
+    }
+
+    /** False if the name is taken or the room was evicted (see isEvicted). */
+    public boolean addUser(String username, ClientHandler handler) {
+        while (true) {
+            Members current = members.get();
+            if (current == Members.EVICTED || current.contains(username)) return false;
+            if (members.compareAndSet(current, current.withLocal(username, handler))) break;
+        }
+        if (owner != null) {
+            cluster.memberJoined(owner, roomId, username);
+        } else {
+            presenceChanged(username, true);
+        }
+        handler.deliver(this, OutboundQueue.encode("[USERS] " + String.join(",", getActiveUsers())));
+        logger.info("User '" + username + "' joined ChatRoom " + roomId);
+        return true;
+    }
+
+    /**
+     * Hands username's membership from a stale handler to a resuming one, with
+     * no leave or join in between; false if previous is not that member (any more).
+     */
+    boolean replaceUser(String username, ClientHandler previous, ClientHandler next) {
+        while (true) {
+            Members current = members.get();
+            if (current.local.get(username) != previous) return false;
+            if (members.compareAndSet(current, current.withLocal(username, next))) return true;
+        }
+    }
+
+    public void removeUser(String username) {
+        while (true) {
+            Members current = members.get();
+            if (!current.local.containsKey(username)) return;
+            if (members.compareAndSet(current, current.withoutLocal(username))) break;
+        }
+        lastActive = System.currentTimeMillis();
+        if (owner != null) {
+            cluster.memberLeft(owner, roomId, username);
+        } else {
+            presenceChanged(username, false);
+        }
+        logger.info("User '" + username + "' left ChatRoom " + roomId);
+    }
+
+    public List<String> getActiveUsers() {
+        String list = clusterUsers;
+        if (owner != null && list != null) {
+            // the owner's list, plus local members whose JOINED it may not have seen yet
+            Set<String> users = new LinkedHashSet<>();
+            if (!list.isEmpty()) users.addAll(Arrays.asList(list.split(",")));
+            users.addAll(members.get().local.keySet());
+            return new ArrayList<>(users);
+        }
+        return members.get().names();
+    }
+
+    /** Members connected to this node. */
+    List<String> getLocalUsers() {
+        return new ArrayList<>(members.get().local.keySet());
+    }
+
+    /** Stores and delivers msg; IOException if it was delivered but not saved to the MessageLog. */
+    public void broadcast(Message msg) throws IOException {
+        long start = System.nanoTime();
+        if (owner != null) {
+            cluster.post(owner, roomId, msg.getFrom(), msg.getText());
+        } else {
+            store(history, msg);
+        }
+        metrics.onMessage();
+        serverMetrics.recordBroadcast(System.nanoTime() - start);
+    }
+
+    public void broadcastSystem(String text) throws IOException {
+        store(history, new Message("SYSTEM", null, text, false));
+    }
+
+    /**
+     * Hands a message just stored in the history to fan-out. Its slot in
+     * the window is free once everything FAN_OUT_WINDOW ids older has been
+     * delivered; a sender that far ahead helps deliver, or parks with a
+     * growing back-off while another thread does.
+     */
+    private void fanOut(Message stored) {
+        long id = stored.getId();
+        long backoff = MIN_BACKOFF_NANOS;
+        while (id - fannedOut.get() > FAN_OUT_WINDOW) {
+            if (!drainFanOut()) {
+                LockSupport.parkNanos(backoff);
+                backoff = Math.min(backoff * 2, MAX_BACKOFF_NANOS);
+            }
+        }
+        undelivered.set((int) (id % FAN_OUT_WINDOW), stored);
+        while (isNextReady() && drainFanOut()) {
+            // a message placed while the drain was letting go is ours to deliver
+        }
+    }
+
+    private boolean isNextReady() {
+        long next = fannedOut.get() + 1;
+        Message m = undelivered.get((int) (next % FAN_OUT_WINDOW));
+        return m != null && m.getId() == next;
+    }
+
+    /**
+     * Delivers the contiguous run of stored messages after fannedOut to the
+     * members here, in id order, and indexes it. Only the thread that wins
+     * fanningOut does this.
+     * @return false if another thread is draining
+     */
+    private boolean drainFanOut() {
+        if (!fanningOut.compareAndSet(false, true)) return false;
+        try {
+            List<Message> indexed = new ArrayList<>();
+            while (true) {
+                long next = fannedOut.get() + 1;
+                int slot = (int) (next % FAN_OUT_WINDOW);
+                Message m = undelivered.get(slot);
+                if (m == null || m.getId() != next) break;
+                undelivered.set(slot, null);
+                if ("SYSTEM".equals(m.getFrom())) {
+                    deliverSystem(m.getText());
+                } else {
+                    indexed.add(m);
+                    for (ClientHandler handler : members.get().local.values()) {
+                        try {
+                            handler.notifyMessage(this, m);
+                        } catch (RuntimeException e) {
+                            // one broken member must not stop the run for everyone after it
+                            logger.log(Level.WARNING, "Fan-out of #" + next + " in " + roomId + " failed", e);
+                        }
+                    }
+                }
+                fannedOut.set(next);
+            }
+            searchIndex.addAll(indexed);
+        } finally {
+            fanningOut.set(false);
+        }
+        return true;
+    }
+
+    /** Stores and delivers a private message; IOException as for broadcast(). */
+    public void sendPrivate(String from, String to, String text) throws IOException {
+        metrics.onMessage();
+        if (owner != null) {
+            cluster.sendPrivate(owner, roomId, from, to, text);
+            return;
+        }
+        MessageHistory conversation = privateHistories.computeIfAbsent(getPrivateKey(from, to),
+                k -> MessageHistory.forConversation(users));
+        store(conversation, new Message(from, to, text, true));
+    }
+
+    /**
+     * Appends to the given history and the log, and delivers; an owner relays to its mirrors
+     * in the same step. A message in a history is relayed and delivered even if logging
+     * then fails, whose IOException is thrown afterwards: its id is taken, and delivery of
+     * every later id waits for it.
+     */
+    private void store(MessageHistory target, Message msg) throws IOException {
+        Message stored = null;
+        try {
+            if (cluster == null) {
+                stored = target.append(msg);
+                if (log != null) log.append(roomId, stored);
+            } else {
+                synchronized (relayLock) {
+                    stored = target.append(msg);
+                    try {
+                        if (log != null) log.append(roomId, stored);
+                    } finally {
+                        cluster.relay(subscribers, roomId, stored);
+                    }
+                }
+            }
+        } finally {
+            if (stored != null) {
+                if (target == history) fanOut(stored);
+                else deliverPrivate(stored);
+            }
+        }
+    }
+
+    private void deliverSystem(String text) {
+        byte[] frame = OutboundQueue.encode("[SYSTEM] " + text);
+        for (ClientHandler handler : members.get().local.values()) {
+            try {
+                handler.deliver(this, frame);
+            } catch (RuntimeException e) {
+                logger.log(Level.WARNING, "System line to a member of " + roomId + " failed", e);
+            }
+        }
+    }
+
+    private void deliverPrivate(Message msg) {
+        Map<String, ClientHandler> local = members.get().local;
+        ClientHandler target = local.get(msg.getTo());
+        ClientHandler sender = local.get(msg.getFrom());
+
+        if (target != null) {
+            try {
+                target.notifyMessage(this, msg);
+            } catch (Exception e) {
+                logger.log(Level.WARNING, "Failed private deliver to " + msg.getTo(), e);
+            }
+        }
+        if (sender != null && sender != target) {
+            try {
+                sender.notifyMessage(this, msg);
+            } catch (Exception e) {
+                logger.log(Level.WARNING, "Failed private echo to " + msg.getFrom(), e);
+            }
+        }
+    }
+
+    /**
+     * Puts a logged or spilled message back into history without delivering or logging
+     * it again; only before markLoaded(), while the room is not shared yet.
+     */
+    void restore(Message msg) {
+        if (msg.isPrivate()) {
+            privateHistories.computeIfAbsent(getPrivateKey(msg.getFrom(), msg.getTo()),
+                    k -> MessageHistory.forConversation(users)).restore(msg);
+        } else {
+            Message stored = history.restore(msg);
+            if (stored == null) return;
+            // restored messages were delivered before (or, on a mirror, by onRelayed)
+            fannedOut.set(stored.getId());
+            if (!"SYSTEM".equals(stored.getFrom())) searchIndex.add(stored);
+        }
+    }
+
+    // ---- owner side of a clustered room ----
+
+    /**
+     * A node mirrors this room from now on; it first gets the current history, the private
+     * conversations (so PMH there shows what it shows here) and the member list.
+     * False if the room was evicted.
+     */
+    boolean addSubscriber(String node) {
+        synchronized (relayLock) {
+            if (isEvicted()) return false;
+            subscribers.add(node);
+            cluster.history(node, roomId, history.snapshot());
+            for (MessageHistory conversation : privateHistories.values()) {
+                cluster.history(node, roomId, conversation.snapshot());
+            }
+        }
+        cluster.users(Collections.singleton(node), roomId, String.join(",", members.get().names()));
+        return true;
+    }
+
+    /** A node no longer mirrors this room (it evicted its mirror). */
+    void removeSubscriber(String node) {
+        if (subscribers.remove(node)) lastActive = System.currentTimeMillis();
+    }
+
+    /**
+     * A user joined on another node; refused with a KICK if the name is taken anywhere in the cluster.
+     * False if the room was evicted.
+     */
+    boolean addRemoteUser(String node, String username) {
+        while (true) {
+            Members current = members.get();
+            if (current == Members.EVICTED) return false;
+            if (node.equals(current.remote.get(username))) return true;   // repeated on resync
+            if (current.contains(username)) {
+                cluster.kick(node, roomId, username);
+                return true;
+            }
+            if (members.compareAndSet(current, current.withRemote(username, node))) break;
+        }
+        presenceChanged(username, true);
+        logger.info("User '" + username + "' joined ChatRoom " + roomId + " on node " + node);
+        return true;
+    }
+
+    /** Whether username joined this room through node. */
+    boolean isRemoteMember(String node, String username) {
+        return node.equals(members.get().remote.get(username));
+    }
+
+    void removeRemoteUser(String node, String username) {
+        while (true) {
+            Members current = members.get();
+            if (!node.equals(current.remote.get(username))) return;
+            if (members.compareAndSet(current, current.withoutRemote(username))) break;
+        }
+        lastActive = System.currentTimeMillis();
+        presenceChanged(username, false);
+        logger.info("User '" + username + "' left ChatRoom " + roomId + " on node " + node);
+    }
+
+    /** A node went away: it stops mirroring and its users leave. */
+    void removeNode(String node) {
+        removeSubscriber(node);
+        for (Map.Entry<String, String> e : members.get().remote.entrySet()) {
+            if (e.getValue().equals(node)) removeRemoteUser(node, e.getKey());
+        }
+    }
+
+    // ---- mirror side of a clustered room ----
+
+    /** Asks the owner to start relaying, the first time a mirror is used. */
+    void subscribeIfMirror() {
+        if (owner != null && !subscribed.get() && subscribed.compareAndSet(false, true)) {
+            cluster.subscribe(owner, roomId);
+        }
+    }
+
+    /** A message the owner stored: keep it and deliver it to the members here. */
+    void onRelayed(Message msg) {
+        if (keepRelayed(msg) == null) return;   // already have it, e.g. from a resync's HISTORY
+        if (msg.isPrivate()) {
+            deliverPrivate(msg);
+        } else if ("SYSTEM".equals(msg.getFrom())) {
+            deliverSystem(msg.getText());
+        } else {
+            for (ClientHandler handler : members.get().local.values()) {
+                handler.notifyMessage(this, msg);
+            }
+        }
+    }
+
+    /** Part of the owner's history, sent when this mirror subscribed: kept, not delivered. */
+    void onHistory(Message msg) {
+        keepRelayed(msg);
+    }
+
+    /**
+     * Adds a message with the owner's id to the live histories here, which
+     * readers are using meanwhile (unlike restore(), which fills a room no
+     * one can see yet).
+     * @return the stored message, or null if this mirror has it already
+     */
+    private Message keepRelayed(Message msg) {
+        if (msg.isPrivate()) {
+            return privateHistories.computeIfAbsent(getPrivateKey(msg.getFrom(), msg.getTo()),
+                    k -> MessageHistory.forConversation(users)).appendWithId(msg);
+        }
+        Message stored = history.appendWithId(msg);
+        if (stored != null && !"SYSTEM".equals(stored.getFrom())) searchIndex.add(stored);
+        return stored;
+    }
+
+    /**
+     * The owner's member list, passed on to the members here as the difference
+     * from the previous one. Local members count as present either way: the
+     * owner's list may not show their JOINED yet, and they already got a
+     * full list when they joined.
+     */
+    void onClusterUsers(String list) {
+        String previous = clusterUsers;
+        clusterUsers = list;
+        Map<String, ClientHandler> local = members.get().local;
+        Set<String> before = new LinkedHashSet<>(local.keySet());
+        if (previous != null) before.addAll(Arrays.asList(previous.split(",")));
+        Set<String> after = new LinkedHashSet<>(local.keySet());
+        after.addAll(Arrays.asList(list.split(",")));
+        StringBuilder line = new StringBuilder("[PRESENCE]");
+        int changes = 0;
+        for (String user : after) {
+            if (!user.isEmpty() && !before.contains(user)) {
+                line.append(" +").append(user);
+                changes++;
+            }
+        }
+        for (String user : before) {
+            if (!user.isEmpty() && !after.contains(user)) {
+                line.append(" -").append(user);
+                changes++;
+            }
+        }
+        if (changes == 0) return;
+        byte[] frame = OutboundQueue.encode(line.toString());
+        for (ClientHandler handler : local.values()) {
+            handler.deliver(this, frame);
+        }
+    }
+
+    /** The owner refused a local user's join because the name is in use on another node. */
+    void onKicked(String username) {
+        ClientHandler handler;
+        while (true) {
+            Members current = members.get();
+            handler = current.local.get(username);
+            if (handler == null) return;
+            if (members.compareAndSet(current, current.withoutLocal(username))) break;
+        }
+        lastActive = System.currentTimeMillis();
+        handler.joinRejected(this);
+        logger.info("User '" + username + "' refused in ChatRoom " + roomId + " by owner " + owner);
+    }
+
+    private long getPrivateKey(String user1, String user2) {
+        return UserTable.pair(users.intern(user1), users.intern(user2));
+    }
+
+    /** Snapshot of a private conversation, taken without copying. */
+    public MessageHistory.Snapshot getPrivateHistory(String user1, String user2) {
+        int a = users.find(user1);
+        int b = users.find(user2);
+        MessageHistory h = a != UserTable.NONE && b != UserTable.NONE
+                ? privateHistories.get(UserTable.pair(a, b)) : null;
+        return (h != null ? h : EMPTY_HISTORY).snapshot();
+    }
+
+    /**
+     * Up to limit messages of the room history containing every term of
+     * query, newest first; system lines are not indexed.
+     */
+    List<Message> search(String query, int limit) {
+        MessageHistory.Snapshot retained = history.snapshot();
+        List<Message> hits = new ArrayList<>();
+        for (long id : searchIndex.search(query, limit)) {
+            Message m = retained.get(id);
+            if (m != null) hits.add(m);
+        }
+        return hits;
+    }
+
+    /** Snapshot of the room history, taken without copying. */
+    public MessageHistory.Snapshot getHistory() {
+        return history.snapshot();
+    }
+
+    /** Queues a +user/-user delta; the first one of a window schedules the flush. */
+    private void presenceChanged(String username, boolean joined) {
+        synchronized (presence) {
+            // a join and a leave of the same user within one window cancel out
+            if (presence.remove(username) == null) presence.put(username, joined);
+            if (presenceFlushScheduled || presence.isEmpty()) return;
+            presenceFlushScheduled = true;
+        }
+        if (presenceWindowMillis == 0) {
+            flushPresence();
+        } else {
+            presenceTimer.schedule(() -> execute(this::flushPresence), presenceWindowMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /** Sends the window's deltas as one [PRESENCE] line, and mirrors the resulting member list. */
+    private void flushPresence() {
+        StringBuilder line = new StringBuilder("[PRESENCE]");
+        synchronized (presence) {
+            presenceFlushScheduled = false;
+            if (presence.isEmpty()) return;
+            for (Map.Entry<String, Boolean> e : presence.entrySet()) {
+                line.append(' ').append(e.getValue() ? '+' : '-').append(e.getKey());
+            }
+            presence.clear();
+        }
+        Members m = members.get();
+        byte[] frame = OutboundQueue.encode(line.toString());
+        for (ClientHandler handler : m.local.values()) {
+            handler.deliver(this, frame);
+        }
+        if (cluster != null) cluster.users(subscribers, roomId, String.join(",", m.names()));
+    }
+}
@@ -0,0 +1,162 @@
+package chat;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Singleton manager for chat rooms.
+ * In a Cluster, rooms owned by another node are created as mirrors of the owner's room.
+ *
+ * With eviction started, rooms nobody has been in for the idle timeout are
+ * dropped, so memory is bounded by the active rooms rather than every room
+ * ever joined. An evicted room's history is written to the RoomSpill, or is
+ * already in the MessageLog, and a later join rehydrates it like after a
+ * restart. Evicted mirrors are unsubscribed from their owner.
+ */
+public class ChatRoomManager {
+    private static final Logger logger = Logger.getLogger(ChatRoomManager.class.getName());
+
+    // Eager initialization ensures thread safety without explicit synchronization
+    private static final ChatRoomManager instance = new ChatRoomManager();
+
+    private final Map<String, ChatRoom> rooms = new ConcurrentHashMap<>();
+    private volatile MessageLog log;
+    private volatile Cluster cluster;
+    private volatile RoomSpill spill;
+    private volatile RoomLoops loops;
+
+    private ChatRoomManager() { }
+
+    public static ChatRoomManager getInstance() {
+        return instance;
+    }
+
+    /** Enables persistence: rooms created from now on log their messages and replay earlier ones. */
+    void setMessageLog(MessageLog log) {
+        this.log = log;
+    }
+
+    /** Joins a cluster: rooms created from now on are owned here or mirrored from their owner. */
+    void setCluster(Cluster cluster) {
+        this.cluster = cluster;
+    }
+
+    /** Partitions rooms created from now on across loops (see ChatRoom.execute). */
+    void setRoomLoops(RoomLoops loops) {
+        this.loops = loops;
+    }
+
+    /**
+     * Evicts rooms idle for idleMillis from now on, checking every few seconds.
+     * Their history goes to spill, or is replayed from the message log if spill is null.
+     */
+    void startEviction(long idleMillis, RoomSpill spill) {
+        this.spill = spill;
+        long period = Math.max(1000, Math.min(idleMillis / 2, 60_000));
+        ScheduledExecutorService evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "room-evictor");
+            t.setDaemon(true);
+            return t;
+        });
+        evictor.scheduleWithFixedDelay(() -> evictIdle(idleMillis), period, period, TimeUnit.MILLISECONDS);
+        logger.info("Evicting rooms idle for " + idleMillis / 1000 + "s");
+    }
+
+    /** Evicts every room that has been idle for idleMillis; returns how many. */
+    int evictIdle(long idleMillis) {
+        long idleSince = System.currentTimeMillis() - idleMillis;
+        int evicted = 0;
+        for (ChatRoom room : rooms.values()) {
+            if (room.isIdle(idleSince) && evict(room, idleSince)) evicted++;
+        }
+        if (evicted > 0) logger.info("Evicted " + evicted + " idle rooms, " + rooms.size() + " remain");
+        return evicted;
+    }
+
+    private boolean evict(ChatRoom room, long idleSince) {
+        String roomId = room.getRoomId();
+        // spill first: once evicted, a join looks the room up again and must find the file
+        RoomSpill s = room.getOwner() == null && log == null ? spill : null;
+        try {
+            if (s != null) s.write(room);
+            // marked evicted and unmapped in one step: a JOIN either got the room before
+            // (and is refused, then looks again) or creates the rehydrated replacement
+            rooms.computeIfPresent(roomId, (id, current) -> current == room && room.evictIfIdle(idleSince) ? null : current);
+            if (!room.isEvicted()) {
+                if (s != null) s.delete(roomId);   // joined meanwhile
+                return false;
+            }
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Cannot spill ChatRoom " + roomId + ", keeping it in memory", e);
+            return false;
+        }
+        ServerMetrics.getInstance().roomRemoved(room);
+        if (room.getOwner() != null) cluster.unsubscribe(room.getOwner(), roomId);
+        logger.fine("Evicted idle ChatRoom " + roomId);
+        return true;
+    }
+
+    /**
+     * The room, created if needed. A new room's history is restored by the
+     * thread that created it, outside the map; anyone else looking it up
+     * meanwhile waits for that, and eviction leaves it alone until then.
+     */
+    public ChatRoom getOrCreateRoom(String roomId) {
+        ChatRoom room = rooms.get(roomId);
+        if (room == null) {
+            ChatRoom[] created = new ChatRoom[1];
+            room = rooms.computeIfAbsent(roomId, id -> created[0] = createRoom(id));
+            if (room == created[0]) load(room);
+        }
+        room.awaitLoaded();
+        // only once the room is visible, so the owner's reply finds it
+        room.subscribeIfMirror();
+        logger.fine("Accessed/created ChatRoom: " + roomId);
+        return room;
+    }
+
+    // runs inside computeIfAbsent, so it only builds the room
+    private ChatRoom createRoom(String roomId) {
+        Cluster c = cluster;
+        RoomLoops rl = loops;
+        Executor mailbox = rl != null ? rl.forRoom(roomId) : RoomLoops.DIRECT;
+        if (c != null && !c.isLocal(roomId)) {
+            // the owner logs the room; the mirror's history comes from its reply to SUB
+            return new ChatRoom(roomId, null, c, c.ownerOf(roomId), mailbox);
+        }
+        return new ChatRoom(roomId, log, c, null, mailbox);
+    }
+
+    /** Restores a new room from the message log, or from the spill where evict() wrote it. */
+    private void load(ChatRoom room) {
+        String roomId = room.getRoomId();
+        try {
+            MessageLog l = log;
+            RoomSpill s = room.getOwner() == null && l == null ? spill : null;
+            if (room.getOwner() == null && l != null && l.hasRoom(roomId)) l.replay(room);
+            if (s != null) s.restore(room);
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Cannot rehydrate spilled ChatRoom " + roomId, e);
+        } finally {
+            room.markLoaded();
+        }
+        ServerMetrics.getInstance().roomCreated(room);
+    }
+
+    public ChatRoom getRoom(String roomId) {
+        return rooms.get(roomId);
+    }
+
+    /** Live view of all rooms. */
+    Collection<ChatRoom> getRooms() {
+        return rooms.values();
+    }
+}
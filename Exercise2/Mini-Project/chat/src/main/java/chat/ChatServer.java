@@ -0,0 +1,196 @@
+package chat;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * ChatServer: listens for TCP client connections and spawns ClientHandler threads.
+ *
+ * Simple usage:
+ *   java chat.ChatServer 9090
+ * If no port provided, default 9090 used.
+ *
+ * Options (see ServerConfig):
+ *   --transport=blocking|nio   thread per client (default) or selector event loops
+ *   --event-loops=<n>          number of event loop threads for nio (default: cores)
+ *   --executor=cached|virtual  blocking transport: cached platform pool (default) or
+ *                              one virtual thread per client (needs JDK 21+)
+ *   --outbound-capacity=<n>    lines queued per client before the overflow policy applies
+ *   --outbound-policy=drop-oldest|disconnect|coalesce
+ *   --flush-bytes=<n>          bytes batched into one socket write (default 64 KiB)
+ *   --history-capacity=<n>, --private-history-capacity=<n>,
+ *   --history-max-age=<seconds>, --history-max-bytes=<n>   history retention
+ *   --join-replay=<n>          messages replayed on JOIN (default 20)
+ *   --history-page=<n>         largest HISTORY/PMH page (default 100)
+ *   --log-dir=<dir>            persist messages and restore room history on restart
+ *   --log-segment-bytes=<n>, --log-fsync=always|interval|never,
+ *   --log-fsync-interval-ms=<n>, --log-max-segments=<n>    message log tuning
+ *   --room-threads=<n>|cores   run each room's commands on one of n room loops (default 0: on
+ *                              the client's thread)
+ *   --presence-window-ms=<n>   joins/leaves collected into one [PRESENCE] line (default 100)
+ *   --max-subscriptions=<n>    rooms a connection may SUB to besides its JOIN room (default 32)
+ *   --resume-window=<s>        how long RESUME can take over a lost session (default 60, 0 = off)
+ *   --room-idle-timeout=<s>    evict rooms nobody was in for this long (default 0 = never)
+ *   --spill-dir=<dir>          where evicted rooms' history is kept without --log-dir
+ *                              (default: a temporary directory, deleted on shutdown)
+ *   --rate-limit=<n>, --rate-burst=<n>             MSG/PM per second per connection
+ *   --room-rate-limit=<n>, --room-rate-burst=<n>   MSG/PM per second per room (both default off)
+ *   --heartbeat-interval=<s>   PING clients that sent nothing for this long (default 30, 0 = off)
+ *   --heartbeat-timeout=<s>    disconnect clients that sent nothing for this long (default 90, 0 = off)
+ *   --write-stall-timeout=<s>  disconnect clients whose output has not moved for this long (default 30)
+ *   --admin-token=<token>      enables the STATS command for clients presenting this token
+ *   --cluster=<host:port,...>  peer addresses of all nodes of a cluster (see Cluster)
+ *   --node=<host:port>         this node's entry in --cluster
+ *   --cluster-secret=<secret>  shared by all nodes; peers that do not present it are refused
+ *
+ * Metrics (see ServerMetrics) are also published as JMX MBeans under the "chat" domain.
+ */
+public class ChatServer {
+    private final int port;
+    private final ExecutorService pool;
+    private volatile ServerSocket serverSocket;
+
+    // ADDED: centralized logger
+    private static final Logger logger = Logger.getLogger(ChatServer.class.getName());
+
+    public ChatServer(int port) {
+        this(port, "cached");
+    }
+
+    public ChatServer(int port, String executorMode) {
+        this.port = port;
+        this.pool = createPool(executorMode);
+    }
+
+    /**
+     * Builds the executor that runs ClientHandlers. "virtual" gives each client
+     * its own virtual thread; on a JDK without virtual threads it falls back
+     * to the cached platform-thread pool.
+     */
+    static ExecutorService createPool(String executorMode) {
+        if ("virtual".equalsIgnoreCase(executorMode)) {
+            try {
+                // looked up reflectively so the server still builds and runs on JDK 17
+                return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException e) {
+                logger.warning("Virtual threads not available on this JDK, using cached thread pool");
+            }
+        }
+        return Executors.newCachedThreadPool();
+    }
+
+    /** Actual listening port, useful when started with port 0. */
+    public int getLocalPort() {
+        ServerSocket s = serverSocket;
+        return s != null ? s.getLocalPort() : port;
+    }
+
+    /** Closes the listening socket; start() then returns after shutting down the pool. */
+    public void stop() {
+        ServerSocket s = serverSocket;
+        if (s != null) {
+            try { s.close(); } catch (IOException ignored) {}
+        }
+    }
+
+    public void start() throws IOException {
+        try (ServerSocket serverSocket = new ServerSocket(port)) {
+            this.serverSocket = serverSocket;
+            logger.info("ChatServer started on port " + port);
+            while (true) {
+                Socket clientSocket = serverSocket.accept();
+                try {
+                    ClientHandler handler = new ClientHandler(clientSocket);
+                    pool.submit(handler);
+                    pool.submit(handler::writeLoop);
+                    logger.info("Accepted new client connection: " + clientSocket.getRemoteSocketAddress());
+                } catch (IOException e) {
+                    logger.log(Level.SEVERE, "Failed to create handler for client", e);
+                    clientSocket.close();
+                }
+            }
+        } catch (IOException e) {
+            if (serverSocket != null && serverSocket.isClosed()) {
+                logger.info("ChatServer on port " + getLocalPort() + " stopped");
+                return;
+            }
+            logger.log(Level.SEVERE, "Server socket failure on port " + port, e);
+            throw e; // rethrow so main() can handle
+        } finally {
+            shutdown();
+        }
+    }
+
+    private void shutdown() {
+        logger.info("Shutting down server thread pool...");
+        pool.shutdown();
+        try {
+            if (!pool.awaitTermination(5, TimeUnit.SECONDS)) {
+                logger.warning("Forcing shutdown of client handler threads");
+                pool.shutdownNow();
+            }
+        } catch (InterruptedException ignored) {
+            pool.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public static void main(String[] args) {
+        ServerConfig config = ServerConfig.parse(args);
+        ServerConfig.install(config);
+        ServerMetrics.getInstance().registerMBeans();
+        if (config.getLogDir() != null) {
+            try {
+                MessageLog log = MessageLog.open(config);
+                ChatRoomManager.getInstance().setMessageLog(log);
+                Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                    try {
+                        log.close();
+                    } catch (IOException e) {
+                        logger.log(Level.SEVERE, "Failed to close message log", e);
+                    }
+                }, "message-log-close"));
+            } catch (IOException e) {
+                logger.log(Level.SEVERE, "Cannot open message log in " + config.getLogDir(), e);
+                System.exit(1);
+            }
+        }
+        Heartbeat.start(config);
+        if (config.getRoomThreads() > 0) {
+            ChatRoomManager.getInstance().setRoomLoops(new RoomLoops(config.getRoomThreads()));
+        }
+        if (config.getRoomIdleTimeoutMillis() > 0) {
+            try {
+                RoomSpill spill = config.getLogDir() == null ? RoomSpill.open(config.getSpillDir()) : null;
+                if (spill != null) Runtime.getRuntime().addShutdownHook(new Thread(spill::close, "spill-close"));
+                ChatRoomManager.getInstance().startEviction(config.getRoomIdleTimeoutMillis(), spill);
+            } catch (IOException e) {
+                logger.log(Level.SEVERE, "Cannot open spill directory " + config.getSpillDir(), e);
+                System.exit(1);
+            }
+        }
+        if (!config.getClusterNodes().isEmpty()) {
+            try {
+                Cluster cluster = Cluster.open(config, ChatRoomManager.getInstance());
+                ChatRoomManager.getInstance().setCluster(cluster);
+                Runtime.getRuntime().addShutdownHook(new Thread(cluster::close, "cluster-close"));
+            } catch (IOException | IllegalArgumentException e) {
+                logger.log(Level.SEVERE, "Cannot join cluster: " + e.getMessage(), e);
+                System.exit(1);
+            }
+        }
+        try {
+            if (config.isNioTransport()) {
+                new NioChatServer(config.getPort(), config.getEventLoops()).start();
+            } else {
+                new ChatServer(config.getPort(), config.getExecutor()).start();
+            }
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Server failure: " + e.getMessage(), e);
+        }
+    }
+}
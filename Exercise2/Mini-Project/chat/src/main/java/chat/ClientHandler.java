@@ -0,0 +1,1155 @@
+package chat;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Handles a single client connection. Acts as:
+ *  - Adapter: adapts Socket Input/Output to MessageSender/receiver
+ *  - Observer: receives Message objects via notifyMessage()
+ *
+ * Protocol (client -> server):
+ *  JOIN <roomId> <username>      -> join or create room
+ *  MSG <text>                    -> broadcast to room
+ *  PM <toUsername> <text>        -> private message
+ *  USERS                         -> request active users list
+ *  HISTORY                       -> request the latest page of history
+ *  HISTORY <n>                   -> request the last n messages
+ *  HISTORY SINCE <id>            -> request messages after #id
+ *  HISTORY BEFORE <id> <n>       -> request up to n messages before #id
+ *  PROTO BIN                     -> switch this connection to binary frames (before JOIN)
+ *  STATS <token>                 -> server metrics report (token set with --admin-token)
+ *  RESUME <token> <lastSeq>      -> take over a lost session (instead of JOIN) and get the
+ *                                   room messages after #lastSeq
+ *  SEARCH <terms> [LIMIT n]      -> room messages containing all terms, newest first
+ *  SUB <roomId> [<username>]     -> also join roomId on this connection (as the JOIN name by default)
+ *  UNSUB <roomId>                -> leave a room joined with SUB
+ *  @<roomId> <command>           -> MSG, PM, USERS, HISTORY, PMH or SEARCH for a SUB room
+ *  PONG <n>                      -> answer to the server's "PING <n>" (see Heartbeat)
+ *  PING [<token>]                -> the server answers "PONG [<token>]"
+ *  QUIT                          -> disconnect
+ *
+ * Short commands supported:
+ *  /jn <roomId> <username>       -> join or create room
+ *  /pm <toUsername> <text>       -> private message
+ *  /u                            -> request active users list
+ *  /h                            -> request public history
+ *  /pmh <user> [<n> | SINCE <id> | BEFORE <id> <n>]
+ *                                -> request private message history with <user>
+ *  /q                            -> disconnect
+ *
+ * Server -> client messages:
+ *  text lines (plain). System lines prefixed with [SYSTEM], user list lines prefixed with [USERS]
+ *  (sent on JOIN and USERS); later joins and leaves arrive as "[PRESENCE] +user -user" deltas
+ *  Stored messages start with "#<id>", a per-room (per-conversation for PMs) monotonic id
+ *  that the paged HISTORY/PMH forms take as a cursor.
+ *  History pages (JOIN, HISTORY) come between "=== History start ===" and "=== History end ===".
+ *  JOIN (and RESUME) end with "SESSION <token> <lastSeq>": the token for RESUME and the id of
+ *  the newest message already sent; later messages carry their own ids.
+ *  Everything from or about a SUB room (messages, presence, replies) is prefixed with
+ *  "@<roomId> "; SUB answers "SUBSCRIBED <roomId>" and its history. Only the JOIN room is resumable.
+ *
+ * After PROTO BIN both directions use the frames described in BinaryProtocol;
+ * text commands and binary frames end up in the same command methods.
+ *
+ * Commands for the client's room are handed to the room with
+ * ChatRoom.execute(), so with --room-threads they run on the room's loop
+ * in the order this client sent them; replies go through the outbound
+ * queue from whichever thread runs them.
+ *
+ * The same handler serves both transports: run() drives it from a blocking
+ * Socket, while NioConnection feeds it bytes through onConnect()/onBytes()/onDisconnect().
+ */
+public class ClientHandler implements Runnable {
+    private static final Logger logger = Logger.getLogger(ClientHandler.class.getName());
+
+    private static final int MAX_BATCH_LINES = 1024;
+    private static final int READ_BUFFER_SIZE = 8 * 1024;
+
+    private final Socket socket;          // null when driven by an EventLoop
+    private final NioConnection connection; // null for the blocking transport
+    private final InputStream in;
+    private final OutputStream out;
+    private final OutboundQueue outbound = OutboundQueue.fromConfig();
+    private final InboundDecoder decoder = new InboundDecoder(new Dispatcher());
+    private final CommandParser parser = new CommandParser();
+    private final QueueSender sender;
+    private final String remoteAddress;
+    private final ChatRoomManager mgr = ChatRoomManager.getInstance();
+    private final ServerMetrics metrics = ServerMetrics.getInstance();
+    private final Sessions sessions = Sessions.getInstance();
+
+    private volatile String username;
+    private volatile ChatRoom room;
+    private final AtomicBoolean disconnected = new AtomicBoolean();
+    private volatile boolean closing;      // QUIT seen; the close may still wait behind room commands
+    private volatile String sessionToken;  // resume token of the current room, null if none
+    private volatile boolean binary;       // negotiated with PROTO BIN
+    private final TokenBucket rateLimit = TokenBucket.forConnection();  // null when --rate-limit is off
+    private volatile long rateLimited;     // written only by the thread reading this client
+    private volatile long lastWriteNanos;  // written only by this client's writer
+    private volatile long maxWriteNanos;
+    private volatile long lastReadAt = System.nanoTime();   // last input of any kind, see checkLiveness()
+    private volatile long lastWriteAt = System.nanoTime();  // last completed write to the transport
+    private long lastPingAt;     // Heartbeat thread only
+    private long backlogSince;   // Heartbeat thread only: output queued and unmoved since
+    private long pings;          // Heartbeat thread only
+    private final Map<String, Subscription> subscriptions = new ConcurrentHashMap<>();  // SUB rooms by id
+    private Subscription target;   // SUB room of the room-tagged command being handled; reader thread only
+
+    public ClientHandler(Socket socket) throws IOException {
+        this.socket = socket;
+        this.connection = null;
+        this.in = socket.getInputStream();
+        // writes go through when the buffer fills, so its size is the flush threshold
+        this.out = new BufferedOutputStream(socket.getOutputStream(), ServerConfig.get().getFlushBytes());
+        this.remoteAddress = String.valueOf(socket.getRemoteSocketAddress());
+        this.sender = new QueueSender();
+    }
+
+    /** Handler fed by an NioConnection; a null connection gives a detached handler (used by ChatRoomStress and the tests). */
+    ClientHandler(NioConnection connection, String remoteAddress) {
+        this.socket = null;
+        this.connection = connection;
+        this.in = null;
+        this.out = null;
+        this.remoteAddress = remoteAddress;
+        this.sender = new QueueSender();
+    }
+
+    /**
+     * Replies to this client's own commands. Lines only go on the outbound
+     * queue; the transport's writer puts them on the wire in batches.
+     */
+    private final class QueueSender implements MessageSender {
+        @Override
+        public void send(String text) {
+            outbound.add(encodeLine(text));
+            if (connection != null) connection.requestFlush();
+        }
+        @Override
+        public void sendAll(Iterable<String> lines) {
+            List<byte[]> frames = new ArrayList<>();
+            for (String line : lines) frames.add(encodeLine(line));
+            sendFrames(frames);
+        }
+        @Override public void close() throws IOException { closeTransport(); }
+    }
+
+    /** A room joined with SUB, besides the JOIN room. */
+    private static final class Subscription {
+        volatile ChatRoom room;   // replaced if the room was evicted while subscribing
+        final String username;
+
+        Subscription(ChatRoom room, String username) {
+            this.room = room;
+            this.username = username;
+        }
+    }
+
+    /** Routes decoded input to the command methods. */
+    private final class Dispatcher implements InboundDecoder.Sink {
+        @Override
+        public void onLine(byte[] buf, int start, int end) {
+            if (closing || outbound.isClosed() || !parser.parse(buf, start, end)) return;
+            try {
+                handleCommand(parser);
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "IOException in client handler", e);
+                onDisconnect();
+            }
+        }
+
+        @Override
+        public void onFrame(byte opcode, ByteBuffer payload) {
+            if (closing || outbound.isClosed()) return;
+            try {
+                handleFrame(opcode, payload);
+            } catch (IllegalArgumentException | BufferUnderflowException e) {
+                sender.send("ERROR malformed frame");
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "IOException in client handler", e);
+                onDisconnect();
+            }
+        }
+
+        @Override
+        public void onOversized() {
+            sender.send(binary ? "ERROR frame too long" : "ERROR line too long");
+            try { closeTransport(); } catch (IOException ignored) {}
+        }
+
+        @Override
+        public boolean acceptsMore() {
+            return !outbound.isBacklogged();
+        }
+    }
+
+    public String getUsername() { return username; }
+
+    String getRoomId() {
+        ChatRoom r = room;
+        return r != null ? r.getRoomId() : null;
+    }
+
+    String getRemoteAddress() { return remoteAddress; }
+
+    long getLastWriteNanos() { return lastWriteNanos; }
+
+    /** MSG/PM this client had refused by rate limits. */
+    long getRateLimited() { return rateLimited; }
+
+    long getMaxWriteNanos() { return maxWriteNanos; }
+
+    /** Time one batch of queued frames took to go out; called by this client's writer only. */
+    void recordWrite(long nanos) {
+        lastWriteAt = System.nanoTime();
+        lastWriteNanos = nanos;
+        if (nanos > maxWriteNanos) maxWriteNanos = nanos;
+        metrics.recordWrite(nanos);
+    }
+
+    public MessageSender getSender() {
+        return sender;
+    }
+
+    OutboundQueue getOutbound() { return outbound; }
+
+    /** Queues already-encoded reply frames, e.g. cached Message frames for a history replay. */
+    void sendFrames(List<byte[]> frames) {
+        outbound.addAll(frames);
+        if (connection != null) connection.requestFlush();
+    }
+
+    /**
+     * Room fan-out path for a text line shared by all recipients (system
+     * notices, user lists). Binary clients get it re-framed.
+     */
+    void deliver(ChatRoom from, byte[] lineFrame) {
+        enqueue(tagged(from, binary ? BinaryProtocol.fromLine(lineFrame) : lineFrame));
+    }
+
+    /**
+     * frame as is when it comes from the JOIN room; otherwise prefixed with
+     * "@<roomId> ", or wrapped in a ROOM frame for binary clients.
+     */
+    private byte[] tagged(ChatRoom from, byte[] frame) {
+        if (from == room) return frame;
+        byte[] id = from.getRoomIdBytes();
+        if (binary) return BinaryProtocol.roomFrame(id, frame);
+        byte[] line = new byte[id.length + 2 + frame.length];
+        line[0] = '@';
+        System.arraycopy(id, 0, line, 1, id.length);
+        line[id.length + 1] = ' ';
+        System.arraycopy(frame, 0, line, id.length + 2, frame.length);
+        return line;
+    }
+
+    /** Reply to a command for room r, tagged like its fan-out. */
+    private void reply(ChatRoom r, String text) {
+        outbound.add(tagged(r, encodeLine(text)));
+        if (connection != null) connection.requestFlush();
+    }
+
+    /** Reply frames for room r, tagged like its fan-out; frames must be mutable. */
+    private void replyFrames(ChatRoom r, List<byte[]> frames) {
+        if (r != room) frames.replaceAll(f -> tagged(r, f));
+        sendFrames(frames);
+    }
+
+    /**
+     * Queues a frame without blocking. If the queue is full and the overflow
+     * policy refuses it, the client is disconnected.
+     */
+    private void enqueue(byte[] frame) {
+        if (!outbound.offer(frame)) {
+            logger.warning("Outbound queue full, disconnecting slow client " + username + " (" + remoteAddress + ")");
+            try { closeTransport(); } catch (IOException ignored) {}
+            return;
+        }
+        if (connection != null) connection.requestFlush();
+    }
+
+    private byte[] encodeLine(String text) {
+        byte[] line = OutboundQueue.encode(text);
+        return binary ? BinaryProtocol.fromLine(line) : line;
+    }
+
+    private byte[] frameOf(Message msg) {
+        return binary ? msg.binaryFrame() : msg.frame();
+    }
+
+    /**
+     * Blocking transport writer: drains the outbound queue to the socket.
+     * ChatServer runs it on its own pool thread beside run(). Everything queued
+     * when the writer wakes up goes out with a single flush.
+     */
+    void writeLoop() {
+        List<byte[]> batch = new ArrayList<>();
+        try {
+            while (true) {
+                byte[] frame = outbound.poll(1, TimeUnit.SECONDS);
+                if (frame == null) {
+                    if (outbound.isClosed()) break;
+                    continue;
+                }
+                batch.add(frame);
+                outbound.drainTo(batch, MAX_BATCH_LINES);
+                long start = System.nanoTime();
+                for (byte[] f : batch) out.write(f);
+                out.flush();
+                recordWrite(System.nanoTime() - start);
+                batch.clear();
+            }
+        } catch (IOException e) {
+            logger.log(Level.FINE, "Write failed to " + remoteAddress, e);
+            try { closeTransport(); } catch (IOException ignored) {}
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            onConnect();
+            byte[] buf = new byte[READ_BUFFER_SIZE];
+            int n;
+            while ((n = in.read(buf)) != -1) {
+                lastReadAt = System.nanoTime();
+                ByteBuffer read = ByteBuffer.wrap(buf, 0, n);
+                decoder.feed(read);
+                while (read.hasRemaining()) {
+                    // replies the client is not reading: take no more commands until they drain
+                    outbound.awaitRoom();
+                    if (outbound.isClosed()) return;
+                    decoder.feed(read);
+                }
+            }
+        } catch (IOException e) {
+            // a socket closed from this side (QUIT, heartbeat reap) is not worth a warning
+            logger.log(outbound.isClosed() ? Level.FINE : Level.WARNING, "IOException in client handler", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            onDisconnect();
+        }
+    }
+
+    void onConnect() {
+        metrics.clientConnected(this);
+        logger.info("Client connected: " + remoteAddress);
+        sender.send("WELCOME SimpleChatServer.Please /jn <roomId> <username>");
+    }
+
+    /**
+     * Entry point for the NIO transport; runs on the connection's event loop.
+     * Consumes buf, except for the commands left in it while the outbound queue is backlogged.
+     */
+    void onBytes(ByteBuffer buf) {
+        lastReadAt = System.nanoTime();
+        decoder.feed(buf);
+    }
+
+    /**
+     * Heartbeat check, about once a second: PINGs a client that has been
+     * quiet for intervalNanos, and disconnects one that sent nothing for
+     * timeoutNanos or whose queued output did not move for stallNanos
+     * (0 disables each).
+     */
+    void checkLiveness(long now, long intervalNanos, long timeoutNanos, long stallNanos) {
+        if (disconnected.get() || outbound.isClosed()) return;
+        long quiet = now - lastReadAt;
+        if (timeoutNanos > 0 && quiet > timeoutNanos) {
+            reap("nothing received for " + TimeUnit.NANOSECONDS.toSeconds(quiet) + "s");
+            return;
+        }
+        if (stallNanos > 0) {
+            if (outbound.size() == 0) {
+                backlogSince = 0;
+            } else if (backlogSince == 0 || lastWriteAt - backlogSince > 0) {
+                backlogSince = now;
+            } else if (now - backlogSince > stallNanos) {
+                reap("output stalled for " + TimeUnit.NANOSECONDS.toSeconds(now - backlogSince) + "s");
+                return;
+            }
+        }
+        if (intervalNanos > 0 && quiet > intervalNanos && now - lastPingAt > intervalNanos) {
+            lastPingAt = now;
+            sender.send("PING " + ++pings);
+        }
+    }
+
+    /**
+     * Drops a dead connection the way a closed socket would: leaves its rooms, keeps its session resumable.
+     * Only the transport is closed here; the cleanup runs where a closed socket's would, on the reader
+     * thread or the connection's event loop, so it cannot interleave with a command still being handled.
+     */
+    private void reap(String reason) {
+        logger.info("Disconnecting " + remoteAddress + " (" + username + "): " + reason);
+        metrics.recordReaped();
+        try {
+            closeTransport();
+        } catch (IOException e) {
+            logger.log(Level.FINE, "Error closing connection of " + remoteAddress, e);
+        }
+    }
+
+    void onDisconnect() {
+        if (!disconnected.compareAndSet(false, true)) return;
+        metrics.clientDisconnected(this);
+        sessions.detach(sessionToken, ServerConfig.get().getResumeWindowMillis());
+        try { closeAndCleanup(); } catch (IOException ignored) {}
+        logger.info("Client disconnected: " + remoteAddress);
+    }
+
+    /** Text command; only the arguments that are kept get turned into Strings. */
+    private void handleCommand(CommandParser line) throws IOException {
+        CommandParser.Command cmd = line.command();
+        if (cmd == null && line.isRoomTag()) {
+            handleTagged(line);
+            return;
+        }
+        if (cmd == null) {
+            getSender().send("ERROR Unknown command: " + line.commandWord());
+            return;
+        }
+
+        switch (cmd) {
+            case JOIN:
+                if (line.parts() < 3) {
+                    getSender().send("ERROR Usage: JOIN <roomId> <username>");
+                    return;
+                }
+                handleJoin(line.arg(), line.rest());
+                break;
+            case MSG:
+                postMessage(line.afterCommand());
+                break;
+            case PM:
+                if (line.parts() < 3) {
+                    getSender().send("ERROR Usage: PM <toUsername> <text>");
+                    return;
+                }
+                sendPrivate(line.arg(), line.rest());
+                break;
+            case USERS:
+                listUsers();
+                break;
+            case HISTORY:
+                PageRequest page = PageRequest.parse(line.buffer(), line.commandEnd(), line.end());
+                if (page == null) {
+                    getSender().send("ERROR Usage: HISTORY [<n> | SINCE <id> | BEFORE <id> <n>]");
+                    return;
+                }
+                sendHistory(page);
+                break;
+            case PMH:
+                if (line.parts() < 2) {
+                    getSender().send("ERROR Usage: /pmh <username>");
+                    return;
+                }
+                PageRequest pmPage = PageRequest.parse(line.buffer(), line.restOffset(), line.end());
+                if (pmPage == null) {
+                    getSender().send("ERROR Usage: /pmh <username> [<n> | SINCE <id> | BEFORE <id> <n>]");
+                    return;
+                }
+                sendPrivateHistory(line.arg(), pmPage);
+                break;
+            case PROTO:
+                if (line.parts() < 2 || !line.argEqualsIgnoreCase("BIN") || room != null) {
+                    getSender().send("ERROR Usage: PROTO BIN (before JOIN)");
+                    return;
+                }
+                getSender().send("PROTO BIN OK");
+                binary = true;
+                outbound.useBinaryFraming();
+                decoder.switchToBinary();
+                break;
+            case STATS:
+                sendStats(line.afterCommand());
+                break;
+            case RESUME:
+                long lastSeq;
+                try {
+                    lastSeq = line.parts() < 3 ? -1 : Long.parseLong(line.rest());
+                } catch (NumberFormatException e) {
+                    lastSeq = -1;
+                }
+                if (lastSeq < 0) {
+                    getSender().send("ERROR Usage: RESUME <token> <lastSeq>");
+                    return;
+                }
+                handleResume(line.arg(), lastSeq);
+                break;
+            case SEARCH:
+                handleSearch(line);
+                break;
+            case SUB:
+                if (line.parts() < 2) {
+                    getSender().send("ERROR Usage: SUB <roomId> [<username>]");
+                    return;
+                }
+                subscribe(line.arg(), line.parts() < 3 ? null : line.rest());
+                break;
+            case UNSUB:
+                if (line.parts() < 2) {
+                    getSender().send("ERROR Usage: UNSUB <roomId>");
+                    return;
+                }
+                unsubscribe(line.arg());
+                break;
+            case PING:
+                String token = line.afterCommand();
+                getSender().send(token.isEmpty() ? "PONG" : "PONG " + token);
+                break;
+            case PONG:
+                break;   // lastReadAt is all a PONG is for
+            case QUIT:
+                quit();
+                break;
+        }
+    }
+
+    /** Binary counterpart of handleCommand(); fields are read straight from the frame payload. */
+    private void handleFrame(byte opcode, ByteBuffer payload) throws IOException {
+        switch (opcode) {
+            case BinaryProtocol.JOIN:
+                String roomId = BinaryProtocol.getString(payload);
+                handleJoin(roomId, BinaryProtocol.getString(payload));
+                break;
+            case BinaryProtocol.MSG:
+                postMessage(BinaryProtocol.getText(payload));
+                break;
+            case BinaryProtocol.PM:
+                String to = BinaryProtocol.getString(payload);
+                sendPrivate(to, BinaryProtocol.getText(payload));
+                break;
+            case BinaryProtocol.USERS:
+                listUsers();
+                break;
+            case BinaryProtocol.HISTORY:
+                sendHistory(PageRequest.read(payload));
+                break;
+            case BinaryProtocol.PMH:
+                String other = BinaryProtocol.getString(payload);
+                sendPrivateHistory(other, PageRequest.read(payload));
+                break;
+            case BinaryProtocol.RESUME:
+                String token = BinaryProtocol.getString(payload);
+                handleResume(token, BinaryProtocol.getVarint(payload));
+                break;
+            case BinaryProtocol.SEARCH:
+                long limit = BinaryProtocol.getVarint(payload);
+                search(BinaryProtocol.getText(payload), (int) Math.min(limit, Integer.MAX_VALUE));
+                break;
+            case BinaryProtocol.SUB:
+                String subRoom = BinaryProtocol.getString(payload);
+                String subName = BinaryProtocol.getString(payload);
+                subscribe(subRoom, subName.isEmpty() ? null : subName);
+                break;
+            case BinaryProtocol.UNSUB:
+                unsubscribe(BinaryProtocol.getString(payload));
+                break;
+            case BinaryProtocol.IN:
+                Subscription s = subscription(BinaryProtocol.getString(payload));
+                byte inner = payload.get();
+                if (s == null) return;
+                if (!isRoomFrame(inner)) {
+                    sender.send("ERROR opcode " + (inner & 0xFF) + " cannot be sent to a subscribed room");
+                    return;
+                }
+                target = s;
+                try {
+                    handleFrame(inner, payload);
+                } finally {
+                    target = null;
+                }
+                break;
+            case BinaryProtocol.PONG:
+                break;
+            case BinaryProtocol.QUIT:
+                quit();
+                break;
+            case BinaryProtocol.STATS:
+                sendStats(BinaryProtocol.getText(payload));
+                break;
+            default:
+                getSender().send("ERROR Unknown opcode: " + (opcode & 0xFF));
+        }
+    }
+
+    /** "@<roomId> <command>": the command runs against that SUB room instead of the JOIN room. */
+    private void handleTagged(CommandParser line) throws IOException {
+        Subscription s = subscription(line.taggedRoom());
+        if (s == null) return;
+        if (!line.parseTagged() || line.command() == null || !isRoomCommand(line.command())) {
+            sender.send("ERROR Usage: @<roomId> MSG|PM|USERS|HISTORY|PMH|SEARCH ...");
+            return;
+        }
+        target = s;
+        try {
+            handleCommand(line);
+        } finally {
+            target = null;
+        }
+    }
+
+    /** The SUB room with this id, or null after replying with an error. */
+    private Subscription subscription(String roomId) {
+        Subscription s = subscriptions.get(roomId);
+        if (s == null) sender.send("ERROR not subscribed to " + roomId);
+        return s;
+    }
+
+    private static boolean isRoomCommand(CommandParser.Command cmd) {
+        switch (cmd) {
+            case MSG: case PM: case USERS: case HISTORY: case PMH: case SEARCH:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static boolean isRoomFrame(byte opcode) {
+        switch (opcode) {
+            case BinaryProtocol.MSG: case BinaryProtocol.PM: case BinaryProtocol.USERS:
+            case BinaryProtocol.HISTORY: case BinaryProtocol.PMH: case BinaryProtocol.SEARCH:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /** A command for the room this client is in, run by ChatRoom.execute(). */
+    @FunctionalInterface
+    private interface RoomCommand {
+        void run(ChatRoom room, String username) throws IOException;
+    }
+
+    /**
+     * Hands command to the current room (the SUB room of a room-tagged
+     * command). It runs as the room and name this client has now, and only
+     * if the join under that name went through.
+     */
+    private void inRoom(RoomCommand command) {
+        Subscription t = target;
+        ChatRoom r = t != null ? t.room : room;
+        String u = t != null ? t.username : username;
+        if (r == null) {
+            sender.send("ERROR join a room first");
+            return;
+        }
+        r.execute(() -> {
+            if (!r.hasMember(u, this)) {
+                sender.send("ERROR join a room first");
+                return;
+            }
+            try {
+                command.run(r, u);
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Room command failed for " + u, e);
+            }
+        });
+    }
+
+    /**
+     * Admission control for MSG/PM, before anything reaches the room: takes a
+     * token from this connection's and then the room's bucket, or replies
+     * "ERROR rate limited".
+     */
+    private boolean admit() {
+        ChatRoom r = target != null ? target.room : room;
+        if ((rateLimit == null || rateLimit.tryAcquire()) && (r == null || r.admitMessage())) return true;
+        rateLimited++;
+        metrics.recordRateLimited();
+        sender.send("ERROR rate limited");
+        return false;
+    }
+
+    private void postMessage(String text) {
+        if (admit()) inRoom((r, u) -> {
+            try {
+                r.broadcast(new Message(u, null, text, false));
+            } catch (IOException e) {
+                notSaved(r, e);
+            }
+        });
+    }
+
+    private void sendPrivate(String toUser, String text) {
+        if (admit()) inRoom((r, u) -> {
+            try {
+                r.sendPrivate(u, toUser, text);
+            } catch (IOException e) {
+                notSaved(r, e);
+            }
+        });
+    }
+
+    /** The message went out, but the MessageLog could not keep it. */
+    private void notSaved(ChatRoom r, IOException e) {
+        logger.log(Level.WARNING, "Message from " + username + " not saved in " + r.getRoomId(), e);
+        sender.send("ERROR message not saved");
+    }
+
+    private void listUsers() {
+        inRoom((r, u) -> reply(r, "[USERS] " + String.join(",", r.getActiveUsers())));
+    }
+
+    private void sendHistory(PageRequest page) {
+        inRoom((r, u) -> sendHistoryPage(r, r.getHistory(), page,
+                "=== History start ===", "=== History end ===", "HISTORY"));
+    }
+
+    private void sendPrivateHistory(String otherUser, PageRequest page) {
+        inRoom((r, u) -> {
+            MessageHistory.Snapshot pmHistory = r.getPrivateHistory(u, otherUser);
+            if (pmHistory.isEmpty()) {
+                reply(r, "[SYSTEM] No private history with " + otherUser);
+            } else {
+                sendHistoryPage(r, pmHistory, page,
+                        "=== Private History with " + otherUser + " start ===",
+                        "=== Private History end ===", "/pmh " + otherUser);
+            }
+        });
+    }
+
+    /** Text form of SEARCH: the terms, optionally followed by "LIMIT <n>". */
+    private void handleSearch(CommandParser line) throws IOException {
+        byte[] buf = line.buffer();
+        int start = line.commandEnd();
+        int end = line.end();
+        int limit = 0;
+        // scan back from the end: "... LIMIT <n>" only counts with at least one term before it
+        long last = CommandParser.prevToken(buf, start, end);
+        long keyword = last < 0 ? -1 : CommandParser.prevToken(buf, start, (int) (last >>> 32));
+        if (keyword >= 0 && CommandParser.matches(buf, (int) (keyword >>> 32), (int) keyword, "LIMIT")
+                && CommandParser.prevToken(buf, start, (int) (keyword >>> 32)) >= 0) {
+            try {
+                limit = PageRequest.parseInt(buf, last);
+            } catch (NumberFormatException e) {
+                limit = -1;
+            }
+            end = (int) (keyword >>> 32);
+        }
+        while (start < end && CommandParser.isBlank(buf[start])) start++;
+        while (end > start && CommandParser.isBlank(buf[end - 1])) end--;
+        String query = new String(buf, start, end - start, StandardCharsets.UTF_8);
+        if (limit < 0 || SearchIndex.terms(query).isEmpty()) {
+            getSender().send("ERROR Usage: SEARCH <terms> [LIMIT n]");
+            return;
+        }
+        search(query, limit);
+    }
+
+    /** The newest matches for query; at most one --history-page of them, and no more than the outbound queue fits. */
+    private void search(String query, int limit) {
+        int maxPage = ServerConfig.get().getHistoryPageSize();
+        int wanted = limit > 0 ? Math.min(limit, maxPage) : maxPage;
+        inRoom((r, u) -> {
+            List<Message> hits = r.search(query, Math.min(wanted, Math.max(1, replyRoom(2))));
+            if (hits.isEmpty()) {
+                reply(r, "[SYSTEM] No messages match " + query);
+                return;
+            }
+            List<byte[]> frames = new ArrayList<>(hits.size() + 2);
+            frames.add(encodeLine("=== Search results for " + query + " ==="));
+            for (Message m : hits) frames.add(frameOf(m));
+            frames.add(encodeLine("=== Search end ==="));
+            replyFrames(r, frames);
+        });
+    }
+
+    /** Admin-only metrics report; works without joining a room. */
+    private void sendStats(String token) {
+        String expected = ServerConfig.get().getAdminToken();
+        if (expected == null || expected.isEmpty()) {
+            sender.send("ERROR STATS is disabled");
+            return;
+        }
+        if (!MessageDigest.isEqual(expected.getBytes(StandardCharsets.UTF_8), token.getBytes(StandardCharsets.UTF_8))) {
+            logger.warning("Rejected STATS from " + remoteAddress);
+            sender.send("ERROR not authorized");
+            return;
+        }
+        List<String> stats = metrics.statsLines();
+        int fits = Math.max(1, replyRoom(3));
+        List<String> lines = new ArrayList<>();
+        lines.add("=== Stats start ===");
+        lines.addAll(stats.size() > fits ? stats.subList(0, fits) : stats);
+        if (stats.size() > fits) lines.add("[SYSTEM] " + (stats.size() - fits) + " more lines, see JMX");
+        lines.add("=== Stats end ===");
+        sender.sendAll(lines);
+    }
+
+    /** A mirrored room's owner refused our join: the name is taken on another node. */
+    void joinRejected(ChatRoom rejected) {
+        if (room == rejected) {
+            room = null;
+            username = null;
+        }
+        Subscription s = subscriptions.get(rejected.getRoomId());
+        if (s != null && s.room == rejected) subscriptions.remove(rejected.getRoomId(), s);
+        sender.send("ERROR username already in use in room");
+    }
+
+    /** SUB: joins roomId on this connection as well; its output is tagged with the room id. */
+    private void subscribe(String roomId, String name) {
+        String u = name != null ? name : username;
+        if (u == null) {
+            sender.send("ERROR Usage: SUB <roomId> <username> (or JOIN first)");
+            return;
+        }
+        ChatRoom current = room;
+        if ((current != null && current.getRoomId().equals(roomId)) || subscriptions.containsKey(roomId)) {
+            sender.send("ERROR already in room " + roomId);
+            return;
+        }
+        if (subscriptions.size() >= ServerConfig.get().getMaxSubscriptions()) {
+            sender.send("ERROR too many subscriptions");
+            return;
+        }
+        Subscription s = new Subscription(mgr.getOrCreateRoom(roomId), u);
+        // registered first, like JOIN: tagged commands sent after SUB follow it into the room's mailbox
+        subscriptions.put(roomId, s);
+        s.room.execute(() -> completeSubscribe(s, roomId));
+    }
+
+    /** The part of SUB that runs on the room's loop. */
+    private void completeSubscribe(Subscription s, String roomId) {
+        ChatRoom chatRoom = s.room;
+        boolean joined;
+        while (!(joined = chatRoom.addUser(s.username, this)) && chatRoom.isEvicted()) {
+            chatRoom = mgr.getOrCreateRoom(roomId);
+            s.room = chatRoom;
+        }
+        if (!joined) {
+            subscriptions.remove(roomId, s);
+            sender.send("ERROR username already in use in room " + roomId);
+            return;
+        }
+        logger.info("User '" + s.username + "' subscribed to room: " + roomId);
+        sender.send("SUBSCRIBED " + roomId);
+        MessageHistory.Snapshot history = chatRoom.getHistory();
+        MessageHistory.Snapshot page = history.latest(Math.min(ServerConfig.get().getJoinReplay(), replyRoom(3)));
+        replyFrames(chatRoom, historyFrames(page, "=== History start ===", "=== History end ===",
+                olderHint(history, page, "HISTORY")));
+    }
+
+    /** UNSUB: leaves a room joined with SUB. */
+    private void unsubscribe(String roomId) {
+        Subscription s = subscriptions.remove(roomId);
+        if (s == null) {
+            sender.send("ERROR not subscribed to " + roomId);
+            return;
+        }
+        ChatRoom r = s.room;
+        r.execute(() -> {
+            if (r.hasMember(s.username, this)) r.removeUser(s.username);
+            sender.send("UNSUBSCRIBED " + roomId);
+        });
+    }
+
+    private void handleJoin(String roomId, String username) {
+        if (subscriptions.containsKey(roomId)) {
+            sender.send("ERROR already subscribed to " + roomId + ", UNSUB it first");
+            return;
+        }
+        sessions.close(sessionToken);
+        sessionToken = null;
+        ChatRoom previousRoom = this.room;
+        String previousName = this.username;
+        if (previousRoom != null && previousName != null) leave(previousRoom, previousName);
+        ChatRoom chatRoom = mgr.getOrCreateRoom(roomId);
+        // set first: commands sent after JOIN follow it into the room's mailbox, and a mirrored
+        // room's owner may refuse the name (joinRejected) before addUser returns
+        this.room = chatRoom;
+        this.username = username;
+        chatRoom.execute(() -> completeJoin(chatRoom, roomId, username, previousRoom, previousName));
+    }
+
+    /** Leaves r as u, unless that join never went through (the name may belong to someone else). */
+    private void leave(ChatRoom r, String u) {
+        r.execute(() -> {
+            if (r.hasMember(u, this)) r.removeUser(u);
+        });
+    }
+
+    /** The part of JOIN that runs on the room's loop. */
+    private void completeJoin(ChatRoom chatRoom, String roomId, String username,
+                              ChatRoom previousRoom, String previousName) {
+        boolean joined;
+        while (!(joined = chatRoom.addUser(username, this)) && chatRoom.isEvicted()) {
+            // evicted since the lookup: join its rehydrated replacement, which hashes to this same loop
+            ChatRoom replacement = mgr.getOrCreateRoom(roomId);
+            if (room == chatRoom) room = replacement;
+            chatRoom = replacement;
+        }
+        if (!joined) {
+            if (room == chatRoom && username.equals(this.username)) {
+                this.room = previousRoom;
+                this.username = previousName;
+            }
+            sender.send("ERROR username already in use in room");
+            return;
+        }
+        logger.info("User '" + username + "' joined room: " + roomId);
+        sender.send("JOINED " + roomId);
+        MessageHistory.Snapshot history = chatRoom.getHistory();
+        MessageHistory.Snapshot page = history.latest(Math.min(ServerConfig.get().getJoinReplay(), replyRoom(3)));
+        sendFrames(historyFrames(page, "=== History start ===", "=== History end ===",
+                olderHint(history, page, "HISTORY")));
+        openSession(roomId, username, history);
+    }
+
+    /** Issues the resume token for the membership just set up, unless --resume-window is 0. */
+    private void openSession(String roomId, String username, MessageHistory.Snapshot sent) {
+        if (ServerConfig.get().getResumeWindowMillis() == 0) return;
+        String token = sessions.open(roomId, username, this);
+        sessionToken = token;
+        sender.send("SESSION " + token + " " + sent.lastId());
+    }
+
+    /**
+     * RESUME: back into the session's room under its name. A handler still
+     * holding the name (its connection died unnoticed) is swapped out in one
+     * step and closed; if it already left, this joins again.
+     */
+    private void handleResume(String token, long lastSeq) {
+        if (room != null) {
+            sender.send("ERROR RESUME must come before JOIN");
+            return;
+        }
+        Sessions.Session session = sessions.take(token);
+        if (session == null) {
+            sender.send("ERROR unknown or expired session");
+            return;
+        }
+        ChatRoom chatRoom = mgr.getOrCreateRoom(session.roomId);
+        this.room = chatRoom;
+        this.username = session.username;
+        chatRoom.execute(() -> completeResume(chatRoom, session, lastSeq));
+    }
+
+    /** The part of RESUME that runs on the room's loop. */
+    private void completeResume(ChatRoom chatRoom, Sessions.Session session, long lastSeq) {
+        boolean takenOver;
+        while (true) {
+            takenOver = chatRoom.replaceUser(session.username, session.handler, this);
+            if (takenOver || chatRoom.addUser(session.username, this) || !chatRoom.isEvicted()) break;
+            ChatRoom replacement = mgr.getOrCreateRoom(session.roomId);
+            if (room == chatRoom) room = replacement;
+            chatRoom = replacement;
+        }
+        if (!takenOver && !chatRoom.hasMember(session.username, this)) {
+            if (room == chatRoom) {
+                room = null;
+                username = null;
+            }
+            sender.send("ERROR username already in use in room");
+            return;
+        }
+        if (takenOver) session.handler.takenOver();
+        logger.info("User '" + session.username + "' resumed in room: " + session.roomId);
+        sender.send("RESUMED " + session.roomId);
+        MessageHistory.Snapshot history = chatRoom.getHistory();
+        long lost = history.firstId() - 1 - lastSeq;
+        if (lost > 0) sender.send("[SYSTEM] " + lost + " messages no longer available");
+        sendHistoryPage(chatRoom, history, new PageRequest(BinaryProtocol.HISTORY_SINCE, lastSeq, 0),
+                "=== Missed start ===", "=== Missed end ===", "HISTORY");
+        openSession(session.roomId, session.username, history);
+    }
+
+    /** Another connection resumed this one's session: stop serving it without leaving the room. */
+    void takenOver() {
+        closing = true;
+        try {
+            closeTransport();
+        } catch (IOException e) {
+            logger.log(Level.FINE, "Error closing taken-over connection " + remoteAddress, e);
+        }
+    }
+
+    private void quit() throws IOException {
+        sessions.close(sessionToken);
+        sessionToken = null;
+        closeAndCleanup();
+    }
+
+    /** A HISTORY/PMH page: the latest n, everything since an id, or n before an id. */
+    private static final class PageRequest {
+        final int mode;
+        final long id;
+        final int n;
+
+        PageRequest(int mode, long id, int n) {
+            this.mode = mode;
+            this.id = id;
+            this.n = n;
+        }
+
+        /**
+         * Parses "", "<n>", "SINCE <id>" or "BEFORE <id> <n>" from buf[start, end)
+         * without copying; null if malformed.
+         */
+        static PageRequest parse(byte[] buf, int start, int end) {
+            long t0 = CommandParser.nextToken(buf, start, end);
+            long t1 = t0 < 0 ? -1 : CommandParser.nextToken(buf, (int) t0, end);
+            long t2 = t1 < 0 ? -1 : CommandParser.nextToken(buf, (int) t1, end);
+            if (t2 >= 0 && CommandParser.nextToken(buf, (int) t2, end) >= 0) return null;
+            try {
+                if (t0 < 0) return new PageRequest(BinaryProtocol.HISTORY_LATEST, 0, 0);
+                if (t1 < 0) return new PageRequest(BinaryProtocol.HISTORY_LATEST, 0, parseInt(buf, t0));
+                if (t2 < 0 && keyword(buf, t0, "SINCE")) {
+                    return new PageRequest(BinaryProtocol.HISTORY_SINCE, parseId(buf, t1), 0);
+                }
+                if (t2 >= 0 && keyword(buf, t0, "BEFORE")) {
+                    return new PageRequest(BinaryProtocol.HISTORY_BEFORE, parseId(buf, t1), parseInt(buf, t2));
+                }
+            } catch (NumberFormatException ignored) {
+                // fall through to null
+            }
+            return null;
+        }
+
+        /** Reads [mode][varint id][varint n] from a binary frame. */
+        static PageRequest read(ByteBuffer payload) {
+            int mode = payload.get();
+            long id = BinaryProtocol.getVarint(payload);
+            long n = BinaryProtocol.getVarint(payload);
+            if (mode < BinaryProtocol.HISTORY_LATEST || mode > BinaryProtocol.HISTORY_BEFORE || id < 0 || n < 0) {
+                throw new IllegalArgumentException("bad history request");
+            }
+            return new PageRequest(mode, id, (int) Math.min(n, Integer.MAX_VALUE));
+        }
+
+        // tokens are packed (start << 32 | end), see CommandParser.nextToken()
+
+        private static long parseId(byte[] buf, long token) {
+            int start = (int) (token >>> 32);
+            return CommandParser.parseLong(buf, buf[start] == '#' ? start + 1 : start, (int) token);
+        }
+
+        private static int parseInt(byte[] buf, long token) {
+            long v = CommandParser.parseLong(buf, (int) (token >>> 32), (int) token);
+            if (v != (int) v) throw new NumberFormatException("out of int range");
+            return (int) v;
+        }
+
+        private static boolean keyword(byte[] buf, long token, String upper) {
+            return CommandParser.matches(buf, (int) (token >>> 32), (int) token, upper);
+        }
+    }
+
+    /**
+     * Sends one page of a history; pages never exceed --history-page, nor the
+     * room left in the outbound queue (the cursor hint covers the rest).
+     */
+    private void sendHistoryPage(ChatRoom r, MessageHistory.Snapshot history, PageRequest request,
+                                 String header, String footer, String command) {
+        int maxPage = Math.min(ServerConfig.get().getHistoryPageSize(), replyRoom(3));
+        MessageHistory.Snapshot page;
+        String hint;
+        if (request.mode == BinaryProtocol.HISTORY_SINCE) {
+            // a cursor older than what is retained continues from the oldest retained message
+            long after = Math.max(request.id, history.firstId() - 1);
+            page = history.since(after);
+            hint = null;
+            if (page.size() > maxPage) {
+                // oldest page first, the client continues from the last id it got
+                page = history.before(after + maxPage + 1, maxPage);
+                hint = "[SYSTEM] more messages, use " + command + " SINCE " + page.lastId();
+            }
+        } else {
+            int n = request.n > 0 ? Math.min(request.n, maxPage) : maxPage;
+            page = request.mode == BinaryProtocol.HISTORY_BEFORE ? history.before(request.id, n) : history.latest(n);
+            hint = olderHint(history, page, command);
+        }
+        replyFrames(r, historyFrames(page, header, footer, hint));
+    }
+
+    /** How many messages a reply with that many framing lines can carry before the outbound queue is full. */
+    private int replyRoom(int framing) {
+        return Math.max(0, outbound.remainingCapacity() - framing);
+    }
+
+    /** Cursor line for fetching what precedes page, or null if nothing does. */
+    private static String olderHint(MessageHistory.Snapshot history, MessageHistory.Snapshot page, String command) {
+        long older = page.firstId() - history.firstId();
+        if (older <= 0) return null;
+        return "[SYSTEM] " + older + " older messages, use " + command + " BEFORE " + page.firstId() + " <n>";
+    }
+
+    /** Cached message frames, optionally wrapped in header and footer lines and followed by a hint. */
+    private List<byte[]> historyFrames(MessageHistory.Snapshot page, String header, String footer, String hint) {
+        List<byte[]> frames = new ArrayList<>(page.size() + 3);
+        if (header != null) frames.add(encodeLine(header));
+        for (Message m : page) frames.add(frameOf(m));
+        if (footer != null) frames.add(encodeLine(footer));
+        if (hint != null) frames.add(encodeLine(hint));
+        return frames;
+    }
+
+    public void notifyMessage(ChatRoom from, Message msg) {
+        if (msg.isPrivate()) {
+            String me = nameIn(from);
+            if (msg.getTo().equals(me) || msg.getFrom().equals(me)) {
+                enqueue(tagged(from, frameOf(msg)));
+            }
+        } else {
+            enqueue(tagged(from, frameOf(msg)));
+        }
+    }
+
+    /** This client's name in room r: the JOIN name or the one it subscribed with. */
+    private String nameIn(ChatRoom r) {
+        if (r == room) return username;
+        Subscription s = subscriptions.get(r.getRoomId());
+        return s != null ? s.username : null;
+    }
+
+    private void closeAndCleanup() throws IOException {
+        closing = true;
+        for (Subscription s : subscriptions.values()) leave(s.room, s.username);
+        subscriptions.clear();
+        ChatRoom r = room;
+        String u = username;
+        if (u == null || r == null) {
+            closeTransport();
+            return;
+        }
+        username = null;
+        // behind the commands already queued for the room, so their replies still go out
+        r.execute(() -> {
+            if (r.hasMember(u, this)) r.removeUser(u);
+            try {
+                closeTransport();
+            } catch (IOException e) {
+                logger.log(Level.FINE, "Error closing connection of " + u, e);
+            }
+        });
+    }
+
+    /** Closes the connection only; room cleanup follows from the reader side noticing. */
+    private void closeTransport() throws IOException {
+        outbound.close();
+        if (socket != null) {
+            try { socket.close(); } catch (Exception ignored) {}
+        } else if (connection != null) {
+            connection.close();
+        }
+    }
+}
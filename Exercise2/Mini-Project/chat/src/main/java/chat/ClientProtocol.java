@@ -0,0 +1,81 @@
+package chat;
+
+/**
+ * Client side of the text protocol: the wire commands a client sends and the
+ * translation of the console shorthand ({@code /jn}, {@code /pm}, ...) into them.
+ * Shared by {@link ChatClient} and {@link LoadGenerator}.
+ */
+final class ClientProtocol {
+    static final String USERS = "USERS";
+    static final String HISTORY = "HISTORY";
+    static final String QUIT = "QUIT";
+
+    private ClientProtocol() {}
+
+    static String join(String roomId, String username) {
+        return "JOIN " + roomId + " " + username;
+    }
+
+    static String msg(String text) {
+        return "MSG " + text;
+    }
+
+    static String pm(String to, String text) {
+        return "PM " + to + " " + text;
+    }
+
+    static String pmh(String user) {
+        return "PMH " + user;
+    }
+
+    /**
+     * Translates one trimmed, non-empty console line into a wire command.
+     * Anything that isn't a shorthand is sent as a room message, so is a
+     * plain "@alice are you there?"; only "@room /command" targets a room.
+     *
+     * @throws IllegalArgumentException with the usage text when a shorthand is missing arguments
+     */
+    static String translate(String line) {
+        int space = line.indexOf(' ');
+        if (line.startsWith("@") && space > 1) {
+            // "@room /cmd ...": the command is translated as usual and sent to that subscribed room
+            String rest = line.substring(space + 1).trim();
+            if (rest.startsWith("/")) return line.substring(0, space) + " " + translate(rest);
+        }
+        if (line.startsWith("/jn ")) {
+            return "JOIN " + line.substring(4).trim();
+        } else if (line.startsWith("/msg ")) {
+            return msg(line.substring(5).trim());
+        } else if (line.startsWith("/pm ")) {
+            String rest = line.substring(4).trim();
+            int firstSpace = rest.indexOf(' ');
+            if (firstSpace <= 0) {
+                throw new IllegalArgumentException("Usage: /pm <user> <message>");
+            }
+            return pm(rest.substring(0, firstSpace), rest.substring(firstSpace + 1));
+        } else if (line.equals("/u")) {
+            return USERS;
+        } else if (line.equals("/h")) {
+            return HISTORY;
+        } else if (line.startsWith("/pmh ")) {
+            String target = line.length() > 5 ? line.substring(5).trim() : "";
+            if (target.isEmpty()) {
+                throw new IllegalArgumentException("Usage: /pmh  <user>");
+            }
+            return pmh(target);
+        } else if (line.startsWith("/sub ")) {
+            return "SUB " + line.substring(5).trim();
+        } else if (line.startsWith("/unsub ")) {
+            return "UNSUB " + line.substring(7).trim();
+        } else if (line.startsWith("/search ")) {
+            return "SEARCH " + line.substring(8).trim();
+        } else if (line.startsWith("/resume ")) {
+            return "RESUME " + line.substring(8).trim();
+        } else if (line.startsWith("/stats ")) {
+            return "STATS " + line.substring(7).trim();
+        } else if (line.equals("/q")) {
+            return QUIT;
+        }
+        return msg(line);
+    }
+}
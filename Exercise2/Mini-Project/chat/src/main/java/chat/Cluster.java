@@ -0,0 +1,438 @@
+package chat;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.function.Predicate;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Membership in a cluster of ChatServers (--cluster, --node).
+ *
+ * Every room has one owning node, picked by a HashRing over the node ids.
+ * The owner's ChatRoom is authoritative: it assigns message ids, keeps the
+ * history and the message log, and decides who is in the room. Any other
+ * node whose users join the room holds a mirror ChatRoom that forwards
+ * posts, PMs and joins/leaves to the owner, and gets back every stored
+ * message, the member list and, when it subscribes, the owner's history.
+ *
+ * Nodes talk over one PeerLink per peer in each direction, using frames in
+ * the BinaryProtocol layout ([varint length][opcode][payload]):
+ *
+ *   HELLO    str node id, str secret           first frame on every link
+ *   SUB      str room                          mirror -> owner: start relaying this room
+ *   POST     str room, str from, text          mirror -> owner: room message
+ *   PRIVATE  str room, str from, str to, text  mirror -> owner: PM
+ *   JOINED   str room, str user                mirror -> owner: a local user joined
+ *   LEFT     str room, str user                mirror -> owner: a local user left
+ *   RELAY    message log record                owner -> mirror: stored message, deliver it
+ *   HISTORY  message log record                owner -> mirror: history on SUB, store only
+ *   USERS    str room, text                    owner -> mirror: comma-separated member list
+ *   KICK     str room, str user                owner -> mirror: join refused, name taken
+ *   UNSUB    str room                          mirror -> owner: stop relaying, mirror evicted
+ *
+ * A node accepts peers only on the host of its own --node address, and only
+ * links whose HELLO names a configured node and carries --cluster-secret.
+ * A few connections at a time may be waiting for their HELLO, and only
+ * briefly; each node has one current inbound link, a reconnect replaces it.
+ * The secret travels in clear text, so peer ports belong on a private
+ * network. POST and PRIVATE are only taken from a node for users it
+ * announced with JOINED.
+ *
+ * Ownership is static: the ring comes from configuration and rooms do not
+ * move when a node is down. While a peer is unreachable, frames for it are
+ * queued by its PeerLink; when its inbound link drops, the members it
+ * contributed are removed from the rooms this node owns.
+ */
+final class Cluster {
+    private static final Logger logger = Logger.getLogger(Cluster.class.getName());
+
+    static final byte HELLO = 0x01;
+    static final byte SUB = 0x02;
+    static final byte POST = 0x03;
+    static final byte PRIVATE = 0x04;
+    static final byte JOINED = 0x05;
+    static final byte LEFT = 0x06;
+    static final byte RELAY = 0x07;
+    static final byte HISTORY = 0x08;
+    static final byte USERS = 0x09;
+    static final byte KICK = 0x0A;
+    static final byte UNSUB = 0x0B;
+
+    private static final int MAX_PEER_FRAME = 1024 * 1024;
+    private static final int HANDSHAKE_TIMEOUT_MILLIS = 10_000;
+    private static final int MAX_UNAUTHENTICATED = 16;
+
+    private final String self;
+    private final String secret;
+    private final HashRing ring;
+    private final Map<String, PeerLink> links = new LinkedHashMap<>();
+    private final ChatRoomManager mgr;
+    private final ServerSocket peerSocket;
+    private final Semaphore handshakes = new Semaphore(MAX_UNAUTHENTICATED);
+    private final Map<String, Socket> inbound = new ConcurrentHashMap<>();  // current link from each peer
+    private volatile boolean running = true;
+
+    private Cluster(String self, String secret, Map<String, InetSocketAddress> nodes, ServerSocket peerSocket,
+                    ChatRoomManager mgr) {
+        this.self = self;
+        this.secret = secret;
+        this.ring = new HashRing(nodes.keySet());
+        this.mgr = mgr;
+        this.peerSocket = peerSocket;
+        for (Map.Entry<String, InetSocketAddress> e : nodes.entrySet()) {
+            if (!e.getKey().equals(self)) links.put(e.getKey(), new PeerLink(e.getKey(), e.getValue(), this));
+        }
+    }
+
+    /**
+     * Binds this node's peer address and starts linking to the others.
+     * Node ids are the host:port peer addresses listed in --cluster.
+     */
+    static Cluster open(ServerConfig config, ChatRoomManager mgr) throws IOException {
+        String self = config.getNodeId();
+        Map<String, InetSocketAddress> nodes = new LinkedHashMap<>();
+        for (String node : config.getClusterNodes()) nodes.put(node, parseAddress(node));
+        if (self == null || !nodes.containsKey(self)) {
+            throw new IllegalArgumentException("--node must be one of the --cluster addresses, got " + self);
+        }
+        String secret = config.getClusterSecret();
+        if (secret == null || secret.isEmpty()) {
+            throw new IllegalArgumentException("--cluster-secret is required with --cluster");
+        }
+        ServerSocket peerSocket = new ServerSocket();
+        peerSocket.bind(nodes.get(self));
+        Cluster cluster = new Cluster(self, secret, nodes, peerSocket, mgr);
+        cluster.start();
+        return cluster;
+    }
+
+    private static InetSocketAddress parseAddress(String node) {
+        int colon = node.lastIndexOf(':');
+        if (colon <= 0) throw new IllegalArgumentException("cluster node must be host:port, got " + node);
+        return new InetSocketAddress(node.substring(0, colon), Integer.parseInt(node.substring(colon + 1)));
+    }
+
+    private void start() {
+        Thread acceptor = new Thread(this::acceptPeers, "peer-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        for (PeerLink link : links.values()) link.start();
+        logger.info("Cluster node " + self + " listening for peers on " + peerSocket.getLocalSocketAddress()
+                + ", peers " + links.keySet());
+    }
+
+    void close() {
+        running = false;
+        try { peerSocket.close(); } catch (IOException ignored) {}
+        for (PeerLink link : links.values()) link.close();
+    }
+
+    String getNodeId() { return self; }
+
+    String ownerOf(String roomId) {
+        return ring.ownerOf(roomId);
+    }
+
+    boolean isLocal(String roomId) {
+        return self.equals(ownerOf(roomId));
+    }
+
+    // ---- mirror -> owner ----
+
+    void subscribe(String owner, String roomId) {
+        send(owner, frame(SUB, BinaryProtocol.string(roomId)));
+    }
+
+    void post(String owner, String roomId, String from, String text) {
+        send(owner, frame(POST, BinaryProtocol.string(roomId), BinaryProtocol.string(from), utf8(text)));
+    }
+
+    void sendPrivate(String owner, String roomId, String from, String to, String text) {
+        send(owner, frame(PRIVATE, BinaryProtocol.string(roomId), BinaryProtocol.string(from),
+                BinaryProtocol.string(to), utf8(text)));
+    }
+
+    void memberJoined(String owner, String roomId, String user) {
+        send(owner, frame(JOINED, BinaryProtocol.string(roomId), BinaryProtocol.string(user)));
+    }
+
+    void unsubscribe(String owner, String roomId) {
+        send(owner, frame(UNSUB, BinaryProtocol.string(roomId)));
+    }
+
+    void memberLeft(String owner, String roomId, String user) {
+        send(owner, frame(LEFT, BinaryProtocol.string(roomId), BinaryProtocol.string(user)));
+    }
+
+    // ---- owner -> mirrors ----
+
+    void relay(Collection<String> nodes, String roomId, Message msg) {
+        if (nodes.isEmpty()) return;
+        byte[] frame = frame(RELAY, MessageLog.encode(roomId, msg));
+        for (String node : nodes) send(node, frame);
+    }
+
+    void history(String node, String roomId, Iterable<Message> messages) {
+        for (Message msg : messages) send(node, frame(HISTORY, MessageLog.encode(roomId, msg)));
+    }
+
+    void users(Collection<String> nodes, String roomId, String list) {
+        if (nodes.isEmpty()) return;
+        byte[] frame = frame(USERS, BinaryProtocol.string(roomId), utf8(list));
+        for (String node : nodes) send(node, frame);
+    }
+
+    void kick(String node, String roomId, String user) {
+        send(node, frame(KICK, BinaryProtocol.string(roomId), BinaryProtocol.string(user)));
+    }
+
+    byte[] hello() {
+        return frame(HELLO, BinaryProtocol.string(self), BinaryProtocol.string(secret));
+    }
+
+    /** Sent on every (re)connect to a peer: the peer's rooms mirrored here and their local members. */
+    List<byte[]> resyncFrames(String peer) {
+        List<byte[]> frames = new ArrayList<>();
+        for (ChatRoom room : mgr.getRooms()) {
+            if (!peer.equals(room.getOwner())) continue;
+            frames.add(frame(SUB, BinaryProtocol.string(room.getRoomId())));
+            for (String user : room.getLocalUsers()) {
+                frames.add(frame(JOINED, BinaryProtocol.string(room.getRoomId()), BinaryProtocol.string(user)));
+            }
+        }
+        return frames;
+    }
+
+    private void send(String node, byte[] frame) {
+        PeerLink link = links.get(node);
+        if (link == null) {
+            logger.warning("No link to cluster node " + node);
+            return;
+        }
+        link.send(frame);
+    }
+
+    private static byte[] frame(byte op, byte[]... parts) {
+        return BinaryProtocol.request(op, parts);
+    }
+
+    private static byte[] utf8(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    // ---- inbound ----
+
+    /**
+     * Accepts peer connections. At most MAX_UNAUTHENTICATED may be waiting for
+     * their HELLO, each for HANDSHAKE_TIMEOUT_MILLIS; more are closed at once,
+     * so idle sockets on the peer port cannot tie up threads.
+     */
+    private void acceptPeers() {
+        while (running) {
+            try {
+                Socket s = peerSocket.accept();
+                if (!handshakes.tryAcquire()) {
+                    logger.warning("Too many peer handshakes in progress, refusing " + s.getRemoteSocketAddress());
+                    s.close();
+                    continue;
+                }
+                s.setSoTimeout(HANDSHAKE_TIMEOUT_MILLIS);
+                Thread reader = new Thread(() -> serve(s), "peer-in-" + s.getRemoteSocketAddress());
+                reader.setDaemon(true);
+                reader.start();
+            } catch (IOException e) {
+                if (running) logger.log(Level.WARNING, "Peer accept failed", e);
+            }
+        }
+    }
+
+    /**
+     * Reads one peer's frames until it disconnects; the first must be HELLO.
+     * A newer link from the same peer replaces this one, which is then closed.
+     */
+    private void serve(Socket s) {
+        String peer = null;
+        boolean handshaking = true;
+        try (Socket socket = s;
+             DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024))) {
+            while (true) {
+                int length = readLength(in);
+                if (length < 1 || length > MAX_PEER_FRAME) throw new IOException("bad peer frame length " + length);
+                byte[] frame = new byte[length];
+                in.readFully(frame);
+                ByteBuffer payload = ByteBuffer.wrap(frame, 1, length - 1).slice();
+                if (peer == null) {
+                    if (frame[0] != HELLO) throw new IOException("peer did not say HELLO");
+                    String node = BinaryProtocol.getString(payload);
+                    if (!links.containsKey(node)) throw new IOException("unknown cluster node " + node);
+                    if (!MessageDigest.isEqual(utf8(secret), utf8(BinaryProtocol.getString(payload)))) {
+                        throw new IOException("wrong cluster secret from " + s.getRemoteSocketAddress());
+                    }
+                    peer = node;
+                    handshakes.release();
+                    handshaking = false;
+                    socket.setSoTimeout(0);
+                    Socket previous = inbound.put(peer, socket);
+                    if (previous != null) previous.close();
+                    logger.info("Peer " + peer + " connected");
+                    continue;
+                }
+                try {
+                    dispatch(peer, frame[0], payload);
+                } catch (IllegalArgumentException | BufferUnderflowException e) {
+                    logger.log(Level.WARNING, "Malformed frame from peer " + peer, e);
+                }
+            }
+        } catch (EOFException e) {
+            logger.info("Peer " + (peer != null ? peer : s.getRemoteSocketAddress()) + " disconnected");
+        } catch (IOException e) {
+            boolean replaced = peer != null && inbound.get(peer) != s;
+            logger.log(replaced ? Level.FINE : Level.WARNING,
+                    "Peer connection from " + (peer != null ? peer : s.getRemoteSocketAddress()) + " failed", e);
+        } finally {
+            if (handshaking) handshakes.release();
+            // a link some newer one replaced must not remove the members that one resynced
+            if (peer != null && inbound.remove(peer, s)) {
+                String node = peer;
+                for (ChatRoom room : mgr.getRooms()) room.execute(() -> room.removeNode(node));
+            }
+        }
+    }
+
+    private static int readLength(InputStream in) throws IOException {
+        int v = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.read();
+            if (b < 0) throw new EOFException();
+            v |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return v;
+        }
+        throw new IOException("peer frame length too long");
+    }
+
+    private void dispatch(String peer, byte op, ByteBuffer payload) {
+        switch (op) {
+            case SUB:
+                joinOwnedRoom(BinaryProtocol.getString(payload), peer, r -> r.addSubscriber(peer));
+                break;
+            case UNSUB: {
+                ChatRoom room = mgr.getRoom(BinaryProtocol.getString(payload));
+                if (room != null) room.execute(() -> room.removeSubscriber(peer));
+                break;
+            }
+            case POST: {
+                String roomId = BinaryProtocol.getString(payload);
+                String from = BinaryProtocol.getString(payload);
+                String text = BinaryProtocol.getText(payload);
+                ownedRoom(roomId, peer).ifPresent(r -> r.execute(() -> {
+                    if (!announced(r, peer, from)) return;
+                    try {
+                        r.broadcast(new Message(from, null, text, false));
+                    } catch (IOException e) {
+                        logger.log(Level.WARNING, "Post from " + peer + " not saved in " + roomId, e);
+                    }
+                }));
+                break;
+            }
+            case PRIVATE: {
+                String roomId = BinaryProtocol.getString(payload);
+                String from = BinaryProtocol.getString(payload);
+                String to = BinaryProtocol.getString(payload);
+                String text = BinaryProtocol.getText(payload);
+                ownedRoom(roomId, peer).ifPresent(r -> r.execute(() -> {
+                    if (!announced(r, peer, from)) return;
+                    try {
+                        r.sendPrivate(from, to, text);
+                    } catch (IOException e) {
+                        logger.log(Level.WARNING, "Private message from " + peer + " not saved in " + roomId, e);
+                    }
+                }));
+                break;
+            }
+            case JOINED: {
+                String roomId = BinaryProtocol.getString(payload);
+                String user = BinaryProtocol.getString(payload);
+                joinOwnedRoom(roomId, peer, r -> r.addRemoteUser(peer, user));
+                break;
+            }
+            case LEFT: {
+                String roomId = BinaryProtocol.getString(payload);
+                String user = BinaryProtocol.getString(payload);
+                ownedRoom(roomId, peer).ifPresent(r -> r.execute(() -> r.removeRemoteUser(peer, user)));
+                break;
+            }
+            case RELAY:
+            case HISTORY: {
+                ChatRoom room = mgr.getRoom(MessageLog.roomOf(payload));
+                if (room == null) return;   // not mirrored here (any more)
+                Message msg = MessageLog.decode(payload);
+                room.execute(op == RELAY ? () -> room.onRelayed(msg) : () -> room.onHistory(msg));
+                break;
+            }
+            case USERS: {
+                ChatRoom room = mgr.getRoom(BinaryProtocol.getString(payload));
+                if (room == null) return;
+                String list = BinaryProtocol.getText(payload);
+                room.execute(() -> room.onClusterUsers(list));
+                break;
+            }
+            case KICK: {
+                ChatRoom room = mgr.getRoom(BinaryProtocol.getString(payload));
+                if (room == null) return;
+                String user = BinaryProtocol.getString(payload);
+                room.execute(() -> room.onKicked(user));
+                break;
+            }
+            default:
+                logger.warning("Unknown frame " + (op & 0xFF) + " from peer " + peer);
+        }
+    }
+
+    /** Whether peer announced from in room with JOINED; anything else it sends for from is dropped. */
+    private static boolean announced(ChatRoom room, String peer, String from) {
+        if (room.isRemoteMember(peer, from)) return true;
+        logger.warning("Peer " + peer + " sent a message from " + from + " who did not join room "
+                + room.getRoomId() + " there");
+        return false;
+    }
+
+    /** The room if this node owns it; a peer sending owner frames for someone else's room is misconfigured. */
+    private Optional<ChatRoom> ownedRoom(String roomId, String peer) {
+        if (!isLocal(roomId)) {
+            logger.warning("Peer " + peer + " sent a frame for room " + roomId + " owned by " + ownerOf(roomId)
+                    + "; do both nodes have the same --cluster list?");
+            return Optional.empty();
+        }
+        return Optional.of(mgr.getOrCreateRoom(roomId));
+    }
+
+    /**
+     * Runs join on the owned room's loop, again on its replacement if the room was
+     * evicted in between (the replacement hashes to the same loop).
+     */
+    private void joinOwnedRoom(String roomId, String peer, Predicate<ChatRoom> join) {
+        ownedRoom(roomId, peer).ifPresent(first -> first.execute(() -> {
+            ChatRoom room = first;
+            while (!join.test(room)) room = mgr.getOrCreateRoom(roomId);
+        }));
+    }
+}
@@ -0,0 +1,240 @@
+package chat;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Parses one text command line in place, as offsets into the bytes it
+ * arrived in. Nothing is copied while parsing: the command word is resolved
+ * through a precomputed table and arguments stay offsets until a caller asks
+ * for one as a String (room ids, names and message text that get stored).
+ *
+ * Splitting follows the original protocol: the trimmed line is cut at the
+ * first two single spaces into command, argument and rest, like
+ * line.split(" ", 3).
+ *
+ * One parser belongs to one connection and is reused for every line; the
+ * offsets are valid only until the next parse().
+ */
+final class CommandParser {
+
+    enum Command {
+        JOIN("JOIN", "/JN"),
+        MSG("MSG"),
+        PM("PM", "/PM"),
+        USERS("USERS", "/U"),
+        HISTORY("HISTORY", "/H"),
+        PMH("PMH", "/PMH"),
+        PROTO("PROTO"),
+        STATS("STATS"),
+        RESUME("RESUME"),
+        SUB("SUB", "/SUB"),
+        PING("PING"),
+        PONG("PONG"),
+        UNSUB("UNSUB", "/UNSUB"),
+        SEARCH("SEARCH"),
+        QUIT("QUIT", "/Q");
+
+        final String[] names;
+
+        Command(String... names) {
+            this.names = names;
+        }
+    }
+
+    // open-addressed table from upper-case command word to Command, filled once
+    private static final int TABLE_SIZE = 32;
+    private static final byte[][] TABLE_NAMES = new byte[TABLE_SIZE][];
+    private static final Command[] TABLE_COMMANDS = new Command[TABLE_SIZE];
+
+    static {
+        for (Command c : Command.values()) {
+            for (String name : c.names) {
+                byte[] bytes = name.getBytes(StandardCharsets.US_ASCII);
+                int i = hash(bytes, 0, bytes.length) & (TABLE_SIZE - 1);
+                while (TABLE_NAMES[i] != null) i = (i + 1) & (TABLE_SIZE - 1);
+                TABLE_NAMES[i] = bytes;
+                TABLE_COMMANDS[i] = c;
+            }
+        }
+    }
+
+    private byte[] buf;
+    private int cmdStart, cmdEnd;
+    private int argStart, argEnd;     // argStart < 0: no argument
+    private int restStart, restEnd;   // restStart < 0: no rest
+    private Command command;
+
+    /**
+     * Parses buf[start, end).
+     * @return false for a blank line
+     */
+    boolean parse(byte[] buf, int start, int end) {
+        while (start < end && isBlank(buf[start])) start++;
+        while (end > start && isBlank(buf[end - 1])) end--;
+        if (start == end) return false;
+        this.buf = buf;
+        cmdStart = start;
+        cmdEnd = indexOfSpace(start, end);
+        argStart = argEnd = restStart = restEnd = -1;
+        if (cmdEnd < end) {
+            argStart = cmdEnd + 1;
+            argEnd = indexOfSpace(argStart, end);
+            if (argEnd < end) {
+                restStart = argEnd + 1;
+                restEnd = end;
+            }
+        }
+        command = lookup(buf, cmdStart, cmdEnd);
+        return true;
+    }
+
+    /** The resolved command, or null if the word is not one. */
+    Command command() { return command; }
+
+    /** The command word as typed, upper-cased; only needed for error replies. */
+    String commandWord() {
+        return new String(buf, cmdStart, cmdEnd - cmdStart, StandardCharsets.UTF_8).toUpperCase();
+    }
+
+    /** Number of space-separated parts, as split(" ", 3).length would give. */
+    int parts() {
+        return argStart < 0 ? 1 : restStart < 0 ? 2 : 3;
+    }
+
+    String arg() {
+        return string(argStart, argEnd);
+    }
+
+    String rest() {
+        return string(restStart, restEnd);
+    }
+
+    boolean argEqualsIgnoreCase(String upperAscii) {
+        return argStart >= 0 && matches(buf, argStart, argEnd, upperAscii);
+    }
+
+    /** True if the command word is "@<roomId>", a room tag in front of a command. */
+    boolean isRoomTag() {
+        return command == null && cmdEnd - cmdStart > 1 && buf[cmdStart] == '@';
+    }
+
+    /** Room id of a room tag, without the '@'. */
+    String taggedRoom() {
+        return string(cmdStart + 1, cmdEnd);
+    }
+
+    /**
+     * Parses what follows the room tag as the command, in place.
+     * @return false if nothing follows it
+     */
+    boolean parseTagged() {
+        return argStart >= 0 && parse(buf, argStart, end());
+    }
+
+    /** Everything after the command word and its space, e.g. the text of MSG. */
+    String afterCommand() {
+        return argStart < 0 ? "" : string(argStart, end());
+    }
+
+    // raw offsets for callers that parse arguments themselves (see ClientHandler.PageRequest)
+
+    byte[] buffer() { return buf; }
+
+    int commandEnd() { return cmdEnd; }
+
+    /** Start of the rest, or end() if there is none. */
+    int restOffset() { return restStart < 0 ? end() : restStart; }
+
+    int end() { return restStart >= 0 ? restEnd : argStart >= 0 ? argEnd : cmdEnd; }
+
+    /** True if buf[start, end) equals the upper-case ASCII word, ignoring case. */
+    static boolean matches(byte[] buf, int start, int end, String upperAscii) {
+        if (end - start != upperAscii.length()) return false;
+        for (int i = 0; i < upperAscii.length(); i++) {
+            if (upper(buf[start + i]) != upperAscii.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Finds the next whitespace-separated token at or after from.
+     * @return start and end packed as (start << 32 | end), or -1 if there is none
+     */
+    static long nextToken(byte[] buf, int from, int end) {
+        while (from < end && isBlank(buf[from])) from++;
+        if (from == end) return -1;
+        int start = from;
+        while (from < end && !isBlank(buf[from])) from++;
+        return (long) start << 32 | from;
+    }
+
+    /**
+     * Finds the last whitespace-separated token in buf[start, to), scanning back from to.
+     * @return start and end packed like nextToken(), or -1 if there is none
+     */
+    static long prevToken(byte[] buf, int start, int to) {
+        while (to > start && isBlank(buf[to - 1])) to--;
+        if (to == start) return -1;
+        int end = to;
+        while (to > start && !isBlank(buf[to - 1])) to--;
+        return (long) to << 32 | end;
+    }
+
+    /** Parses buf[start, end) as a decimal long, like Long.parseLong. */
+    static long parseLong(byte[] buf, int start, int end) {
+        if (start == end) throw new NumberFormatException("empty number");
+        boolean negative = buf[start] == '-';
+        int i = negative || buf[start] == '+' ? start + 1 : start;
+        if (i == end) throw new NumberFormatException("no digits");
+        long v = 0;
+        for (; i < end; i++) {
+            int d = buf[i] - '0';
+            if (d < 0 || d > 9) throw new NumberFormatException("not a digit");
+            if (v > (Long.MAX_VALUE - d) / 10) throw new NumberFormatException("too large");
+            v = v * 10 + d;
+        }
+        return negative ? -v : v;
+    }
+
+    private String string(int from, int to) {
+        return from < 0 ? null : new String(buf, from, to - from, StandardCharsets.UTF_8);
+    }
+
+    private int indexOfSpace(int from, int end) {
+        while (from < end && buf[from] != ' ') from++;
+        return from;
+    }
+
+    static Command lookup(byte[] b, int start, int end) {
+        int i = hash(b, start, end) & (TABLE_SIZE - 1);
+        byte[] name;
+        while ((name = TABLE_NAMES[i]) != null) {
+            if (equalsIgnoreCase(name, b, start, end)) return TABLE_COMMANDS[i];
+            i = (i + 1) & (TABLE_SIZE - 1);
+        }
+        return null;
+    }
+
+    private static int hash(byte[] b, int start, int end) {
+        int h = 0;
+        for (int i = start; i < end; i++) h = 31 * h + upper(b[i]);
+        return h ^ (h >>> 16);
+    }
+
+    private static boolean equalsIgnoreCase(byte[] upperName, byte[] b, int start, int end) {
+        if (end - start != upperName.length) return false;
+        for (int i = 0; i < upperName.length; i++) {
+            if (upper(b[start + i]) != upperName[i]) return false;
+        }
+        return true;
+    }
+
+    private static byte upper(byte b) {
+        return b >= 'a' && b <= 'z' ? (byte) (b - 32) : b;
+    }
+
+    /** Same set as String.trim(): ASCII control characters and space. */
+    static boolean isBlank(byte b) {
+        return (b & 0xFF) <= ' ';
+    }
+}
@@ -0,0 +1,138 @@
+package chat;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Single-threaded selector loop. Owns a set of NioConnections and performs
+ * all reads, writes and command handling for them on its own thread.
+ * Other threads hand work to the loop through execute().
+ *
+ * AsyncChatClient runs its client channels on the same loops; anything
+ * attached to a registered key implements Handler.
+ */
+final class EventLoop implements Runnable {
+    private static final Logger logger = Logger.getLogger(EventLoop.class.getName());
+
+    /** Attachment of a key registered with this loop; called on the loop thread. */
+    interface Handler {
+        void onReadable() throws IOException;
+        void onWritable() throws IOException;
+        /** A non-blocking connect can be finished. */
+        default void onConnectable() throws IOException { }
+        void close();
+    }
+
+    private final Selector selector;
+    private final Thread thread;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private volatile boolean running = true;
+
+    EventLoop(String name) throws IOException {
+        this(name, false);
+    }
+
+    EventLoop(String name, boolean daemon) throws IOException {
+        this.selector = Selector.open();
+        this.thread = new Thread(this, name);
+        this.thread.setDaemon(daemon);
+    }
+
+    void start() { thread.start(); }
+
+    boolean inEventLoop() { return Thread.currentThread() == thread; }
+
+    void execute(Runnable task) {
+        tasks.add(task);
+        // the loop only blocks in select() when its task queue is empty
+        if (!inEventLoop()) selector.wakeup();
+    }
+
+    void register(SocketChannel channel) {
+        execute(() -> {
+            try {
+                channel.configureBlocking(false);
+                NioConnection conn = new NioConnection(this, channel);
+                conn.attach(channel.register(selector, SelectionKey.OP_READ, conn));
+                conn.start();
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Failed to register client channel", e);
+                try { channel.close(); } catch (IOException ignored) {}
+            }
+        });
+    }
+
+    /** Registers channel for ops with handler attached; only on the loop thread. */
+    SelectionKey register(SelectableChannel channel, int ops, Handler handler) throws ClosedChannelException {
+        return channel.register(selector, ops, handler);
+    }
+
+    @Override
+    public void run() {
+        logger.info("Event loop started: " + thread.getName());
+        while (running) {
+            try {
+                if (tasks.isEmpty()) selector.select();
+                else selector.selectNow();
+            } catch (IOException e) {
+                logger.log(Level.SEVERE, "Selector failure in " + thread.getName(), e);
+                break;
+            }
+
+            Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+            while (it.hasNext()) {
+                SelectionKey key = it.next();
+                it.remove();
+                Handler conn = (Handler) key.attachment();
+                try {
+                    if (key.isConnectable()) conn.onConnectable();
+                    if (key.isValid() && key.isReadable()) conn.onReadable();
+                    if (key.isValid() && key.isWritable()) conn.onWritable();
+                } catch (IOException | CancelledKeyException e) {
+                    logger.log(Level.FINE, "Connection error", e);
+                    conn.close();
+                } catch (RuntimeException e) {
+                    logger.log(Level.WARNING, "Unexpected error handling connection", e);
+                    conn.close();
+                }
+            }
+
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    logger.log(Level.WARNING, "Event loop task failed", e);
+                }
+            }
+        }
+        closeAll();
+    }
+
+    void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    private void closeAll() {
+        for (SelectionKey key : selector.keys()) {
+            Object attachment = key.attachment();
+            if (attachment instanceof Handler) ((Handler) attachment).close();
+        }
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try { task.run(); } catch (RuntimeException ignored) {}
+        }
+        try { selector.close(); } catch (IOException ignored) {}
+    }
+}
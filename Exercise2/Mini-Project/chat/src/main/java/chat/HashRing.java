@@ -0,0 +1,49 @@
+package chat;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Consistent-hash ring over the cluster's node ids. Each node is placed at
+ * VIRTUAL_NODES points so rooms spread evenly, and adding or removing a node
+ * only moves the rooms next to its points. A room belongs to the first node
+ * at or after the room id's hash, wrapping around.
+ *
+ * Hashes are the first 8 bytes of MD5, so every node computes the same ring
+ * from the same --cluster list.
+ */
+final class HashRing {
+    private static final int VIRTUAL_NODES = 128;
+
+    private final TreeMap<Long, String> points = new TreeMap<>();
+
+    HashRing(Collection<String> nodes) {
+        if (nodes.isEmpty()) throw new IllegalArgumentException("empty ring");
+        for (String node : nodes) {
+            for (int i = 0; i < VIRTUAL_NODES; i++) {
+                points.put(hash(node + "#" + i), node);
+            }
+        }
+    }
+
+    String ownerOf(String key) {
+        Map.Entry<Long, String> e = points.ceilingEntry(hash(key));
+        return (e != null ? e : points.firstEntry()).getValue();
+    }
+
+    static long hash(String key) {
+        byte[] digest;
+        try {
+            digest = MessageDigest.getInstance("MD5").digest(key.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 not available", e);   // required of every JRE
+        }
+        long h = 0;
+        for (int i = 0; i < 8; i++) h = (h << 8) | (digest[i] & 0xFF);
+        return h;
+    }
+}
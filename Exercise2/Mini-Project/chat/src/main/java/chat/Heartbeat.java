@@ -0,0 +1,51 @@
+package chat;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Finds dead connections. Once a second it looks at every connected client:
+ * one that has sent nothing for --heartbeat-interval gets a "PING <n>" (any
+ * input, normally "PONG <n>", counts as an answer); one that has sent nothing
+ * for --heartbeat-timeout, or whose outbound queue has not moved for
+ * --write-stall-timeout, is disconnected as if its socket had closed. That
+ * leaves its rooms and frees its thread and socket, so half-open
+ * connections do not pile up under churn.
+ */
+final class Heartbeat {
+    private static final Logger logger = Logger.getLogger(Heartbeat.class.getName());
+
+    private final long intervalNanos;
+    private final long timeoutNanos;
+    private final long stallNanos;
+
+    private Heartbeat(ServerConfig config) {
+        this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(config.getHeartbeatIntervalMillis());
+        this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(config.getHeartbeatTimeoutMillis());
+        this.stallNanos = TimeUnit.MILLISECONDS.toNanos(config.getWriteStallTimeoutMillis());
+    }
+
+    /** Starts checking the clients ServerMetrics knows about, unless every limit is 0. */
+    static void start(ServerConfig config) {
+        Heartbeat heartbeat = new Heartbeat(config);
+        if (heartbeat.intervalNanos == 0 && heartbeat.timeoutNanos == 0 && heartbeat.stallNanos == 0) return;
+        ScheduledExecutorService checker = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "heartbeat");
+            t.setDaemon(true);
+            return t;
+        });
+        checker.scheduleWithFixedDelay(heartbeat::check, 1, 1, TimeUnit.SECONDS);
+        logger.info("Heartbeat every " + config.getHeartbeatIntervalMillis() / 1000 + "s, read timeout "
+                + config.getHeartbeatTimeoutMillis() / 1000 + "s, write stall timeout "
+                + config.getWriteStallTimeoutMillis() / 1000 + "s");
+    }
+
+    private void check() {
+        long now = System.nanoTime();
+        for (ClientHandler client : ServerMetrics.getInstance().getClients()) {
+            client.checkLiveness(now, intervalNanos, timeoutNanos, stallNanos);
+        }
+    }
+}
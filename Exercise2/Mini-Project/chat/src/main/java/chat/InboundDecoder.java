@@ -0,0 +1,152 @@
+package chat;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Splits a client's inbound bytes into protocol units for its ClientHandler:
+ * newline-terminated lines in text mode, length-prefixed frames (see
+ * BinaryProtocol) once the client has switched. Works on raw bytes so the
+ * mode can change between two units of the same read.
+ *
+ * Bytes of a unit that spans reads are kept until the rest arrives; a
+ * complete unit inside one read is handed over in place, as offsets into or
+ * a view of the read buffer, so nothing is copied.
+ */
+final class InboundDecoder {
+
+    interface Sink {
+        /** A line without its newline, as buf[start, end); only valid during the call. */
+        void onLine(byte[] buf, int start, int end);
+        void onFrame(byte opcode, ByteBuffer payload);
+        /** A line or frame exceeded the size limit; nothing more is decoded. */
+        void onOversized();
+        /** False to stop decoding before the next unit; the rest stays in the buffer. */
+        default boolean acceptsMore() { return true; }
+    }
+
+    private static final int MAX_LINE_LENGTH = 64 * 1024;
+
+    private final Sink sink;
+    private boolean binary;
+    private boolean failed;
+    private byte[] pending = new byte[256];
+    private int pendingLength;
+
+    InboundDecoder(Sink sink) {
+        this.sink = sink;
+    }
+
+    /** Binary framing from the next unit on; called by the sink while handling "PROTO BIN". */
+    void switchToBinary() {
+        binary = true;
+    }
+
+    /**
+     * Decodes buf until it is consumed or the sink stops accepting more units;
+     * in that case buf is left positioned at the first undecoded byte.
+     */
+    void feed(ByteBuffer buf) {
+        try {
+            while (buf.hasRemaining() && !failed && sink.acceptsMore()) {
+                if (binary) {
+                    if (!feedFrame(buf)) return;
+                } else {
+                    feedLine(buf);
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            fail();   // a length varint longer than any valid one
+        }
+    }
+
+    private void feedLine(ByteBuffer buf) {
+        if (pendingLength == 0 && buf.hasArray()) {
+            // fast path: the whole line is in this read, hand out its offsets
+            byte[] array = buf.array();
+            int start = buf.arrayOffset() + buf.position();
+            int limit = buf.arrayOffset() + buf.limit();
+            for (int i = start; i < limit && i - start <= MAX_LINE_LENGTH; i++) {
+                if (array[i] == '\n') {
+                    buf.position(i + 1 - buf.arrayOffset());
+                    sink.onLine(array, start, i);
+                    return;   // the line may have switched the mode
+                }
+            }
+        }
+        while (buf.hasRemaining()) {
+            byte b = buf.get();
+            if (b == '\n') {
+                int length = pendingLength;
+                pendingLength = 0;
+                sink.onLine(pending, 0, length);
+                return;
+            }
+            if (pendingLength == MAX_LINE_LENGTH) {
+                fail();
+                return;
+            }
+            append(b);
+        }
+    }
+
+    /** @return false if buf ran out before a complete frame */
+    private boolean feedFrame(ByteBuffer buf) {
+        if (pendingLength == 0) {
+            // fast path: the whole frame is in this read, hand out a view of it
+            int start = buf.position();
+            long length = BinaryProtocol.getVarint(buf);
+            if (length >= 0 && length <= buf.remaining()) {
+                if (!checkLength(length)) return false;
+                deliverFrame(buf, (int) length);
+                return true;
+            }
+            buf.position(start);
+        }
+        while (buf.hasRemaining()) {
+            append(buf.get());
+            ByteBuffer view = ByteBuffer.wrap(pending, 0, pendingLength);
+            long length = BinaryProtocol.getVarint(view);
+            if (length < 0) continue;
+            if (!checkLength(length)) return false;
+            int missing = (int) length - view.remaining();
+            int take = Math.min(missing, buf.remaining());
+            for (int i = 0; i < take; i++) append(buf.get());
+            if (take < missing) return false;
+            view = ByteBuffer.wrap(pending, 0, pendingLength);
+            BinaryProtocol.getVarint(view);
+            pendingLength = 0;
+            deliverFrame(view, (int) length);
+            return true;
+        }
+        return false;
+    }
+
+    private boolean checkLength(long length) {
+        if (length >= 1 && length <= BinaryProtocol.MAX_FRAME_LENGTH) return true;
+        fail();
+        return false;
+    }
+
+    private void deliverFrame(ByteBuffer buf, int length) {
+        int end = buf.position() + length;
+        byte opcode = buf.get();
+        ByteBuffer payload = buf.slice();
+        payload.limit(length - 1);
+        buf.position(end);
+        sink.onFrame(opcode, payload);
+    }
+
+    private void append(byte b) {
+        if (pendingLength == pending.length) {
+            pending = Arrays.copyOf(pending, Math.min(pending.length * 2, MAX_LINE_LENGTH + 16));
+        }
+        pending[pendingLength++] = b;
+    }
+
+    private void fail() {
+        failed = true;
+        pendingLength = 0;
+        sink.onOversized();
+    }
+}
@@ -0,0 +1,109 @@
+package chat;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free log-linear histogram of non-negative values (nanoseconds, usually).
+ * Each power of two is split into 32 linear sub-buckets, so a reported
+ * percentile is within about 3% of the true value; recording never
+ * allocates once a thread's stripe exists. Bucket counts and the maximum are
+ * kept per stripe (picked by thread, allocated on first use), so concurrent
+ * writers do not contend on shared cache lines; the count is a LongAdder.
+ * Readers sum and compare the stripes.
+ */
+final class LatencyHistogram {
+    private static final int SUB_BITS = 5;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int BUCKETS = (64 - SUB_BITS) * SUB_COUNT;
+    private static final int MAX = BUCKETS;   // a stripe's maximum follows its bucket counts
+
+    private static final int STRIPES = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() * 2 - 1));
+
+    private final AtomicReferenceArray<AtomicLongArray> stripes = new AtomicReferenceArray<>(STRIPES);
+    private final LongAdder total = new LongAdder();
+
+    void record(long value) {
+        if (value < 0) value = 0;
+        AtomicLongArray stripe = stripe();
+        stripe.incrementAndGet(indexOf(value));
+        total.increment();
+        long m;
+        while (value > (m = stripe.get(MAX)) && !stripe.compareAndSet(MAX, m, value)) {
+            // lost the race to a concurrent record on this stripe; re-read and retry
+        }
+    }
+
+    private AtomicLongArray stripe() {
+        int i = (int) Thread.currentThread().getId() & (STRIPES - 1);
+        AtomicLongArray stripe = stripes.get(i);
+        if (stripe == null) {
+            stripes.compareAndSet(i, null, new AtomicLongArray(BUCKETS + 1));
+            stripe = stripes.get(i);
+        }
+        return stripe;
+    }
+
+    long count() {
+        return total.sum();
+    }
+
+    long max() {
+        long max = 0;
+        for (int i = 0; i < STRIPES; i++) {
+            AtomicLongArray stripe = stripes.get(i);
+            if (stripe != null) max = Math.max(max, stripe.get(MAX));
+        }
+        return max;
+    }
+
+    /**
+     * Upper bound of the bucket holding the value at quantile {@code q} (0..1),
+     * capped at the largest recorded value; 0 when nothing was recorded.
+     */
+    long percentile(double q) {
+        long n = total.sum();
+        if (n == 0) return 0;
+        long[] counts = new long[BUCKETS];
+        long max = 0;
+        for (int s = 0; s < STRIPES; s++) {
+            AtomicLongArray stripe = stripes.get(s);
+            if (stripe == null) continue;
+            for (int i = 0; i < BUCKETS; i++) counts[i] += stripe.get(i);
+            max = Math.max(max, stripe.get(MAX));
+        }
+        long rank = Math.max(1, (long) Math.ceil(q * n));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) return Math.min(upperBound(i), max);
+        }
+        return max;
+    }
+
+    void reset() {
+        for (int s = 0; s < STRIPES; s++) {
+            AtomicLongArray stripe = stripes.get(s);
+            if (stripe == null) continue;
+            for (int i = 0; i <= MAX; i++) stripe.set(i, 0);
+        }
+        total.reset();
+    }
+
+    static int indexOf(long value) {
+        if (value < SUB_COUNT) return (int) value;
+        int exp = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exp - SUB_BITS)) & (SUB_COUNT - 1);
+        return (exp - SUB_BITS + 1) * SUB_COUNT + sub;
+    }
+
+    static long upperBound(int index) {
+        if (index < SUB_COUNT) return index;
+        int exp = index / SUB_COUNT + SUB_BITS - 1;
+        int shift = exp - SUB_BITS;
+        long lower = (long) (SUB_COUNT + index % SUB_COUNT) << shift;
+        long upper = lower + (1L << shift) - 1;
+        return upper < 0 ? Long.MAX_VALUE : upper;
+    }
+}
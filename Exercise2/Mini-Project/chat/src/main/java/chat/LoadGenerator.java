@@ -0,0 +1,334 @@
+package chat;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Headless load generator for a running server. Opens many text-protocol
+ * connections spread over a set of rooms, sends MSG/PM at a fixed total rate
+ * while some connections keep switching rooms, and reports end-to-end
+ * delivery latency (p50/p99/p99.9/max) and throughput.
+ *
+ * Usage:
+ *   java chat.LoadGenerator [--host=localhost] [--port=9090] [--connections=1000]
+ *                           [--rooms=10] [--rate=1000] [--pm-percent=10] [--churn=5]
+ *                           [--seconds=30] [--warmup=5] [--payload=32] [--io-threads=2]
+ *
+ * --rate is messages per second over all connections, --churn room switches
+ * (a JOIN into another room) per second. Every message text carries the time
+ * it was scheduled to be sent, and each receiver records now minus that time,
+ * so a generator that falls behind schedule shows up as latency instead of
+ * silently sending less.
+ */
+public class LoadGenerator {
+    private static final String MARKER_TEXT = "lg:";
+    private static final byte[] MARKER = MARKER_TEXT.getBytes(StandardCharsets.US_ASCII);
+
+    private final String host;
+    private final int port;
+    private final int connections;
+    private final int rooms;
+    private final int rate;
+    private final int pmPercent;
+    private final int churn;
+    private final int seconds;
+    private final int warmup;
+    private final String padding;
+    private final int ioThreads;
+
+    private final List<Connection> all = new ArrayList<>();
+    private final List<List<Connection>> members = new ArrayList<>();
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final LatencyHistogram interval = new LatencyHistogram();
+    /** Timestamps on the wire are relative to this, so they are never negative. */
+    private final long origin = System.nanoTime();
+    private final AtomicInteger joined = new AtomicInteger();
+    private final LongAdder delivered = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private long sent;
+    private long privateSent;
+    private long switches;
+    private volatile boolean measuring;
+    private volatile boolean running = true;
+
+    private LoadGenerator(ServerConfig config) {
+        this.host = config.getString("host", "localhost");
+        this.port = config.getInt("port", config.getPort());
+        this.connections = Math.max(2, config.getInt("connections", 1000));
+        this.rooms = Math.max(1, config.getInt("rooms", 10));
+        this.rate = Math.max(1, config.getInt("rate", 1000));
+        this.pmPercent = Math.min(100, Math.max(0, config.getInt("pm-percent", 10)));
+        this.churn = Math.max(0, config.getInt("churn", 5));
+        this.seconds = Math.max(1, config.getInt("seconds", 30));
+        this.warmup = Math.max(0, config.getInt("warmup", 5));
+        this.padding = " " + "x".repeat(Math.max(0, config.getInt("payload", 32)));
+        this.ioThreads = Math.max(1, config.getInt("io-threads", 2));
+    }
+
+    public static void main(String[] args) throws Exception {
+        new LoadGenerator(ServerConfig.parse(args)).run();
+    }
+
+    private void run() throws Exception {
+        connect();
+        int opened = all.size();
+        if (opened < 2) {
+            System.err.println("need at least two connections to generate load");
+            return;
+        }
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        while (joined.get() < opened && System.nanoTime() < deadline) Thread.sleep(10);
+        if (joined.get() < opened) {
+            System.err.println("only " + joined.get() + " of " + opened + " connections joined");
+        }
+        System.out.printf("connections=%d rooms=%d rate=%d/s pm=%d%% churn=%d/s warmup=%ds seconds=%ds%n",
+                opened, rooms, rate, pmPercent, churn, warmup, seconds);
+
+        long start = System.nanoTime();
+        long measureFrom = start + TimeUnit.SECONDS.toNanos(warmup);
+        long end = measureFrom + TimeUnit.SECONDS.toNanos(seconds);
+        long nextReport = start + TimeUnit.SECONDS.toNanos(1);
+        long measuredSent = 0;
+        long lastDelivered = 0;
+        long lastSent = 0;
+        ThreadLocalRandom rnd = ThreadLocalRandom.current();
+
+        long now;
+        while ((now = System.nanoTime()) < end) {
+            if (!measuring && now >= measureFrom) {
+                measuring = true;
+                measuredSent = sent;
+                delivered.reset();
+                lastDelivered = 0;
+            }
+            long elapsed = now - start;
+            long due = elapsed * rate / 1_000_000_000L;
+            while (sent < due) {
+                long scheduled = start + sent * 1_000_000_000L / rate;
+                send(all.get(rnd.nextInt(all.size())), scheduled, rnd);
+                sent++;
+            }
+            long switchesDue = elapsed * churn / 1_000_000_000L;
+            while (switches < switchesDue) {
+                switchRoom(all.get(rnd.nextInt(all.size())), rnd);
+                switches++;
+            }
+            if (now >= nextReport) {
+                long d = delivered.sum();
+                System.out.printf("%s %3ds  sent %7d/s  delivered %8d/s  p99 %8.2fms%n",
+                        measuring ? "run " : "warm", TimeUnit.NANOSECONDS.toSeconds(now - start),
+                        sent - lastSent, d - lastDelivered, millis(interval.percentile(0.99)));
+                interval.reset();
+                lastSent = sent;
+                lastDelivered = d;
+                nextReport += TimeUnit.SECONDS.toNanos(1);
+            }
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+        measuring = false;
+
+        long total = sent - measuredSent;
+        long received = delivered.sum();
+        System.out.printf("sent       %d messages (%.1f/s), %d private, %d room switches%n",
+                total, (double) total / seconds, privateSent, switches);
+        System.out.printf("delivered  %d (%.1f/s), %d errors%n",
+                received, (double) received / seconds, errors.sum());
+        System.out.printf("latency    p50 %.2fms  p99 %.2fms  p99.9 %.2fms  max %.2fms%n",
+                millis(latency.percentile(0.50)), millis(latency.percentile(0.99)),
+                millis(latency.percentile(0.999)), millis(latency.max()));
+
+        running = false;
+        for (Connection c : all) c.channel.close();
+    }
+
+    private void connect() throws IOException {
+        InetSocketAddress address = new InetSocketAddress(host, port);
+        Selector[] selectors = new Selector[ioThreads];
+        for (int i = 0; i < ioThreads; i++) selectors[i] = Selector.open();
+        for (int r = 0; r < rooms; r++) members.add(new ArrayList<>());
+        for (int i = 0; i < connections; i++) {
+            SocketChannel ch;
+            try {
+                ch = SocketChannel.open(address);
+            } catch (IOException e) {
+                System.err.println("connect failed after " + i + " connections: " + e.getMessage());
+                break;
+            }
+            ch.configureBlocking(false);
+            Connection c = new Connection("lg" + i, ch);
+            ch.register(selectors[i % ioThreads], SelectionKey.OP_READ, c);
+            all.add(c);
+        }
+        for (int i = 0; i < ioThreads; i++) {
+            Selector selector = selectors[i];
+            Thread t = new Thread(() -> drain(selector), "loadgen-io-" + (i + 1));
+            t.setDaemon(true);
+            t.start();
+        }
+        for (int i = 0; i < all.size(); i++) {
+            Connection c = all.get(i);
+            c.room = i % rooms;
+            members.get(c.room).add(c);
+            c.joinedAt = System.nanoTime();
+            c.send(ClientProtocol.join("room" + c.room, c.user));
+        }
+    }
+
+    /** A room message, or a PM to someone in the sender's room when the dice say so. */
+    private void send(Connection from, long scheduled, ThreadLocalRandom rnd) throws IOException {
+        String text = MARKER_TEXT + (scheduled - origin) + padding;
+        List<Connection> room = members.get(from.room);
+        if (room.size() > 1 && rnd.nextInt(100) < pmPercent) {
+            Connection to;
+            do {
+                to = room.get(rnd.nextInt(room.size()));
+            } while (to == from);
+            from.send(ClientProtocol.pm(to.user, text));
+            privateSent++;
+        } else {
+            from.send(ClientProtocol.msg(text));
+        }
+    }
+
+    private void switchRoom(Connection c, ThreadLocalRandom rnd) throws IOException {
+        if (rooms < 2) return;
+        int next = (c.room + 1 + rnd.nextInt(rooms - 1)) % rooms;
+        members.get(c.room).remove(c);
+        members.get(next).add(c);
+        c.room = next;
+        c.joinedAt = System.nanoTime();
+        c.send(ClientProtocol.join("room" + next, c.user));
+    }
+
+    private void drain(Selector selector) {
+        ByteBuffer buf = ByteBuffer.allocate(64 * 1024);
+        try {
+            while (running) {
+                selector.select(100);
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    Connection c = (Connection) key.attachment();
+                    buf.clear();
+                    int n;
+                    try {
+                        n = c.channel.read(buf);
+                    } catch (IOException e) {
+                        n = -1;
+                    }
+                    if (n < 0) {
+                        key.cancel();
+                        continue;
+                    }
+                    buf.flip();
+                    c.decoder.feed(buf);
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1_000_000.0;
+    }
+
+    /** One simulated user; lines from the server arrive on its selector thread. */
+    private final class Connection implements InboundDecoder.Sink {
+        final String user;
+        final SocketChannel channel;
+        final InboundDecoder decoder = new InboundDecoder(this);
+        /** Owned by the sending thread. */
+        int room;
+        /** Messages scheduled before this are history replays, not deliveries. */
+        volatile long joinedAt;
+
+        Connection(String user, SocketChannel channel) {
+            this.user = user;
+            this.channel = channel;
+        }
+
+        /** Called by the sending thread, and by the selector thread to answer PINGs. */
+        synchronized void send(String line) throws IOException {
+            ByteBuffer out = ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8));
+            while (out.hasRemaining()) {
+                if (channel.write(out) == 0) Thread.onSpinWait();
+            }
+        }
+
+        @Override
+        public void onLine(byte[] buf, int start, int end) {
+            long now = System.nanoTime();
+            if (startsWith(buf, start, end, "PING ")) {
+                try {
+                    send("PONG " + new String(buf, start + 5, end - start - 5, StandardCharsets.UTF_8));
+                } catch (IOException e) {
+                    errors.increment();
+                }
+                return;
+            }
+            if (startsWith(buf, start, end, "JOINED ")) {
+                joined.incrementAndGet();
+                return;
+            }
+            if (startsWith(buf, start, end, "ERROR")) {
+                errors.increment();
+                return;
+            }
+            int at = indexOf(buf, start, end, MARKER);
+            if (at < 0) return;
+            long offset = 0;
+            for (int i = at + MARKER.length; i < end && buf[i] >= '0' && buf[i] <= '9'; i++) {
+                offset = offset * 10 + (buf[i] - '0');
+            }
+            long scheduled = origin + offset;
+            if (scheduled < joinedAt || !measuring) return;
+            latency.record(now - scheduled);
+            interval.record(now - scheduled);
+            delivered.increment();
+        }
+
+        @Override
+        public void onFrame(byte opcode, ByteBuffer payload) {
+            // text protocol only
+        }
+
+        @Override
+        public void onOversized() {
+            errors.increment();
+        }
+    }
+
+    private static boolean startsWith(byte[] buf, int start, int end, String prefix) {
+        if (end - start < prefix.length()) return false;
+        for (int i = 0; i < prefix.length(); i++) {
+            if (buf[start + i] != prefix.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    private static int indexOf(byte[] buf, int start, int end, byte[] needle) {
+        outer:
+        for (int i = start; i <= end - needle.length; i++) {
+            for (int j = 0; j < needle.length; j++) {
+                if (buf[i + j] != needle[j]) continue outer;
+            }
+            return i;
+        }
+        return -1;
+    }
+}
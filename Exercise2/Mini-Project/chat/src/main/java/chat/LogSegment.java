@@ -0,0 +1,133 @@
+package chat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * One memory-mapped file of the MessageLog.
+ *
+ * Records are laid out back to back as [int length][int crc32][payload].
+ * A zero length (the file is preallocated with zeros) or a checksum
+ * mismatch marks the end of valid data, which is where appends resume
+ * after a restart; a torn last write is simply overwritten.
+ */
+final class LogSegment {
+    static final int HEADER_BYTES = 8;
+
+    interface RecordVisitor {
+        void visit(int position, ByteBuffer payload);
+    }
+
+    final long id;
+    final Path path;
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private volatile int position;   // end of the last complete record
+
+    private LogSegment(long id, Path path, FileChannel channel, MappedByteBuffer buffer) {
+        this.id = id;
+        this.path = path;
+        this.channel = channel;
+        this.buffer = buffer;
+    }
+
+    static Path fileName(Path dir, long id) {
+        return dir.resolve(String.format("segment-%020d.log", id));
+    }
+
+    /** Opens (creating and preallocating if needed) a segment for appending. */
+    static LogSegment openWritable(Path dir, long id, int size) throws IOException {
+        return openWritableAt(fileName(dir, id), id, size);
+    }
+
+    /** Same as openWritable but at an explicit path, e.g. a compaction temp file. */
+    static LogSegment openWritableAt(Path path, long id, int size) throws IOException {
+        FileChannel ch = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        int length = (int) Math.max(size, ch.size());
+        LogSegment seg = new LogSegment(id, path, ch, ch.map(FileChannel.MapMode.READ_WRITE, 0, length));
+        seg.position = seg.recover();
+        return seg;
+    }
+
+    /** Opens an existing segment that will only be read. */
+    static LogSegment openReadOnly(Path path, long id) throws IOException {
+        FileChannel ch = FileChannel.open(path, StandardOpenOption.READ);
+        LogSegment seg = new LogSegment(id, path, ch, ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size()));
+        seg.position = seg.recover();
+        return seg;
+    }
+
+    int size() { return position; }
+
+    int capacity() { return buffer.capacity(); }
+
+    /**
+     * Appends one record. Single writer only (the MessageLog append lock).
+     * @return false if the record does not fit and the segment must roll
+     */
+    boolean append(byte[] payload) {
+        int pos = position;
+        if (pos + HEADER_BYTES + payload.length > buffer.capacity()) return false;
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        // payload and checksum first, length last: a crash mid-write leaves a zero or bad-crc header
+        buffer.putInt(pos + 4, (int) crc.getValue());
+        buffer.put(pos + HEADER_BYTES, payload);
+        buffer.putInt(pos, payload.length);
+        position = pos + HEADER_BYTES + payload.length;
+        return true;
+    }
+
+    void force() {
+        buffer.force();
+    }
+
+    /** Visits every complete record; safe to call while another thread appends. */
+    void forEach(RecordVisitor visitor) {
+        ByteBuffer view = buffer.duplicate();
+        int end = position;
+        int pos = 0;
+        while (pos < end) {
+            int len = view.getInt(pos);
+            ByteBuffer payload = view.slice(pos + HEADER_BYTES, len);
+            visitor.visit(pos, payload);
+            pos += HEADER_BYTES + len;
+        }
+    }
+
+    /** Copy of the payload of the record starting at position. */
+    byte[] readRecord(int position) {
+        byte[] payload = new byte[buffer.getInt(position)];
+        buffer.duplicate().get(position + HEADER_BYTES, payload);
+        return payload;
+    }
+
+    void close() throws IOException {
+        channel.close();
+    }
+
+    void delete() throws IOException {
+        close();
+        Files.deleteIfExists(path);
+    }
+
+    private int recover() {
+        int pos = 0;
+        int cap = buffer.capacity();
+        while (pos + HEADER_BYTES <= cap) {
+            int len = buffer.getInt(pos);
+            if (len <= 0 || pos + HEADER_BYTES + len > cap) break;
+            CRC32 crc = new CRC32();
+            crc.update(buffer.slice(pos + HEADER_BYTES, len));
+            if ((int) crc.getValue() != buffer.getInt(pos + 4)) break;
+            pos += HEADER_BYTES + len;
+        }
+        return pos;
+    }
+}
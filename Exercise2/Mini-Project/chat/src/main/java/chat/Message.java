@@ -0,0 +1,126 @@
+package chat;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+
+/**
+ * Message represents a chat message (public or private).
+ * Immutable design ensures thread-safety.
+ *
+ * Stored compactly: sender and recipient are ids in the room's UserTable,
+ * the time is epoch millis and the text is kept as UTF-8, so a retained
+ * message is one small object plus its text bytes. The accessors decode on
+ * demand. Until MessageHistory stores it, a message has a detached table of
+ * its own.
+ *
+ * The display line is formatted and UTF-8 encoded once, on first use, and the
+ * resulting frame is written as-is to every recipient.
+ */
+public final class Message {
+    private final UserTable users;
+    private final int from;
+    private final int to;            // UserTable.NONE for room messages
+    private final byte[] text;       // UTF-8
+    private final long epochMillis;
+    private final boolean isPrivate;
+    private final long id;           // per-room (or per-conversation) sequence, 0 until stored in a MessageHistory
+    private volatile byte[] frame;   // lazily encoded display line, see frame()
+    private volatile byte[] binaryFrame;
+
+    public Message(String from, String to, String text, boolean isPrivate) {
+        this(from, to, text, isPrivate, System.currentTimeMillis());
+    }
+
+    /** Recreates a message with its original time, e.g. when replayed from the MessageLog. */
+    Message(String from, String to, String text, boolean isPrivate, long epochMillis) {
+        this(from, to, text, isPrivate, epochMillis, 0);
+    }
+
+    Message(String from, String to, String text, boolean isPrivate, long epochMillis, long id) {
+        if (from == null || from.trim().isEmpty()) {
+            throw new IllegalArgumentException("Sender cannot be null or empty");
+        }
+        if (text == null) {
+            throw new IllegalArgumentException("Message text cannot be null");
+        }
+        this.users = to != null ? UserTable.detached(from, to) : UserTable.detached(from);
+        this.from = 0;
+        this.to = to != null ? 1 : UserTable.NONE;
+        this.text = text.getBytes(StandardCharsets.UTF_8);
+        this.isPrivate = isPrivate;
+        this.epochMillis = epochMillis;
+        this.id = id;
+    }
+
+    private Message(Message m, UserTable users, int from, int to, long id) {
+        this.users = users;
+        this.from = from;
+        this.to = to;
+        this.text = m.text;
+        this.isPrivate = m.isPrivate;
+        this.epochMillis = m.epochMillis;
+        this.id = id;
+    }
+
+    public String getFrom() { return users.name(from); }
+    public String getTo() { return to != UserTable.NONE ? users.name(to) : null; }
+    public String getText() { return new String(text, StandardCharsets.UTF_8); }
+    public boolean isPrivate() { return isPrivate; }
+    public long getEpochMillis() { return epochMillis; }
+    public long getId() { return id; }
+
+    /** The text as UTF-8; callers must not modify the array. */
+    byte[] textBytes() { return text; }
+
+    /** Copy of this message carrying the given id; see MessageHistory.append(). */
+    Message withId(long id) {
+        return new Message(this, users, from, to, id);
+    }
+
+    /** Copy carrying the given id, with its users interned into table (if not null). */
+    Message stored(UserTable table, long id) {
+        if (table == null || table == users) return withId(id);
+        int t = to != UserTable.NONE ? table.intern(users.name(to)) : UserTable.NONE;
+        return new Message(this, table, table.intern(users.name(from)), t, id);
+    }
+
+    public String timestamp() {
+        LocalDateTime ts = LocalDateTime.ofInstant(Instant.ofEpochMilli(epochMillis), ZoneId.systemDefault());
+        return ts.format(DateTimeFormatter.ISO_LOCAL_DATE_TIME);
+    }
+
+    public String toDisplayString() {
+        String prefix = id > 0 ? "#" + id + " " : "";
+        if (isPrivate) {
+            return String.format("%s[%s] (private) %s -> %s: %s", prefix, timestamp(), getFrom(), getTo(), getText());
+        } else {
+            return String.format("%s[%s] %s: %s", prefix, timestamp(), getFrom(), getText());
+        }
+    }
+
+    /**
+     * The display line encoded as an outbound frame. Computed at most a few
+     * times under a race and then cached; callers must not modify the array.
+     */
+    byte[] frame() {
+        byte[] f = frame;
+        if (f == null) {
+            f = OutboundQueue.encode(toDisplayString());
+            frame = f;
+        }
+        return f;
+    }
+
+    /** Same as frame(), for clients using BinaryProtocol. */
+    byte[] binaryFrame() {
+        byte[] f = binaryFrame;
+        if (f == null) {
+            f = BinaryProtocol.messageFrame(this);
+            binaryFrame = f;
+        }
+        return f;
+    }
+}
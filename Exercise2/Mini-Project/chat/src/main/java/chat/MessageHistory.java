@@ -0,0 +1,288 @@
+package chat;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Fixed-capacity ring buffer of messages with retention by count, age and bytes.
+ *
+ * Appends are lock-free: a writer claims a sequence number, fills its slot and
+ * then advances the published mark over every contiguous filled slot, finishing
+ * publication for slower writers too. Nobody waits for anybody, and readers
+ * only ever see a gap-free prefix. Readers never lock either.
+ * snapshot() captures the current range of sequence numbers and iterates the
+ * live slots, so a JOIN or HISTORY costs no copy. Entries evicted while a
+ * snapshot is being read are skipped.
+ *
+ * Every appended message gets id = sequence + 1, so ids are monotonic per
+ * history and a page such as "the 20 before #340" is found by index
+ * arithmetic rather than a scan.
+ */
+final class MessageHistory {
+
+    private static final class Entry {
+        final long seq;
+        final Message msg;
+        final int bytes;
+
+        Entry(long seq, Message msg, int bytes) {
+            this.seq = seq;
+            this.msg = msg;
+            this.bytes = bytes;
+        }
+    }
+
+    private final AtomicReferenceArray<Entry> slots;
+    private final int capacity;
+    private final long maxAgeMillis;   // 0 = no age limit
+    private final long maxBytes;       // 0 = no byte limit
+    private final UserTable users;     // the room's, or null
+
+    private final AtomicLong claimed = new AtomicLong();  // next sequence to hand out
+    private final AtomicLong published = new AtomicLong(); // entries below this are readable
+    private final AtomicLong tail = new AtomicLong();     // oldest retained sequence
+    private final AtomicLong bytes = new AtomicLong();
+
+    MessageHistory(int capacity, long maxAgeMillis, long maxBytes) {
+        this(capacity, maxAgeMillis, maxBytes, null);
+    }
+
+    /** A history whose messages keep their users in the given table (null: as appended). */
+    MessageHistory(int capacity, long maxAgeMillis, long maxBytes, UserTable users) {
+        this.users = users;
+        this.capacity = Math.max(1, capacity);
+        this.slots = new AtomicReferenceArray<>(this.capacity);
+        this.maxAgeMillis = maxAgeMillis;
+        this.maxBytes = maxBytes;
+    }
+
+    /** Public room history, sized by --history-capacity/-max-age/-max-bytes. */
+    static MessageHistory forRoom(UserTable users) {
+        ServerConfig config = ServerConfig.get();
+        return new MessageHistory(config.getHistoryCapacity(),
+                config.getHistoryMaxAgeMillis(), config.getHistoryMaxBytes(), users);
+    }
+
+    /** History of one private conversation, sized by --private-history-capacity. */
+    static MessageHistory forConversation(UserTable users) {
+        ServerConfig config = ServerConfig.get();
+        return new MessageHistory(config.getPrivateHistoryCapacity(),
+                config.getHistoryMaxAgeMillis(), config.getHistoryMaxBytes(), users);
+    }
+
+    /** Appends the message and returns it stamped with its id (and its users interned). */
+    Message append(Message msg) {
+        return put(claimed.getAndIncrement(), msg);
+    }
+
+    /**
+     * Appends a message that already has an id, e.g. one a cluster owner relayed.
+     * Unlike restore() this is safe while the history is shared. Ids not newer
+     * than the last one are ignored; the sequences a gap skips get empty
+     * entries, which readers pass over like evicted ones.
+     * @return the stored message, or null if it was ignored
+     */
+    Message appendWithId(Message msg) {
+        if (msg.getId() <= 0) return append(msg);
+        long seq = msg.getId() - 1;
+        long c;
+        do {
+            c = claimed.get();
+            if (seq < c) return null;
+        } while (!claimed.compareAndSet(c, seq + 1));
+        // older skipped sequences share a slot with a newer entry, which publish() passes over as well
+        for (long gap = Math.max(c, seq - capacity + 1); gap < seq; gap++) fill(new Entry(gap, null, 0));
+        return put(seq, msg);
+    }
+
+    private Message put(long seq, Message msg) {
+        msg = msg.stored(users, seq + 1);
+        fill(new Entry(seq, msg, sizeOf(msg)));
+        publish();
+        trim(msg.getEpochMillis());
+        return msg;
+    }
+
+    /** Stores entry in its slot unless a writer that lapped the ring already put a newer one there. */
+    private void fill(Entry entry) {
+        int idx = index(entry.seq);
+        while (true) {
+            Entry previous = slots.get(idx);
+            if (previous != null && previous.seq > entry.seq) return;
+            if (slots.compareAndSet(idx, previous, entry)) {
+                // whoever takes an entry out of its slot (overwrite or trim) returns its bytes
+                bytes.addAndGet(entry.bytes - (previous != null ? previous.bytes : 0));
+                return;
+            }
+        }
+    }
+
+    /**
+     * Re-appends a message that already has an id, e.g. from the MessageLog.
+     * Only valid before the history is shared with other threads (see
+     * appendWithId() for a shared one). Ids that
+     * are not newer than the last one are ignored; a gap skips ahead.
+     * A message without an id is appended as usual.
+     * @return the stored message, or null if it was ignored
+     */
+    Message restore(Message msg) {
+        if (msg.getId() <= 0) {
+            return append(msg);
+        }
+        long seq = msg.getId() - 1;
+        if (seq < claimed.get()) return null;
+        if (seq > claimed.get()) {
+            claimed.set(seq);
+            published.set(seq);
+            tail.set(seq);
+        }
+        return append(msg);
+    }
+
+    /**
+     * Moves the published mark across filled slots. Stops at the first slot
+     * whose writer has not stored its entry yet; that writer calls this
+     * itself once it has, so no entry is left unpublished.
+     */
+    private void publish() {
+        while (true) {
+            long p = published.get();
+            if (p >= claimed.get()) return;
+            Entry e = slots.get(index(p));
+            if (e == null || e.seq < p) return;
+            published.compareAndSet(p, p + 1);
+        }
+    }
+
+    int size() {
+        return (int) (published.get() - tail.get());
+    }
+
+    /** Approximate bytes held by the retained messages. */
+    long bytes() {
+        return bytes.get();
+    }
+
+    Snapshot snapshot() {
+        long to = published.get();
+        long from = Math.min(Math.max(tail.get(), to - capacity), to);
+        if (maxAgeMillis > 0) {
+            // a quiet room only evicts on its next append; hide what has aged out since
+            long cutoff = System.currentTimeMillis() - maxAgeMillis;
+            while (from < to) {
+                Message m = messageAt(from);
+                if (m != null && m.getEpochMillis() >= cutoff) break;
+                from++;
+            }
+        }
+        return new Snapshot(from, to);
+    }
+
+    /** Advances the tail past entries that exceed the count, age or byte limits. */
+    private void trim(long now) {
+        while (true) {
+            long t = tail.get();
+            long h = published.get();
+            if (t >= h) return;
+            int idx = index(t);
+            Entry oldest = slots.get(idx);
+            boolean live = oldest != null && oldest.seq == t && oldest.msg != null;
+            boolean overCapacity = h - t > capacity || !live;
+            boolean tooOld = live && maxAgeMillis > 0 && now - oldest.msg.getEpochMillis() > maxAgeMillis;
+            boolean tooBig = maxBytes > 0 && bytes.get() > maxBytes && h - t > 1;
+            if (!overCapacity && !tooOld && !tooBig) return;
+            if (tail.compareAndSet(t, t + 1) && live && slots.compareAndSet(idx, oldest, null)) {
+                bytes.addAndGet(-oldest.bytes);
+            }
+        }
+    }
+
+    private int index(long seq) {
+        return (int) (seq % capacity);
+    }
+
+    private Message messageAt(long seq) {
+        if (seq < tail.get()) return null;
+        Entry e = slots.get(index(seq));
+        return e != null && e.seq == seq ? e.msg : null;
+    }
+
+    /** Rough heap cost of a message, used by the byte limit; usernames live in the UserTable. */
+    private static int sizeOf(Message m) {
+        return 64 + m.textBytes().length;
+    }
+
+    /**
+     * Read-only view of the messages present when it was taken. Iteration
+     * reads the ring directly and skips anything evicted in the meantime.
+     */
+    final class Snapshot implements Iterable<Message> {
+        private final long from;
+        private final long to;
+
+        private Snapshot(long from, long to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        /** Number of messages when the snapshot was taken. */
+        int size() { return (int) (to - from); }
+
+        boolean isEmpty() { return to == from; }
+
+        /** Id of the oldest message in this snapshot. */
+        long firstId() { return from + 1; }
+
+        /** Id of the newest message in this snapshot (firstId() - 1 if it is empty). */
+        long lastId() { return to; }
+
+        /** The message with the given id, or null if it is not in this snapshot (any more). */
+        Message get(long id) {
+            return id > from && id <= to ? messageAt(id - 1) : null;
+        }
+
+        /** The newest n messages. */
+        Snapshot latest(int n) {
+            return new Snapshot(Math.max(from, to - Math.max(0, n)), to);
+        }
+
+        /** Messages with an id greater than the given one. */
+        Snapshot since(long id) {
+            return new Snapshot(Math.min(Math.max(from, id), to), to);
+        }
+
+        /** Up to n messages with an id less than the given one. */
+        Snapshot before(long id, int n) {
+            long end = Math.max(from, Math.min(to, id - 1));
+            return new Snapshot(Math.max(from, end - Math.max(0, n)), end);
+        }
+
+        @Override
+        public Iterator<Message> iterator() {
+            return new Iterator<Message>() {
+                private long seq = from;
+                private Message next = advance();
+
+                private Message advance() {
+                    while (seq < to) {
+                        Message m = messageAt(seq++);
+                        if (m != null) return m;
+                    }
+                    return null;
+                }
+
+                @Override public boolean hasNext() { return next != null; }
+
+                @Override
+                public Message next() {
+                    if (next == null) throw new NoSuchElementException();
+                    Message m = next;
+                    next = advance();
+                    return m;
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,412 @@
+package chat;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Durable, append-only log of every room and private Message, kept as a
+ * series of memory-mapped LogSegment files in --log-dir.
+ *
+ * - Appends go to the active segment; a full segment is rolled to a new file.
+ * - Durability follows --log-fsync: "always" forces each append to disk,
+ *   "interval" (default) forces every --log-fsync-interval-ms, "never"
+ *   leaves it to the OS.
+ * - After a restart nothing is loaded up front. The log only remembers which
+ *   segments mention which room, and a room's history is replayed from those
+ *   segments the first time the room is used (see ChatRoomManager).
+ * - Once more than --log-max-segments closed segments exist they are
+ *   compacted in the background: only the newest history-capacity messages
+ *   per room (and private-history-capacity per conversation) within
+ *   --history-max-age survive, which keeps disk use bounded.
+ * - A write that fails marks the log failed: that append and every later one
+ *   throws, so a sender learns its message was not saved instead of the log
+ *   quietly carrying on with a hole in it.
+ */
+final class MessageLog {
+    private static final Logger logger = Logger.getLogger(MessageLog.class.getName());
+
+    enum FsyncPolicy { ALWAYS, INTERVAL, NEVER }
+
+    private static final byte FLAG_PRIVATE = 1;
+    private static final int ROOM_OFFSET = 1 + 8 + 8;   // after flags, epochMillis and id
+
+    private final Path dir;
+    private final int segmentBytes;
+    private final int maxClosedSegments;
+    private final FsyncPolicy fsync;
+    private final int historyCapacity;
+    private final int privateHistoryCapacity;
+    private final long maxAgeMillis;
+
+    private final ReentrantLock appendLock = new ReentrantLock();
+    private final ReentrantLock compactLock = new ReentrantLock();
+    private final List<LogSegment> closed = new CopyOnWriteArrayList<>();
+    private final Map<String, Set<Long>> roomSegments = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService background = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "message-log");
+        t.setDaemon(true);
+        return t;
+    });
+    private volatile LogSegment active;
+    private volatile IOException failure;   // first failed write; appends are refused after it
+
+    private MessageLog(Path dir, ServerConfig config) {
+        this.dir = dir;
+        this.segmentBytes = config.getLogSegmentBytes();
+        this.maxClosedSegments = config.getLogMaxSegments();
+        this.fsync = config.getLogFsyncPolicy();
+        this.historyCapacity = config.getHistoryCapacity();
+        this.privateHistoryCapacity = config.getPrivateHistoryCapacity();
+        this.maxAgeMillis = config.getHistoryMaxAgeMillis();
+    }
+
+    /** Opens the log in config's --log-dir, recovering existing segments. */
+    static MessageLog open(ServerConfig config) throws IOException {
+        Path dir = Paths.get(config.getLogDir());
+        Files.createDirectories(dir);
+        MessageLog log = new MessageLog(dir, config);
+        log.recover();
+        if (log.fsync == FsyncPolicy.INTERVAL) {
+            long interval = config.getLogFsyncIntervalMillis();
+            log.background.scheduleWithFixedDelay(log::forceQuietly, interval, interval, TimeUnit.MILLISECONDS);
+        }
+        logger.info("Message log opened in " + dir + " (" + log.closed.size() + " closed segments, fsync "
+                + log.fsync.name().toLowerCase() + ")");
+        return log;
+    }
+
+    /**
+     * Appends the message to the active segment.
+     * @throws IOException if it was not saved: too large for a segment, or the log has failed
+     */
+    void append(String roomId, Message msg) throws IOException {
+        byte[] record = encode(roomId, msg);
+        appendLock.lock();
+        try {
+            if (failure != null) throw new IOException("message log failed", failure);
+            boolean fits = active.append(record);
+            try {
+                if (!fits) {
+                    roll();
+                    fits = active.append(record);
+                }
+                if (fits && fsync == FsyncPolicy.ALWAYS) active.force();
+            } catch (IOException e) {
+                throw fail(e);
+            } catch (UncheckedIOException e) {
+                throw fail(e.getCause());
+            }
+            if (!fits) throw new IOException("message too large for a log segment (room " + roomId + ")");
+            roomSegments.computeIfAbsent(roomId, k -> ConcurrentHashMap.newKeySet()).add(active.id);
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    /** True once a write has failed; nothing is appended after that. */
+    boolean isFailed() {
+        return failure != null;
+    }
+
+    /** Marks the log failed (keeping the first cause) and returns e to throw. */
+    private IOException fail(IOException e) {
+        if (failure == null) {
+            failure = e;
+            logger.log(Level.SEVERE, "Message log in " + dir + " failed, messages are no longer persisted", e);
+        }
+        return e;
+    }
+
+    /** True if the log holds anything for the room, i.e. replay() would restore messages. */
+    boolean hasRoom(String roomId) {
+        return roomSegments.containsKey(roomId);
+    }
+
+    /** Restores the room's logged messages, oldest first, into the room's histories. */
+    void replay(ChatRoom room) {
+        Set<Long> ids = roomSegments.get(room.getRoomId());
+        if (ids == null) return;
+        byte[] wanted = room.getRoomId().getBytes(StandardCharsets.UTF_8);
+        long cutoff = maxAgeMillis > 0 ? System.currentTimeMillis() - maxAgeMillis : 0;
+        int[] restored = {0};
+        compactLock.lock();   // segments must not be swapped out underneath the scan
+        try {
+            List<LogSegment> segments = new ArrayList<>(closed);
+            segments.add(active);
+            for (LogSegment seg : segments) {
+                if (!ids.contains(seg.id)) continue;
+                seg.forEach((pos, payload) -> {
+                    if (!roomEquals(payload, wanted)) return;
+                    Message msg = decode(payload);
+                    if (msg.getEpochMillis() < cutoff) return;
+                    room.restore(msg);
+                    restored[0]++;
+                });
+            }
+        } finally {
+            compactLock.unlock();
+        }
+        logger.info("Replayed " + restored[0] + " logged messages into ChatRoom " + room.getRoomId());
+    }
+
+    /**
+     * Forces and closes every segment, even if one of them fails.
+     * @throws IOException the first failure, with any later ones suppressed
+     */
+    void close() throws IOException {
+        background.shutdown();
+        appendLock.lock();
+        try {
+            IOException error = null;
+            try {
+                active.force();
+            } catch (UncheckedIOException e) {
+                error = fail(e.getCause());
+            }
+            List<LogSegment> segments = new ArrayList<>(closed);
+            segments.add(active);
+            for (LogSegment seg : segments) {
+                try {
+                    seg.close();
+                } catch (IOException e) {
+                    if (error == null) error = e;
+                    else error.addSuppressed(e);
+                }
+            }
+            if (error != null) throw error;
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    /** The --log-fsync=interval flush; a failure marks the log failed like a failed append. */
+    private void forceQuietly() {
+        try {
+            if (failure == null) active.force();
+        } catch (UncheckedIOException e) {
+            fail(e.getCause());
+        }
+    }
+
+    private void recover() throws IOException {
+        TreeMap<Long, Path> files = new TreeMap<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "segment-*.log")) {
+            for (Path p : stream) {
+                String name = p.getFileName().toString();
+                try {
+                    files.put(Long.parseLong(name.substring(8, name.length() - 4)), p);
+                } catch (NumberFormatException e) {
+                    logger.warning("Skipping " + p + ": not a log segment name");
+                }
+            }
+        }
+        long activeId = files.isEmpty() ? 1 : files.lastKey();
+        for (Map.Entry<Long, Path> e : files.headMap(activeId).entrySet()) {
+            LogSegment seg = LogSegment.openReadOnly(e.getValue(), e.getKey());
+            closed.add(seg);
+            indexRooms(seg);
+        }
+        active = LogSegment.openWritable(dir, activeId, segmentBytes);
+        indexRooms(active);
+    }
+
+    private void indexRooms(LogSegment seg) {
+        seg.forEach((pos, payload) ->
+                roomSegments.computeIfAbsent(roomOf(payload), k -> ConcurrentHashMap.newKeySet()).add(seg.id));
+    }
+
+    /** Called with the append lock held. */
+    private void roll() throws IOException {
+        LogSegment full = active;
+        full.force();
+        active = LogSegment.openWritable(dir, full.id + 1, segmentBytes);
+        closed.add(full);
+        if (closed.size() > maxClosedSegments) {
+            background.execute(this::compactQuietly);
+        }
+    }
+
+    private void compactQuietly() {
+        try {
+            compact();
+        } catch (IOException | RuntimeException e) {
+            logger.log(Level.WARNING, "Message log compaction failed", e);
+        }
+    }
+
+    /**
+     * Rewrites all closed segments keeping, per room and per private
+     * conversation, only the records that would still be in memory history.
+     */
+    void compact() throws IOException {
+        compactLock.lock();
+        try {
+            List<LogSegment> inputs = new ArrayList<>(closed);
+            if (inputs.size() <= 1) return;
+
+            // newest to oldest: a record survives while its room/conversation is under capacity
+            Map<String, Integer> counts = new HashMap<>();
+            long cutoff = maxAgeMillis > 0 ? System.currentTimeMillis() - maxAgeMillis : Long.MIN_VALUE;
+            List<List<Integer>> keep = new ArrayList<>();
+            for (int i = 0; i < inputs.size(); i++) keep.add(null);
+            for (int i = inputs.size() - 1; i >= 0; i--) {
+                List<Integer> positions = new ArrayList<>();
+                List<String> keys = new ArrayList<>();
+                List<Boolean> fresh = new ArrayList<>();
+                inputs.get(i).forEach((pos, payload) -> {
+                    positions.add(pos);
+                    keys.add(retentionKey(payload));
+                    fresh.add(payload.getLong(1) >= cutoff);
+                });
+                List<Integer> kept = new ArrayList<>();
+                for (int r = positions.size() - 1; r >= 0; r--) {
+                    String key = keys.get(r);
+                    int cap = key.indexOf('\n') >= 0 ? privateHistoryCapacity : historyCapacity;
+                    if (fresh.get(r) && counts.merge(key, 1, Integer::sum) <= cap) kept.add(positions.get(r));
+                }
+                Collections.reverse(kept);
+                keep.set(i, kept);
+            }
+
+            // write survivors oldest first into as few segments as needed, reusing the input ids
+            List<LogSegment> outputs = new ArrayList<>();
+            List<Path> temps = new ArrayList<>();
+            LogSegment out = null;
+            for (int i = 0; i < inputs.size(); i++) {
+                LogSegment in = inputs.get(i);
+                for (int pos : keep.get(i)) {
+                    byte[] record = in.readRecord(pos);
+                    if (out == null || !out.append(record)) {
+                        if (out != null) out.force();
+                        Path tmp = dir.resolve("compact-" + outputs.size() + ".tmp");
+                        Files.deleteIfExists(tmp);
+                        out = LogSegment.openWritableAt(tmp, inputs.get(outputs.size()).id, segmentBytes);
+                        outputs.add(out);
+                        temps.add(tmp);
+                        out.append(record);
+                    }
+                }
+            }
+            if (out != null) out.force();
+
+            // swap: move each output over the input with the same id, then drop the rest
+            List<LogSegment> replaced = new ArrayList<>();
+            for (int i = 0; i < outputs.size(); i++) {
+                LogSegment o = outputs.get(i);
+                o.close();
+                Files.move(temps.get(i), LogSegment.fileName(dir, o.id),
+                        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                replaced.add(LogSegment.openReadOnly(LogSegment.fileName(dir, o.id), o.id));
+            }
+            for (int i = outputs.size(); i < inputs.size(); i++) inputs.get(i).delete();
+            for (int i = 0; i < outputs.size(); i++) inputs.get(i).close();
+
+            closed.removeAll(inputs);
+            closed.addAll(0, replaced);
+            for (Set<Long> ids : roomSegments.values()) {
+                for (LogSegment in : inputs) ids.remove(in.id);
+            }
+            for (LogSegment seg : replaced) indexRooms(seg);
+            logger.info("Compacted " + inputs.size() + " log segments into " + replaced.size());
+        } finally {
+            compactLock.unlock();
+        }
+    }
+
+    // ---- record encoding: [flags][epochMillis][id][room][from][to][text], strings as [int length][utf-8] ----
+
+    static byte[] encode(String roomId, Message msg) {
+        byte[] room = roomId.getBytes(StandardCharsets.UTF_8);
+        byte[] from = msg.getFrom().getBytes(StandardCharsets.UTF_8);
+        byte[] to = msg.getTo() != null ? msg.getTo().getBytes(StandardCharsets.UTF_8) : null;
+        byte[] text = msg.textBytes();
+        ByteBuffer buf = ByteBuffer.allocate(ROOM_OFFSET + 16 + room.length + from.length
+                + (to != null ? to.length : 0) + text.length);
+        buf.put(msg.isPrivate() ? FLAG_PRIVATE : 0);
+        buf.putLong(msg.getEpochMillis());
+        buf.putLong(msg.getId());
+        putString(buf, room);
+        putString(buf, from);
+        putString(buf, to);
+        putString(buf, text);
+        return buf.array();
+    }
+
+    static Message decode(ByteBuffer payload) {
+        ByteBuffer buf = payload.duplicate();
+        boolean isPrivate = (buf.get() & FLAG_PRIVATE) != 0;
+        long epochMillis = buf.getLong();
+        long id = buf.getLong();
+        getString(buf); // room
+        String from = getString(buf);
+        String to = getString(buf);
+        String text = getString(buf);
+        return new Message(from, to, text, isPrivate, epochMillis, id);
+    }
+
+    static String roomOf(ByteBuffer payload) {
+        ByteBuffer buf = payload.duplicate();
+        buf.position(ROOM_OFFSET);
+        return getString(buf);
+    }
+
+    /** Room id for public records, room id + conversation for private ones. */
+    private static String retentionKey(ByteBuffer payload) {
+        ByteBuffer buf = payload.duplicate();
+        boolean isPrivate = (buf.get() & FLAG_PRIVATE) != 0;
+        buf.position(ROOM_OFFSET);
+        String room = getString(buf);
+        if (!isPrivate) return room;
+        String from = getString(buf);
+        String to = getString(buf);
+        return room + "\n" + (from.compareTo(to) < 0 ? from + ":" + to : to + ":" + from);
+    }
+
+    private static boolean roomEquals(ByteBuffer payload, byte[] room) {
+        int len = payload.getInt(ROOM_OFFSET);
+        if (len != room.length) return false;
+        for (int i = 0; i < len; i++) {
+            if (payload.get(ROOM_OFFSET + 4 + i) != room[i]) return false;
+        }
+        return true;
+    }
+
+    private static void putString(ByteBuffer buf, byte[] s) {
+        if (s == null) {
+            buf.putInt(-1);
+            return;
+        }
+        buf.putInt(s.length);
+        buf.put(s);
+    }
+
+    private static String getString(ByteBuffer buf) {
+        int len = buf.getInt();
+        if (len < 0) return null;
+        byte[] bytes = new byte[len];   // payloads are slices of a mapped file, there is no backing array
+        buf.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,14 @@
+package chat;
+
+import java.io.IOException;
+
+public interface MessageSender {
+    void send(String text) throws IOException;
+
+    /** Sends several lines; implementations may write them out as one batch. */
+    default void sendAll(Iterable<String> lines) throws IOException {
+        for (String line : lines) send(line);
+    }
+
+    void close() throws IOException;
+}
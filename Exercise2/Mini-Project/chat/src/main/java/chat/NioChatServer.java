@@ -0,0 +1,55 @@
+package chat;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * NioChatServer: selector-based transport for the chat protocol.
+ * Accepted channels are spread round-robin over a small fixed set of
+ * EventLoop threads, so idle or slow clients do not each hold a thread.
+ *
+ * Started by ChatServer when run with --transport=nio.
+ */
+public class NioChatServer {
+    private static final Logger logger = Logger.getLogger(NioChatServer.class.getName());
+
+    private final int port;
+    private final EventLoop[] loops;
+    private int next;
+
+    public NioChatServer(int port, int eventLoops) throws IOException {
+        this.port = port;
+        this.loops = new EventLoop[eventLoops];
+        for (int i = 0; i < eventLoops; i++) {
+            loops[i] = new EventLoop("chat-event-loop-" + i);
+        }
+    }
+
+    public void start() throws IOException {
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(port));
+            for (EventLoop loop : loops) loop.start();
+            logger.info("ChatServer (nio, " + loops.length + " event loops) started on port " + port);
+            while (true) {
+                SocketChannel channel = serverChannel.accept();
+                loops[next].register(channel);
+                next = (next + 1) % loops.length;
+                logger.fine("Accepted new client connection: " + channel.getRemoteAddress());
+            }
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Server socket failure on port " + port, e);
+            throw e;
+        } finally {
+            shutdown();
+        }
+    }
+
+    private void shutdown() {
+        logger.info("Shutting down event loops...");
+        for (EventLoop loop : loops) loop.shutdown();
+    }
+}
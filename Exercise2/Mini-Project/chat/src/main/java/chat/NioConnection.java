@@ -0,0 +1,162 @@
+package chat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Non-blocking client connection driven by an EventLoop.
+ * Lines queued on the ClientHandler's OutboundQueue are written by the owning
+ * loop whenever the socket is writable; requestFlush() schedules that.
+ * Sends made during one loop tick collapse into a single flush, which gathers
+ * up to --flush-bytes of queued lines into one channel write.
+ * While the outbound queue is backlogged with replies, reading stops until
+ * flushing has drained it again.
+ */
+final class NioConnection implements EventLoop.Handler {
+    private static final Logger logger = Logger.getLogger(NioConnection.class.getName());
+
+    private static final int READ_BUFFER_SIZE = 8 * 1024;
+    private static final int MAX_GATHER = 256;
+    private static final int FLUSH_BYTES = ServerConfig.get().getFlushBytes();
+
+    private final EventLoop loop;
+    private final SocketChannel channel;
+    private final ClientHandler handler;
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private final String remoteAddress;
+
+    private SelectionKey key;
+    private ByteBuffer[] gather;  // current batch; [gatherOffset, gatherCount) still unwritten
+    private int gatherOffset;
+    private int gatherCount;
+
+    NioConnection(EventLoop loop, SocketChannel channel) throws IOException {
+        this.loop = loop;
+        this.channel = channel;
+        this.remoteAddress = String.valueOf(channel.getRemoteAddress());
+        this.handler = new ClientHandler(this, remoteAddress);
+    }
+
+    void attach(SelectionKey key) { this.key = key; }
+
+    void start() {
+        handler.onConnect();
+    }
+
+    @Override
+    public void onReadable() throws IOException {
+        int n = channel.read(readBuffer);
+        if (n < 0) {
+            close();
+            return;
+        }
+        decodeBuffered();
+    }
+
+    /**
+     * Hands the buffered input to the handler. Commands it leaves unread
+     * (the client is backlogged) stay buffered and reading stops; flush()
+     * resumes once the backlog is gone.
+     */
+    private void decodeBuffered() {
+        readBuffer.flip();
+        handler.onBytes(readBuffer);
+        readBuffer.compact();
+        boolean pending = readBuffer.position() > 0;
+        if (key.isValid()) {
+            int ops = key.interestOps();
+            key.interestOps(pending ? ops & ~SelectionKey.OP_READ : ops | SelectionKey.OP_READ);
+        }
+    }
+
+    @Override
+    public void onWritable() throws IOException {
+        flush();
+    }
+
+    /** Called from any thread after a line was queued for this client. */
+    void requestFlush() {
+        if (closed.get()) return;
+        if (flushScheduled.compareAndSet(false, true)) {
+            loop.execute(this::flushQuietly);
+        }
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (IOException e) {
+            logger.log(Level.FINE, "Write failed to " + remoteAddress, e);
+            close();
+        }
+    }
+
+    private void flush() throws IOException {
+        flushScheduled.set(false);
+        if (closed.get() || !key.isValid()) return;
+        boolean drained = writeQueued();
+        if (readBuffer.position() > 0 && !handler.getOutbound().isBacklogged()) {
+            decodeBuffered();
+            if (!key.isValid()) return;
+        }
+        if (!drained) {
+            // socket buffer full: resume when the selector reports writable
+            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            return;
+        }
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+    }
+
+    /** Writes queued lines until the queue is empty (true) or the socket is full (false). */
+    private boolean writeQueued() throws IOException {
+        while (true) {
+            if (gatherOffset == gatherCount && !fillBatch()) return true;
+            long start = System.nanoTime();
+            // a write that moved nothing is not progress (see ClientHandler.checkLiveness)
+            if (channel.write(gather, gatherOffset, gatherCount - gatherOffset) > 0) {
+                handler.recordWrite(System.nanoTime() - start);
+            }
+            while (gatherOffset < gatherCount && !gather[gatherOffset].hasRemaining()) {
+                gather[gatherOffset++] = null;
+            }
+            if (gatherOffset < gatherCount) return false;
+        }
+    }
+
+    private boolean fillBatch() {
+        OutboundQueue queue = handler.getOutbound();
+        if (gather == null) gather = new ByteBuffer[MAX_GATHER];
+        gatherOffset = 0;
+        gatherCount = 0;
+        int bytes = 0;
+        byte[] frame;
+        while (gatherCount < MAX_GATHER && bytes < FLUSH_BYTES && (frame = queue.poll()) != null) {
+            // frames may be shared between connections; each gets its own buffer position
+            ByteBuffer buf = ByteBuffer.wrap(frame);
+            gather[gatherCount++] = buf;
+            bytes += buf.remaining();
+        }
+        return gatherCount > 0;
+    }
+
+    @Override
+    public void close() {
+        if (!closed.compareAndSet(false, true)) return;
+        loop.execute(() -> {
+            if (key != null) key.cancel();
+            try {
+                // best-effort: push out whatever fits, e.g. a final ERROR line
+                writeQueued();
+            } catch (IOException ignored) {}
+            try { channel.close(); } catch (IOException ignored) {}
+            handler.onDisconnect();
+        });
+    }
+}
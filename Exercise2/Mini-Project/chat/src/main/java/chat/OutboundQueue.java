@@ -0,0 +1,433 @@
+package chat;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded queue of outbound lines for one client, filled by room fan-out and
+ * drained by that client's writer. Producers never block: when the queue is
+ * full the configured OverflowPolicy decides what gives.
+ *
+ * Replies to the client's own commands are not subject to the policy, but
+ * they do count toward capacity: while they hold the queue over it the
+ * connection stops reading commands (awaitRoom(), isBacklogged()), so a
+ * client that pipelines requests without reading cannot grow it further.
+ * Multi-line replies are sized to remainingCapacity() by their callers
+ * (paged ones continue through their cursor), so one HISTORY or STATS
+ * cannot push the queue far past capacity either.
+ *
+ * Lines are queued as encoded UTF-8 frames (terminating newline included).
+ * A frame may be shared by every recipient of a broadcast, so nobody may
+ * modify one after it has been queued.
+ */
+final class OutboundQueue {
+
+    enum OverflowPolicy {
+        /** Discard the oldest queued line to make room. */
+        DROP_OLDEST,
+        /** Refuse the line; the caller disconnects the slow client. */
+        DISCONNECT,
+        /** Merge presence ([USERS] snapshots, [PRESENCE] deltas) into the last such
+         *  line still queued for the same room, where it stands; otherwise drop the
+         *  oldest line and tell the client how many lines it missed. */
+        COALESCE;
+
+        static OverflowPolicy parse(String value) {
+            return valueOf(value.trim().toUpperCase().replace('-', '_'));
+        }
+    }
+
+    private static final String USERS_PREFIX = "[USERS] ";
+    private static final String PRESENCE_PREFIX = "[PRESENCE] ";
+    private static final byte[] USERS_BYTES = USERS_PREFIX.getBytes(StandardCharsets.UTF_8);
+    private static final byte[] PRESENCE_BYTES = PRESENCE_PREFIX.getBytes(StandardCharsets.UTF_8);
+
+    private final int capacity;
+    private final OverflowPolicy policy;
+    // queued lines by sequence number: line seq is in ring[seq & (ring.length - 1)], head <= seq < tail
+    private byte[][] ring = new byte[16][];
+    private long head;
+    private long tail;
+    // COALESCE: sequence number of the last presence line offered per room (null key: the JOIN room)
+    private final Map<String, Long> presenceAt = new HashMap<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition room = lock.newCondition();
+    private long skipped;
+    private long dropped;
+    private boolean closed;
+    private volatile boolean binary;   // frames follow BinaryProtocol, see useBinaryFraming()
+
+    OutboundQueue(int capacity, OverflowPolicy policy) {
+        this.capacity = Math.max(1, capacity);
+        this.policy = policy;
+    }
+
+    /** Encodes one protocol line as a frame. */
+    static byte[] encode(String line) {
+        return (line + "\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    /** The client switched to binary frames; affects the skip notice and presence coalescing. */
+    void useBinaryFraming() {
+        binary = true;
+    }
+
+    static OutboundQueue fromConfig() {
+        ServerConfig config = ServerConfig.get();
+        return new OutboundQueue(config.getOutboundCapacity(), config.getOverflowPolicy());
+    }
+
+    /**
+     * Queues a fan-out line subject to the overflow policy.
+     * @return false if the line was refused and the client should be disconnected
+     */
+    boolean offer(byte[] line) {
+        lock.lock();
+        try {
+            if (closed) return true;
+            Presence presence = policy == OverflowPolicy.COALESCE ? Presence.parse(line, binary) : null;
+            if (count() >= capacity) {
+                switch (policy) {
+                    case DISCONNECT:
+                        return false;
+                    case COALESCE:
+                        dropped++;
+                        if (presence != null && coalescePresence(presence)) return true;
+                        pollFirst();
+                        skipped++;
+                        break;
+                    default:
+                        pollFirst();
+                        dropped++;
+                        break;
+                }
+            }
+            if (presence != null) presenceAt.put(presence.room, tail);
+            addLast(line);
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Queues a direct reply to the client's own command; never refused, see isBacklogged(). */
+    void add(byte[] line) {
+        lock.lock();
+        try {
+            if (closed) return;
+            if (policy == OverflowPolicy.COALESCE) {
+                // a [USERS] reply: later deltas must not be merged into a line queued before it
+                Presence presence = Presence.parse(line, binary);
+                if (presence != null) presenceAt.remove(presence.room);
+            }
+            addLast(line);
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Queues a batch of replies under one lock acquisition; never refused, see
+     * isBacklogged(). Size the batch to remainingCapacity().
+     */
+    void addAll(Iterable<byte[]> batch) {
+        lock.lock();
+        try {
+            if (closed) return;
+            for (byte[] line : batch) addLast(line);
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Lines that can be queued before the queue is at capacity; 0 when it is there already. */
+    int remainingCapacity() {
+        lock.lock();
+        try {
+            return (int) Math.max(0, capacity - count());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Moves up to max queued lines into the given list without waiting. */
+    int drainTo(List<byte[]> to, int max) {
+        lock.lock();
+        try {
+            int n = 0;
+            byte[] line;
+            while (n < max && (line = next()) != null) {
+                to.add(line);
+                n++;
+            }
+            return n;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Next line without waiting, or null if none is queued. */
+    byte[] poll() {
+        lock.lock();
+        try {
+            return next();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits up to the given time for the next line.
+     * @return the line, or null on timeout or once the queue is closed and empty
+     */
+    byte[] poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lock();
+        try {
+            while (count() == 0 && skipped == 0 && !closed) {
+                if (nanos <= 0) return null;
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            return next();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** True while queued lines exceed capacity; the connection should stop reading commands. */
+    boolean isBacklogged() {
+        lock.lock();
+        try {
+            return count() > capacity;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Blocks while the queue is backlogged, until it drains to capacity or is closed. */
+    void awaitRoom() throws InterruptedException {
+        lock.lock();
+        try {
+            while (count() > capacity && !closed) room.await();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int size() {
+        lock.lock();
+        try {
+            return (int) count();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long getDropped() {
+        lock.lock();
+        try {
+            return dropped;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    boolean isClosed() {
+        lock.lock();
+        try {
+            return closed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void close() {
+        lock.lock();
+        try {
+            // lines already queued can still be polled, e.g. a final ERROR before close
+            closed = true;
+            notEmpty.signalAll();
+            room.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private byte[] next() {
+        if (skipped > 0) {
+            byte[] notice = encode("[SYSTEM] " + skipped + " messages skipped (connection too slow)");
+            if (binary) notice = BinaryProtocol.fromLine(notice);
+            skipped = 0;
+            return notice;
+        }
+        byte[] line = pollFirst();
+        if (count() == capacity) room.signalAll();
+        return line;
+    }
+
+    private long count() {
+        return tail - head;
+    }
+
+    private void addLast(byte[] line) {
+        if (count() == ring.length) {
+            byte[][] grown = new byte[ring.length * 2][];
+            for (long seq = head; seq < tail; seq++) grown[slot(grown, seq)] = ring[slot(ring, seq)];
+            ring = grown;
+        }
+        ring[slot(ring, tail++)] = line;
+    }
+
+    private byte[] pollFirst() {
+        if (head == tail) return null;
+        int i = slot(ring, head++);
+        byte[] line = ring[i];
+        ring[i] = null;
+        return line;
+    }
+
+    private static int slot(byte[][] ring, long seq) {
+        return (int) (seq & (ring.length - 1));
+    }
+
+    /**
+     * Folds incoming into the presence line last queued for its room, where
+     * that line is: a [USERS] snapshot if it was one (the deltas applied to
+     * it), otherwise the net [PRESENCE] deltas of both.
+     * @return false if no presence line for the room is still queued
+     */
+    private boolean coalescePresence(Presence incoming) {
+        Long at = presenceAt.get(incoming.room);
+        if (at == null) return false;
+        if (at < head) {
+            presenceAt.remove(incoming.room);   // already written out
+            return false;
+        }
+        int i = slot(ring, at);
+        Presence queued = Presence.parse(ring[i], binary);
+        Map<String, Boolean> deltas = new LinkedHashMap<>();
+        Set<String> snapshot = queued.applyTo(null, deltas);
+        snapshot = incoming.applyTo(snapshot, deltas);
+        StringBuilder text;
+        if (snapshot != null) {
+            text = new StringBuilder(USERS_PREFIX).append(String.join(",", snapshot));
+        } else {
+            text = new StringBuilder("[PRESENCE]");
+            for (Map.Entry<String, Boolean> e : deltas.entrySet()) {
+                text.append(' ').append(e.getValue() ? '+' : '-').append(e.getKey());
+            }
+        }
+        ring[i] = frame(incoming.room, text.toString());
+        return true;
+    }
+
+    private byte[] frame(String roomId, String text) {
+        byte[] frame = encode(text);
+        if (roomId == null) return binary ? BinaryProtocol.fromLine(frame) : frame;
+        if (binary) return BinaryProtocol.roomFrame(roomId.getBytes(StandardCharsets.UTF_8), BinaryProtocol.fromLine(frame));
+        return encode("@" + roomId + " " + text);
+    }
+
+    /** A queued [USERS] or [PRESENCE] line, as text or binary frame, possibly tagged with its room. */
+    private static final class Presence {
+        final String room;      // null: the client's JOIN room
+        final boolean users;
+        final String body;      // after the prefix
+
+        private Presence(String room, boolean users, String body) {
+            this.room = room;
+            this.users = users;
+            this.body = body;
+        }
+
+        /** The line as presence, or null if it is something else. */
+        static Presence parse(byte[] line, boolean binary) {
+            return binary ? parseFrame(line) : parseText(line);
+        }
+
+        // every line offered under COALESCE comes through here: reject on the bytes, decode only presence
+        private static Presence parseText(byte[] line) {
+            int start = 0;
+            if (line.length > 0 && line[0] == '@') {
+                while (start < line.length && line[start] != ' ') start++;
+                start++;
+            }
+            boolean users = startsWith(line, start, USERS_BYTES);
+            if (!users && !startsWith(line, start, PRESENCE_BYTES)) return null;
+            String room = start > 0 ? new String(line, 1, start - 2, StandardCharsets.UTF_8) : null;
+            int body = start + (users ? USERS_BYTES.length : PRESENCE_BYTES.length);
+            return new Presence(room, users, new String(line, body, line.length - 1 - body, StandardCharsets.UTF_8));
+        }
+
+        private static boolean startsWith(byte[] line, int from, byte[] prefix) {
+            if (line.length - from < prefix.length) return false;
+            for (int i = 0; i < prefix.length; i++) {
+                if (line[from + i] != prefix[i]) return false;
+            }
+            return true;
+        }
+
+        private static Presence parseFrame(byte[] frame) {
+            ByteBuffer buf = ByteBuffer.wrap(frame);
+            BinaryProtocol.getVarint(buf);
+            byte op = buf.get();
+            int roomAt = -1;
+            if (op == BinaryProtocol.OUT_ROOM) {
+                roomAt = buf.position();
+                long len = BinaryProtocol.getVarint(buf);
+                buf.position(buf.position() + (int) len);
+                BinaryProtocol.getVarint(buf);
+                op = buf.get();
+            }
+            if (op != BinaryProtocol.OUT_USERS && op != BinaryProtocol.OUT_PRESENCE) return null;
+            int body = buf.position();
+            String room = null;
+            if (roomAt >= 0) room = BinaryProtocol.getString(buf.position(roomAt));
+            return new Presence(room, op == BinaryProtocol.OUT_USERS, BinaryProtocol.getText(buf.position(body)));
+        }
+
+        /**
+         * Applies this line on top of the state so far: a snapshot replaces it,
+         * deltas update the snapshot if there is one, else they are merged, the
+         * later one for a user winning.
+         * @return the snapshot after this line, null while there is none
+         */
+        Set<String> applyTo(Set<String> snapshot, Map<String, Boolean> deltas) {
+            if (users) {
+                deltas.clear();
+                Set<String> list = new LinkedHashSet<>();
+                for (String user : body.split(",")) {
+                    if (!user.isEmpty()) list.add(user);
+                }
+                return list;
+            }
+            for (String delta : body.split(" ")) {
+                if (delta.length() < 2) continue;
+                boolean joined = delta.charAt(0) == '+';
+                String user = delta.substring(1);
+                if (snapshot == null) {
+                    deltas.remove(user);
+                    deltas.put(user, joined);
+                } else if (joined) {
+                    snapshot.add(user);
+                } else {
+                    snapshot.remove(user);
+                }
+            }
+            return snapshot;
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package chat;
+
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Outgoing connection from this node to one peer. Frames are queued by any
+ * thread and written in order by the link's own thread, which also keeps
+ * reconnecting while the peer is unreachable. Every (re)connect starts with
+ * HELLO followed by the Cluster's resync frames, so a restarted peer learns
+ * again which of its rooms this node mirrors and who is in them.
+ *
+ * Peers never send on this connection, so while idle the link polls it for
+ * end-of-stream to notice a peer that went away before the next write would.
+ *
+ * Delivery is at most once: frames queued while the peer is down wait (up to
+ * MAX_QUEUED, oldest dropped first), but a batch that was being written when
+ * the connection broke is not retried.
+ */
+final class PeerLink {
+    private static final Logger logger = Logger.getLogger(PeerLink.class.getName());
+
+    private static final int MAX_QUEUED = 100_000;
+    private static final int MAX_BATCH = 1024;
+    private static final long RETRY_MILLIS = 1000;
+    private static final long IDLE_PROBE_MILLIS = 250;
+
+    private final String nodeId;
+    private final InetSocketAddress address;
+    private final Cluster cluster;
+    private final LinkedBlockingDeque<byte[]> queue = new LinkedBlockingDeque<>(MAX_QUEUED);
+    private final Thread thread;
+    private volatile Socket socket;
+    private volatile boolean running = true;
+
+    PeerLink(String nodeId, InetSocketAddress address, Cluster cluster) {
+        this.nodeId = nodeId;
+        this.address = address;
+        this.cluster = cluster;
+        this.thread = new Thread(this::run, "peer-link-" + nodeId);
+        this.thread.setDaemon(true);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    String getNodeId() { return nodeId; }
+
+    void send(byte[] frame) {
+        while (!queue.offerLast(frame)) {
+            if (queue.pollFirst() != null) logger.fine("Peer queue for " + nodeId + " full, dropped oldest frame");
+        }
+    }
+
+    void close() {
+        running = false;
+        thread.interrupt();
+        Socket s = socket;
+        if (s != null) {
+            try { s.close(); } catch (IOException ignored) {}
+        }
+    }
+
+    private void run() {
+        List<byte[]> batch = new ArrayList<>();
+        while (running) {
+            try (Socket s = new Socket()) {
+                s.connect(address, (int) RETRY_MILLIS);
+                s.setTcpNoDelay(true);
+                s.setSoTimeout(1);
+                socket = s;
+                InputStream in = s.getInputStream();
+                OutputStream out = new BufferedOutputStream(s.getOutputStream(), 64 * 1024);
+                out.write(cluster.hello());
+                for (byte[] frame : cluster.resyncFrames(nodeId)) out.write(frame);
+                out.flush();
+                logger.info("Connected to peer " + nodeId + " at " + address);
+                while (running) {
+                    byte[] first = queue.pollFirst(IDLE_PROBE_MILLIS, TimeUnit.MILLISECONDS);
+                    if (first == null) {
+                        probe(in);
+                        continue;
+                    }
+                    batch.add(first);
+                    queue.drainTo(batch, MAX_BATCH);
+                    for (byte[] frame : batch) out.write(frame);
+                    out.flush();
+                    batch.clear();
+                }
+            } catch (IOException e) {
+                if (!batch.isEmpty()) {
+                    logger.warning("Lost " + batch.size() + " frames to peer " + nodeId + ": " + e.getMessage());
+                    batch.clear();
+                }
+                logger.log(Level.FINE, "Peer " + nodeId + " unreachable", e);
+                sleepBeforeRetry();
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                socket = null;
+            }
+        }
+    }
+
+    /** Throws if the peer closed the connection; a read timeout means it is still there. */
+    private static void probe(InputStream in) throws IOException {
+        try {
+            if (in.read() < 0) throw new EOFException("peer closed the connection");
+        } catch (SocketTimeoutException alive) {
+            // nothing to read, as expected
+        }
+    }
+
+    private void sleepBeforeRetry() {
+        try {
+            TimeUnit.MILLISECONDS.sleep(RETRY_MILLIS);
+        } catch (InterruptedException e) {
+            running = false;
+        }
+    }
+}
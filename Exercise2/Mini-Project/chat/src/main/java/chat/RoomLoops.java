@@ -0,0 +1,48 @@
+package chat;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Fixed set of single-threaded loops that rooms are partitioned across
+ * (--room-threads, e.g. one per core). A room id always hashes to the same
+ * loop, so every command for a room runs on one thread, in the order it was
+ * submitted: that room's state stays in one core's cache and its commands
+ * never contend with each other, while many rooms spread over all loops.
+ */
+final class RoomLoops {
+    private static final Logger logger = Logger.getLogger(RoomLoops.class.getName());
+
+    /** Used when rooms are not partitioned: commands run on the calling thread. */
+    static final Executor DIRECT = Runnable::run;
+
+    private final Executor[] loops;
+
+    RoomLoops(int threads) {
+        loops = new Executor[threads];
+        for (int i = 0; i < threads; i++) {
+            String name = "room-loop-" + i;
+            ExecutorService loop = Executors.newSingleThreadExecutor(r -> {
+                Thread t = new Thread(r, name);
+                t.setDaemon(true);
+                return t;
+            });
+            loops[i] = command -> loop.execute(() -> {
+                try {
+                    command.run();
+                } catch (RuntimeException e) {
+                    logger.log(Level.WARNING, "Room command failed on " + name, e);
+                }
+            });
+        }
+        logger.info("Partitioning rooms across " + threads + " room loops");
+    }
+
+    /** The loop owning roomId. */
+    Executor forRoom(String roomId) {
+        return loops[Math.floorMod(roomId.hashCode(), loops.length)];
+    }
+}
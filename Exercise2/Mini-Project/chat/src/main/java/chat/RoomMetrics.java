@@ -0,0 +1,54 @@
+package chat;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of one ChatRoom. Posting a message costs one striped-counter
+ * increment; the rate and the gauges are worked out when someone reads them.
+ */
+final class RoomMetrics implements RoomMetricsMXBean {
+    private static final long RATE_WINDOW_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final ChatRoom room;
+    private final LongAdder messages = new LongAdder();
+    private final LongAdder rateLimited = new LongAdder();
+
+    // rate window, only touched by readers
+    private long windowStart = System.nanoTime();
+    private long windowMessages;
+    private double rate;
+
+    RoomMetrics(ChatRoom room) {
+        this.room = room;
+    }
+
+    void onMessage() {
+        messages.increment();
+    }
+
+    void onRateLimited() {
+        rateLimited.increment();
+    }
+
+    @Override public int getMembers() { return room.getMemberCount(); }
+    @Override public long getMessages() { return messages.sum(); }
+    @Override public long getRateLimited() { return rateLimited.sum(); }
+    @Override public int getHistorySize() { return room.getHistorySize(); }
+    @Override public long getHistoryBytes() { return room.getHistoryBytes(); }
+    @Override public int getPrivateConversations() { return room.getPrivateConversationCount(); }
+    @Override public int getIndexedTerms() { return room.getIndexedTermCount(); }
+
+    @Override
+    public synchronized double getMessagesPerSecond() {
+        long now = System.nanoTime();
+        long elapsed = now - windowStart;
+        if (elapsed >= RATE_WINDOW_NANOS) {
+            long count = messages.sum();
+            rate = (count - windowMessages) * 1e9 / elapsed;
+            windowStart = now;
+            windowMessages = count;
+        }
+        return rate;
+    }
+}
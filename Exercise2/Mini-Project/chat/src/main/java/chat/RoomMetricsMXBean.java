@@ -0,0 +1,17 @@
+package chat;
+
+/** Metrics of one room as seen through JMX (ObjectName chat:type=Room,name="<roomId>"). */
+public interface RoomMetricsMXBean {
+    int getMembers();
+    /** MSG and PM messages posted since the room was created. */
+    long getMessages();
+    /** Message rate since the previous reading (readings less than a second apart share one). */
+    double getMessagesPerSecond();
+    /** MSG and PM refused with "ERROR rate limited" by this room's limit. */
+    long getRateLimited();
+    int getHistorySize();
+    long getHistoryBytes();
+    int getPrivateConversations();
+    /** Distinct terms in the room's search index. */
+    int getIndexedTerms();
+}
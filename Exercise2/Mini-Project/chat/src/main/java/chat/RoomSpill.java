@@ -0,0 +1,107 @@
+package chat;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * On-disk copy of an evicted room's public and private history, one file per
+ * room in --spill-dir. Without it a fresh temporary directory is used and
+ * deleted again on shutdown (close()), since nothing could find it after a
+ * restart; spilled private messages do not outlive the server. Each file is a
+ * sequence of [int length][MessageLog record], oldest first per history, so a
+ * rehydrated room gets back the same messages and ids.
+ *
+ * Only used without --log-dir; with the message log an evicted room is simply
+ * replayed from the log again.
+ */
+final class RoomSpill {
+    private static final Logger logger = Logger.getLogger(RoomSpill.class.getName());
+
+    private final Path dir;
+    private final boolean temporary;   // created by open(null), deleted by close()
+
+    private RoomSpill(Path dir, boolean temporary) {
+        this.dir = dir;
+        this.temporary = temporary;
+    }
+
+    /** Opens dir, or a new temporary directory if dir is null. Files already in dir are picked up. */
+    static RoomSpill open(String dir) throws IOException {
+        if (dir != null) {
+            Path path = Files.createDirectories(Paths.get(dir));
+            logger.info("Spilling idle rooms to " + path);
+            return new RoomSpill(path, false);
+        }
+        Path path = Files.createTempDirectory("chat-spill-");
+        logger.info("Spilling idle rooms to " + path + " (deleted on shutdown; --spill-dir keeps them)");
+        return new RoomSpill(path, true);
+    }
+
+    /** Deletes a temporary spill directory with everything in it; a --spill-dir is left alone. */
+    void close() {
+        if (!temporary) return;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+            for (Path file : files) Files.deleteIfExists(file);
+            Files.deleteIfExists(dir);
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Cannot delete spill directory " + dir, e);
+        }
+    }
+
+    /** Writes the room's histories, replacing an earlier spill of it. */
+    void write(ChatRoom room) throws IOException {
+        Path file = fileOf(room.getRoomId());
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        int count = 0;
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            for (MessageHistory.Snapshot history : room.getStoredHistories()) {
+                for (Message msg : history) {
+                    byte[] record = MessageLog.encode(room.getRoomId(), msg);
+                    out.writeInt(record.length);
+                    out.write(record);
+                    count++;
+                }
+            }
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        logger.fine("Spilled " + count + " messages of ChatRoom " + room.getRoomId());
+    }
+
+    /** Restores a spilled room's messages into its new, not yet shared ChatRoom and drops the file. */
+    void restore(ChatRoom room) throws IOException {
+        Path file = fileOf(room.getRoomId());
+        if (!Files.exists(file)) return;
+        ByteBuffer buf = ByteBuffer.wrap(Files.readAllBytes(file));
+        int count = 0;
+        while (buf.remaining() >= 4) {
+            int len = buf.getInt();
+            ByteBuffer record = buf.slice();
+            record.limit(len);
+            room.restore(MessageLog.decode(record));
+            buf.position(buf.position() + len);
+            count++;
+        }
+        delete(room.getRoomId());
+        logger.info("Rehydrated " + count + " spilled messages into ChatRoom " + room.getRoomId());
+    }
+
+    /** Drops a spill that turned out not to be needed because the room was joined again meanwhile. */
+    void delete(String roomId) throws IOException {
+        Files.deleteIfExists(fileOf(roomId));
+    }
+
+    private Path fileOf(String roomId) {
+        return dir.resolve(URLEncoder.encode(roomId, StandardCharsets.UTF_8) + ".room");
+    }
+}
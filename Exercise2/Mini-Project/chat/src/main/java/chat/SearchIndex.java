@@ -0,0 +1,188 @@
+package chat;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Incremental inverted index over a room's public messages: every term maps
+ * to the ascending ids of the messages containing it. A search intersects
+ * the posting lists of its terms starting at the newest id of the shortest
+ * one, so it stops as soon as it has enough hits and never scans history.
+ *
+ * The index follows the history's retention: each add first drops the
+ * postings of messages that are no longer retained, oldest first, using a
+ * queue of what every indexed message contributed. Terms are lower-cased
+ * runs of letters and digits.
+ *
+ * There is one writer per room, adding in id order: the room's fan-out
+ * drain, or the restore of a logged or relayed history. Posting lists and
+ * that queue therefore only ever grow at the end. The lock just keeps
+ * SEARCH from reading a list mid-update; the writer takes it once per
+ * batch of messages.
+ */
+final class SearchIndex {
+    private static final int MAX_TERM_LENGTH = 64;
+
+    /** Ids of the messages containing one term, ascending; removal happens at the front. */
+    private static final class Postings {
+        final String term;
+        long[] ids = new long[4];
+        int head;
+        int tail;
+
+        Postings(String term) {
+            this.term = term;
+        }
+
+        int size() { return tail - head; }
+
+        /** Appends id, which is greater than every id already in the list. */
+        void add(long id) {
+            if (tail == ids.length) {
+                if (head > ids.length / 2) {
+                    System.arraycopy(ids, head, ids, 0, tail - head);
+                    tail -= head;
+                    head = 0;
+                } else {
+                    ids = Arrays.copyOf(ids, ids.length * 2);
+                }
+            }
+            ids[tail++] = id;
+        }
+
+        void removeBelow(long id) {
+            while (head < tail && ids[head] < id) head++;
+        }
+
+        boolean contains(long id) {
+            return Arrays.binarySearch(ids, head, tail, id) >= 0;
+        }
+    }
+
+    /** What one message added, so its postings can be dropped when it leaves the history. */
+    private static final class Indexed {
+        final long id;
+        final Postings[] postings;
+
+        Indexed(long id, Postings[] postings) {
+            this.id = id;
+            this.postings = postings;
+        }
+    }
+
+    private final MessageHistory history;
+    private final Map<String, Postings> terms = new HashMap<>();
+    private final ArrayDeque<Indexed> indexed = new ArrayDeque<>();
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    SearchIndex(MessageHistory history) {
+        this.history = history;
+    }
+
+    /** Indexes a message stored in the history (it must carry its id, newer than any indexed). */
+    void add(Message msg) {
+        addAll(Collections.singletonList(msg));
+    }
+
+    /** Indexes messages stored in the history, in id order; single writer only. */
+    void addAll(List<Message> batch) {
+        if (batch.isEmpty()) return;
+        List<Set<String>> words = new ArrayList<>(batch.size());
+        for (Message msg : batch) words.add(terms(msg.getText()));
+        lock.writeLock().lock();
+        try {
+            prune(history.snapshot().firstId());
+            for (int m = 0; m < batch.size(); m++) {
+                Set<String> w = words.get(m);
+                if (w.isEmpty()) continue;
+                long id = batch.get(m).getId();
+                Postings[] added = new Postings[w.size()];
+                int i = 0;
+                for (String word : w) {
+                    Postings p = terms.computeIfAbsent(word, Postings::new);
+                    p.add(id);
+                    added[i++] = p;
+                }
+                indexed.addLast(new Indexed(id, added));
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /** Drops the postings of every message older than oldestId. */
+    private void prune(long oldestId) {
+        Indexed first;
+        while ((first = indexed.peekFirst()) != null && first.id < oldestId) {
+            indexed.removeFirst();
+            for (Postings p : first.postings) {
+                p.removeBelow(oldestId);
+                if (p.size() == 0) terms.remove(p.term, p);
+            }
+        }
+    }
+
+    /** Ids of up to limit messages containing every term of query, newest first. */
+    long[] search(String query, int limit) {
+        Set<String> words = terms(query);
+        if (words.isEmpty() || limit <= 0) return new long[0];
+        lock.readLock().lock();
+        try {
+            List<Postings> lists = new ArrayList<>(words.size());
+            for (String word : words) {
+                Postings p = terms.get(word);
+                if (p == null) return new long[0];
+                lists.add(p);
+            }
+            lists.sort((a, b) -> Integer.compare(a.size(), b.size()));
+            Postings shortest = lists.get(0);
+            long[] hits = new long[Math.min(limit, shortest.size())];
+            int n = 0;
+            for (int i = shortest.tail - 1; i >= shortest.head && n < hits.length; i--) {
+                long id = shortest.ids[i];
+                boolean all = true;
+                for (int j = 1; j < lists.size() && all; j++) all = lists.get(j).contains(id);
+                if (all) hits[n++] = id;
+            }
+            return n == hits.length ? hits : Arrays.copyOf(hits, n);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /** Number of distinct terms indexed. */
+    int termCount() {
+        lock.readLock().lock();
+        try {
+            return terms.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /** Distinct lower-case terms of text, in order of appearance. */
+    static Set<String> terms(String text) {
+        Set<String> words = new LinkedHashSet<>();
+        StringBuilder word = new StringBuilder();
+        for (int i = 0; i <= text.length(); ) {
+            int cp = i < text.length() ? text.codePointAt(i) : ' ';
+            i += i < text.length() ? Character.charCount(cp) : 1;
+            if (Character.isLetterOrDigit(cp)) {
+                if (word.length() < MAX_TERM_LENGTH) word.appendCodePoint(Character.toLowerCase(cp));
+            } else if (word.length() > 0) {
+                words.add(word.toString());
+                word.setLength(0);
+            }
+        }
+        return words;
+    }
+}
@@ -0,0 +1,246 @@
+package chat;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Compares the blocking transport's executor modes (cached platform pool vs
+ * virtual threads) on connection count, memory per connection and broadcast
+ * latency. The server runs in-process; the clients are non-blocking channels
+ * drained by a single selector thread so they add no threads of their own.
+ *
+ * Usage:
+ *   java chat.ServerBenchmark [--executor=cached|virtual|both] [--connections=2000]
+ *                        [--room-size=50] [--rounds=200]
+ *
+ * With --executor=both (the default) each mode runs in a fresh child JVM with
+ * the same JVM flags, so heap and RSS figures of one run don't leak into the other.
+ * Virtual threads need JDK 21+; on older JDKs the virtual run reports the fallback pool.
+ */
+public class ServerBenchmark {
+    private static final String MARKER = "bench-";
+
+    private final String executor;
+    private final int connections;
+    private final int roomSize;
+    private final int rounds;
+
+    private final List<SocketChannel> channels = new ArrayList<>();
+    private final AtomicInteger joined = new AtomicInteger();
+    private final AtomicInteger received = new AtomicInteger();
+    private volatile String expected;
+    private volatile CountDownLatch roundDone;
+    private volatile int members;
+    private volatile boolean running = true;
+
+    private ServerBenchmark(ServerConfig config) {
+        this.executor = config.getString("executor", "both");
+        this.connections = config.getInt("connections", 2000);
+        this.roomSize = Math.max(2, config.getInt("room-size", 50));
+        this.rounds = config.getInt("rounds", 200);
+    }
+
+    public static void main(String[] args) throws Exception {
+        ServerConfig config = ServerConfig.parse(args);
+        ServerBenchmark bench = new ServerBenchmark(config);
+        if ("both".equalsIgnoreCase(bench.executor)) {
+            printHeader();
+            for (String mode : new String[] {"cached", "virtual"}) {
+                runChild(mode, args);
+            }
+        } else {
+            if (!config.getString("child", "false").equals("true")) printHeader();
+            bench.run();
+        }
+    }
+
+    private static void printHeader() {
+        System.out.printf("%-8s %7s %10s %8s %12s %12s %10s %10s %10s%n",
+                "mode", "conns", "connect_ms", "threads", "heap_kb/conn", "rss_kb/conn",
+                "bcast_p50", "bcast_p99", "bcast_max");
+    }
+
+    private static void runChild(String mode, String[] args) throws IOException, InterruptedException {
+        List<String> cmd = new ArrayList<>();
+        cmd.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        cmd.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+        cmd.add("-cp");
+        cmd.add(System.getProperty("java.class.path"));
+        cmd.add(ServerBenchmark.class.getName());
+        for (String arg : args) {
+            if (!arg.startsWith("--executor=")) cmd.add(arg);
+        }
+        cmd.add("--executor=" + mode);
+        cmd.add("--child=true");
+        new ProcessBuilder(cmd).inheritIO().start().waitFor();
+    }
+
+    private void run() throws Exception {
+        Logger.getLogger("").setLevel(Level.WARNING);
+        ChatServer server = new ChatServer(0, executor);
+        Thread serverThread = new Thread(() -> {
+            try { server.start(); } catch (IOException e) { e.printStackTrace(); }
+        }, "bench-server");
+        serverThread.start();
+        while (server.getLocalPort() == 0) Thread.sleep(10);
+        InetSocketAddress address = new InetSocketAddress("localhost", server.getLocalPort());
+
+        long heapBefore = usedHeap();
+        long rssBefore = rss();
+        int threadsBefore = ManagementFactory.getThreadMXBean().getThreadCount();
+
+        Selector selector = Selector.open();
+        Thread reader = new Thread(() -> drain(selector), "bench-reader");
+        reader.start();
+
+        long start = System.nanoTime();
+        for (int i = 0; i < connections; i++) {
+            SocketChannel ch;
+            try {
+                ch = SocketChannel.open(address);
+            } catch (IOException e) {
+                System.err.println("connect failed after " + i + " connections: " + e.getMessage());
+                break;
+            }
+            ch.configureBlocking(false);
+            channels.add(ch);
+            ch.register(selector, SelectionKey.OP_READ, new StringBuilder());
+            write(ch, "JOIN room" + (i / roomSize) + " u" + i);
+        }
+        int opened = channels.size();
+        while (joined.get() < opened) Thread.sleep(10);
+        long connectMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        long heapPerConn = (usedHeap() - heapBefore) / Math.max(1, opened) / 1024;
+        long rssPerConn = rssBefore < 0 ? -1 : (rss() - rssBefore) / Math.max(1, opened) / 1024;
+        int threads = ManagementFactory.getThreadMXBean().getThreadCount() - threadsBefore;
+
+        long[] latencies = broadcastRounds(Math.min(roomSize, opened));
+
+        System.out.printf("%-8s %7d %10d %8d %12d %12d %8dus %8dus %8dus%n",
+                executor, opened, connectMs, threads, heapPerConn, rssPerConn,
+                percentile(latencies, 0.50), percentile(latencies, 0.99), percentile(latencies, 1.0));
+
+        running = false;
+        selector.wakeup();
+        for (SocketChannel ch : channels) ch.close();
+        server.stop();
+        serverThread.join(10_000);
+        System.exit(0);
+    }
+
+    /** One member of room0 broadcasts; a round ends when every member has the line. */
+    private long[] broadcastRounds(int members) throws Exception {
+        this.members = members;
+        long[] latencies = new long[rounds];
+        SocketChannel sender = channels.get(0);
+        for (int r = 0; r < rounds; r++) {
+            expected = MARKER + r;
+            received.set(0);
+            roundDone = new CountDownLatch(1);
+            long t0 = System.nanoTime();
+            write(sender, "MSG " + expected);
+            if (!roundDone.await(30, TimeUnit.SECONDS)) {
+                throw new IllegalStateException("broadcast round " + r + " timed out");
+            }
+            latencies[r] = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - t0);
+        }
+        return latencies;
+    }
+
+    private void drain(Selector selector) {
+        ByteBuffer buf = ByteBuffer.allocate(64 * 1024);
+        try {
+            while (running) {
+                selector.select(100);
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    SocketChannel ch = (SocketChannel) key.channel();
+                    StringBuilder partial = (StringBuilder) key.attachment();
+                    buf.clear();
+                    int n;
+                    try {
+                        n = ch.read(buf);
+                    } catch (IOException e) {
+                        key.cancel();
+                        continue;
+                    }
+                    if (n < 0) {
+                        key.cancel();
+                        continue;
+                    }
+                    partial.append(new String(buf.array(), 0, n, StandardCharsets.UTF_8));
+                    int nl;
+                    while ((nl = partial.indexOf("\n")) >= 0) {
+                        String line = partial.substring(0, nl);
+                        partial.delete(0, nl + 1);
+                        onLine(line);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void onLine(String line) {
+        if (line.startsWith("JOINED ")) {
+            joined.incrementAndGet();
+            return;
+        }
+        String exp = expected;
+        if (exp != null && line.endsWith(": " + exp) && received.incrementAndGet() == members) {
+            roundDone.countDown();
+        }
+    }
+
+    private static void write(SocketChannel ch, String line) throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8));
+        while (buf.hasRemaining()) ch.write(buf);
+    }
+
+    private static long usedHeap() {
+        for (int i = 0; i < 3; i++) System.gc();
+        Runtime rt = Runtime.getRuntime();
+        return rt.totalMemory() - rt.freeMemory();
+    }
+
+    /** Resident set size from /proc, or -1 where that is not available. */
+    private static long rss() {
+        try {
+            for (String line : Files.readAllLines(Paths.get("/proc/self/status"))) {
+                if (line.startsWith("VmRSS:")) {
+                    return Long.parseLong(line.replaceAll("[^0-9]", "")) * 1024;
+                }
+            }
+        } catch (IOException | NumberFormatException ignored) {}
+        return -1;
+    }
+
+    private static long percentile(long[] values, double p) {
+        if (values.length == 0) return 0;
+        long[] sorted = values.clone();
+        Arrays.sort(sorted);
+        int idx = (int) Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(idx, sorted.length - 1))];
+    }
+}
@@ -0,0 +1,201 @@
+package chat;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Server settings.
+ * Values come from --key=value command-line flags, falling back to
+ * -Dchat.key system properties and then to built-in defaults.
+ *
+ * Example:
+ *   java chat.ChatServer 9090 --transport=nio --event-loops=4
+ *   java -Dchat.transport=nio chat.ChatServer
+ */
+public final class ServerConfig {
+    private static volatile ServerConfig current = parse(new String[0]);
+
+    private final Map<String, String> flags;
+    private final int port;
+
+    private ServerConfig(Map<String, String> flags, int port) {
+        this.flags = flags;
+        this.port = port;
+    }
+
+    /**
+     * Parses command-line arguments. A bare number is taken as the port.
+     */
+    public static ServerConfig parse(String[] args) {
+        Map<String, String> flags = new HashMap<>();
+        int port = 9090;
+        for (String arg : args) {
+            if (arg.startsWith("--")) {
+                int eq = arg.indexOf('=');
+                if (eq > 2) flags.put(arg.substring(2, eq), arg.substring(eq + 1));
+                else flags.put(arg.substring(2), "true");
+            } else {
+                try { port = Integer.parseInt(arg); } catch (NumberFormatException ignored) {}
+            }
+        }
+        return new ServerConfig(flags, port);
+    }
+
+    public static ServerConfig get() { return current; }
+
+    static void install(ServerConfig config) { current = config; }
+
+    public int getPort() { return port; }
+
+    /** "blocking" (thread per client) or "nio" (selector event loops). */
+    public String getTransport() { return getString("transport", "blocking"); }
+
+    public boolean isNioTransport() { return "nio".equalsIgnoreCase(getTransport()); }
+
+    public int getEventLoops() {
+        return Math.max(1, getInt("event-loops", Runtime.getRuntime().availableProcessors()));
+    }
+
+    /** Executor for blocking-transport ClientHandlers: "cached" or "virtual". */
+    public String getExecutor() { return getString("executor", "cached"); }
+
+    /** Lines a client may have queued before the overflow policy applies. */
+    public int getOutboundCapacity() { return Math.max(1, getInt("outbound-capacity", 4096)); }
+
+    /** What happens when a client's outbound queue is full: drop-oldest, disconnect or coalesce. */
+    OutboundQueue.OverflowPolicy getOverflowPolicy() {
+        try {
+            return OutboundQueue.OverflowPolicy.parse(getString("outbound-policy", "coalesce"));
+        } catch (IllegalArgumentException e) {
+            return OutboundQueue.OverflowPolicy.COALESCE;
+        }
+    }
+
+    /** Bytes gathered into one socket write before it is flushed. */
+    public int getFlushBytes() { return Math.max(1024, getInt("flush-bytes", 64 * 1024)); }
+
+    /** Messages kept per room. */
+    public int getHistoryCapacity() { return Math.max(1, getInt("history-capacity", 10_000)); }
+
+    /** Messages kept per private conversation. */
+    public int getPrivateHistoryCapacity() { return Math.max(1, getInt("private-history-capacity", 1_000)); }
+
+    /** Drop history older than this many seconds; 0 keeps it until pushed out by count or bytes. */
+    public long getHistoryMaxAgeMillis() { return Math.max(0, getLong("history-max-age", 0)) * 1000; }
+
+    /** Approximate heap budget per history in bytes; 0 means no byte limit. */
+    public long getHistoryMaxBytes() { return Math.max(0, getLong("history-max-bytes", 0)); }
+
+    /** Messages replayed to a client when it joins a room. */
+    public int getJoinReplay() { return Math.max(0, getInt("join-replay", 20)); }
+
+    /** Largest page a HISTORY or PMH request returns; also the size of a bare HISTORY. */
+    public int getHistoryPageSize() { return Math.max(1, getInt("history-page", 100)); }
+
+    /** Directory of the durable message log; null (default) keeps history in memory only. */
+    public String getLogDir() { return getString("log-dir", null); }
+
+    /** Size of each memory-mapped log segment file. */
+    public int getLogSegmentBytes() { return Math.max(64 * 1024, getInt("log-segment-bytes", 64 * 1024 * 1024)); }
+
+    /** When log writes are forced to disk: always, interval (default) or never. */
+    MessageLog.FsyncPolicy getLogFsyncPolicy() {
+        try {
+            return MessageLog.FsyncPolicy.valueOf(getString("log-fsync", "interval").toUpperCase());
+        } catch (IllegalArgumentException e) {
+            return MessageLog.FsyncPolicy.INTERVAL;
+        }
+    }
+
+    public long getLogFsyncIntervalMillis() { return Math.max(1, getLong("log-fsync-interval-ms", 1000)); }
+
+    /** Closed log segments kept before they are compacted. */
+    public int getLogMaxSegments() { return Math.max(2, getInt("log-max-segments", 8)); }
+
+    /**
+     * Room loops to partition rooms across (see RoomLoops); 0 (default) runs room
+     * commands on the client's own thread. "cores" means one per available processor.
+     */
+    public int getRoomThreads() {
+        if ("cores".equalsIgnoreCase(getString("room-threads", ""))) return Runtime.getRuntime().availableProcessors();
+        return Math.max(0, getInt("room-threads", 0));
+    }
+
+    /** Window in which a room's joins and leaves are collected into one [PRESENCE] line (default 100 ms). */
+    public long getPresenceWindowMillis() { return Math.max(0, getLong("presence-window-ms", 100)); }
+
+    /** Rooms one connection may be in with SUB besides its JOIN room (default 32). */
+    public int getMaxSubscriptions() { return Math.max(0, getInt("max-subscriptions", 32)); }
+
+    /** How long a lost connection's session can be resumed (default 60 seconds); 0 issues no resume tokens. */
+    public long getResumeWindowMillis() { return Math.max(0, getLong("resume-window", 60)) * 1000; }
+
+    /** How long a room nobody is in stays in memory, in seconds; 0 (default) never evicts. */
+    public long getRoomIdleTimeoutMillis() { return Math.max(0, getLong("room-idle-timeout", 0)) * 1000; }
+
+    /**
+     * Where evicted rooms are written without --log-dir; null (default) uses a temporary
+     * directory that is deleted on shutdown.
+     */
+    public String getSpillDir() { return getString("spill-dir", null); }
+
+    /** A client that sent nothing for this long gets a PING (default 30 seconds); 0 sends none. */
+    public long getHeartbeatIntervalMillis() { return Math.max(0, getLong("heartbeat-interval", 30)) * 1000; }
+
+    /** A client that sent nothing, not even PONG, for this long is disconnected (default 90 seconds); 0 never. */
+    public long getHeartbeatTimeoutMillis() { return Math.max(0, getLong("heartbeat-timeout", 90)) * 1000; }
+
+    /** A client whose queued output has not moved for this long is disconnected (default 30 seconds); 0 never. */
+    public long getWriteStallTimeoutMillis() { return Math.max(0, getLong("write-stall-timeout", 30)) * 1000; }
+
+    /** MSG/PM per second one connection may send; 0 (default) is unlimited. */
+    public int getRateLimit() { return Math.max(0, getInt("rate-limit", 0)); }
+
+    /** MSG/PM a connection may send at once before --rate-limit applies (default: one second's worth). */
+    public int getRateBurst() { return Math.max(1, getInt("rate-burst", getRateLimit())); }
+
+    /** MSG/PM per second accepted into one room from its local members; 0 (default) is unlimited. */
+    public int getRoomRateLimit() { return Math.max(0, getInt("room-rate-limit", 0)); }
+
+    /** Burst allowance for --room-rate-limit (default: one second's worth). */
+    public int getRoomRateBurst() { return Math.max(1, getInt("room-rate-burst", getRoomRateLimit())); }
+
+    /** Token the STATS command must present; null disables STATS. */
+    public String getAdminToken() { return getString("admin-token", null); }
+
+    /** Peer addresses (host:port) of every cluster node; empty when running standalone. */
+    public List<String> getClusterNodes() {
+        String v = getString("cluster", "");
+        List<String> nodes = new ArrayList<>();
+        for (String node : v.split(",")) {
+            if (!node.trim().isEmpty()) nodes.add(node.trim());
+        }
+        return nodes;
+    }
+
+    /** This node's entry in --cluster; its port is where peers connect. */
+    public String getNodeId() { return getString("node", null); }
+
+    /** Shared secret every cluster node presents in HELLO; required with --cluster. */
+    public String getClusterSecret() { return getString("cluster-secret", null); }
+
+    String getString(String key, String def) {
+        String v = flags.get(key);
+        if (v == null) v = System.getProperty("chat." + key);
+        return v != null ? v.trim() : def;
+    }
+
+    int getInt(String key, int def) {
+        String v = getString(key, null);
+        if (v == null) return def;
+        try { return Integer.parseInt(v); } catch (NumberFormatException e) { return def; }
+    }
+
+    long getLong(String key, long def) {
+        String v = getString(key, null);
+        if (v == null) return def;
+        try { return Long.parseLong(v); } catch (NumberFormatException e) { return def; }
+    }
+}
@@ -0,0 +1,227 @@
+package chat;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Singleton holding the server's runtime metrics: connections, broadcast
+ * duration, per-client socket write time and outbound backlog, plus the
+ * RoomMetrics of every room.
+ *
+ * Recording is cheap enough to leave on: counters are LongAdders, latencies
+ * go into lock-free LatencyHistograms, and gauges such as queue depths are
+ * only computed when read. Readers are JMX (after registerMBeans()) and the
+ * admin STATS command.
+ */
+final class ServerMetrics implements ServerMetricsMXBean {
+    private static final Logger logger = Logger.getLogger(ServerMetrics.class.getName());
+
+    private static final int STATS_CLIENTS = 10;
+
+    private static final ServerMetrics instance = new ServerMetrics();
+
+    private final Set<ClientHandler> clients = ConcurrentHashMap.newKeySet();
+    private final LongAdder accepted = new LongAdder();
+    private final LongAdder rateLimited = new LongAdder();
+    private final LongAdder reaped = new LongAdder();
+    private final LatencyHistogram broadcast = new LatencyHistogram();
+    private final LatencyHistogram writes = new LatencyHistogram();
+    private volatile MBeanServer mbeans;   // null until registerMBeans()
+
+    private ServerMetrics() { }
+
+    static ServerMetrics getInstance() {
+        return instance;
+    }
+
+    void clientConnected(ClientHandler handler) {
+        accepted.increment();
+        clients.add(handler);
+    }
+
+    void clientDisconnected(ClientHandler handler) {
+        clients.remove(handler);
+    }
+
+    void recordRateLimited() {
+        rateLimited.increment();
+    }
+
+    void recordReaped() {
+        reaped.increment();
+    }
+
+    /** The connected clients, live; see Heartbeat. */
+    Collection<ClientHandler> getClients() {
+        return Collections.unmodifiableSet(clients);
+    }
+
+    void recordBroadcast(long nanos) {
+        broadcast.record(nanos);
+    }
+
+    void recordWrite(long nanos) {
+        writes.record(nanos);
+    }
+
+    /** Publishes the server MBean, and from now on one MBean per room. */
+    void registerMBeans() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            server.registerMBean(this, new ObjectName("chat:type=Server"));
+        } catch (JMException e) {
+            logger.log(Level.WARNING, "Cannot register server metrics MBean", e);
+            return;
+        }
+        mbeans = server;
+        for (ChatRoom room : ChatRoomManager.getInstance().getRooms()) roomCreated(room);
+    }
+
+    void roomCreated(ChatRoom room) {
+        MBeanServer server = mbeans;
+        if (server == null) return;
+        try {
+            server.registerMBean(room.getMetrics(), roomName(room.getRoomId()));
+        } catch (JMException e) {
+            logger.log(Level.WARNING, "Cannot register metrics MBean for room " + room.getRoomId(), e);
+        }
+    }
+
+    void roomRemoved(ChatRoom room) {
+        MBeanServer server = mbeans;
+        if (server == null) return;
+        try {
+            server.unregisterMBean(roomName(room.getRoomId()));
+        } catch (JMException e) {
+            logger.log(Level.FINE, "No metrics MBean to unregister for room " + room.getRoomId(), e);
+        }
+    }
+
+    private static ObjectName roomName(String roomId) throws JMException {
+        return new ObjectName("chat:type=Room,name=" + ObjectName.quote(roomId));
+    }
+
+    @Override public int getActiveConnections() { return clients.size(); }
+    @Override public long getTotalConnections() { return accepted.sum(); }
+    @Override public int getRoomCount() { return ChatRoomManager.getInstance().getRooms().size(); }
+    @Override public long getRateLimitedMessages() { return rateLimited.sum(); }
+    @Override public long getReapedConnections() { return reaped.sum(); }
+
+    @Override public long getBroadcastCount() { return broadcast.count(); }
+    @Override public long getBroadcastP50Micros() { return micros(broadcast.percentile(0.50)); }
+    @Override public long getBroadcastP99Micros() { return micros(broadcast.percentile(0.99)); }
+    @Override public long getBroadcastP999Micros() { return micros(broadcast.percentile(0.999)); }
+    @Override public long getBroadcastMaxMicros() { return micros(broadcast.max()); }
+
+    @Override public long getWriteCount() { return writes.count(); }
+    @Override public long getWriteP50Micros() { return micros(writes.percentile(0.50)); }
+    @Override public long getWriteP99Micros() { return micros(writes.percentile(0.99)); }
+    @Override public long getWriteP999Micros() { return micros(writes.percentile(0.999)); }
+    @Override public long getWriteMaxMicros() { return micros(writes.max()); }
+
+    @Override
+    public long getMaxClientWriteMicros() {
+        long max = 0;
+        for (ClientHandler c : clients) max = Math.max(max, c.getMaxWriteNanos());
+        return micros(max);
+    }
+
+    @Override
+    public List<String> getSlowestWriters() {
+        // read once, like the backlog sort in statsLines()
+        List<Map.Entry<ClientHandler, Long>> byWrite = new ArrayList<>();
+        for (ClientHandler c : clients) byWrite.add(Map.entry(c, c.getMaxWriteNanos()));
+        byWrite.sort(Map.Entry.<ClientHandler, Long>comparingByValue().reversed());
+        List<String> lines = new ArrayList<>();
+        for (Map.Entry<ClientHandler, Long> e : byWrite.subList(0, Math.min(STATS_CLIENTS, byWrite.size()))) {
+            ClientHandler c = e.getKey();
+            lines.add(String.format("%s@%s %s last-write=%dus max-write=%dus", orDash(c.getUsername()),
+                    orDash(c.getRoomId()), c.getRemoteAddress(), micros(c.getLastWriteNanos()), micros(e.getValue())));
+        }
+        return lines;
+    }
+
+    @Override
+    public long getOutboundBacklog() {
+        long total = 0;
+        for (ClientHandler c : clients) total += c.getOutbound().size();
+        return total;
+    }
+
+    @Override
+    public int getMaxOutboundBacklog() {
+        int max = 0;
+        for (ClientHandler c : clients) max = Math.max(max, c.getOutbound().size());
+        return max;
+    }
+
+    @Override
+    public long getDroppedLines() {
+        long total = 0;
+        for (ClientHandler c : clients) total += c.getOutbound().getDropped();
+        return total;
+    }
+
+    @Override
+    public void resetLatencies() {
+        broadcast.reset();
+        writes.reset();
+    }
+
+    /** Report for the STATS command: server totals, every room, and the most backed-up clients. */
+    List<String> statsLines() {
+        List<String> lines = new ArrayList<>();
+        lines.add(String.format("connections active=%d total=%d backlog=%d max-backlog=%d dropped=%d rate-limited=%d reaped=%d",
+                getActiveConnections(), getTotalConnections(), getOutboundBacklog(),
+                getMaxOutboundBacklog(), getDroppedLines(), getRateLimitedMessages(), getReapedConnections()));
+        lines.add(histogramLine("broadcast", broadcast));
+        lines.add(histogramLine("write", writes));
+        Collection<ChatRoom> rooms = ChatRoomManager.getInstance().getRooms();
+        for (ChatRoom room : rooms) {
+            RoomMetrics m = room.getMetrics();
+            lines.add(String.format("room %s owner=%s members=%d messages=%d rate=%.1f/s rate-limited=%d history=%d history-bytes=%d pm-conversations=%d indexed-terms=%d",
+                    room.getRoomId(), orDash(room.getOwner()), m.getMembers(), m.getMessages(), m.getMessagesPerSecond(),
+                    m.getRateLimited(), m.getHistorySize(), m.getHistoryBytes(), m.getPrivateConversations(),
+                    m.getIndexedTerms()));
+        }
+        // sizes are read once; sorting on live queue sizes could break the comparator contract
+        List<Map.Entry<ClientHandler, Integer>> byBacklog = new ArrayList<>();
+        for (ClientHandler c : clients) byBacklog.add(Map.entry(c, c.getOutbound().size()));
+        byBacklog.sort(Map.Entry.<ClientHandler, Integer>comparingByValue().reversed());
+        for (Map.Entry<ClientHandler, Integer> e : byBacklog.subList(0, Math.min(STATS_CLIENTS, byBacklog.size()))) {
+            ClientHandler c = e.getKey();
+            lines.add(String.format("client %s@%s %s backlog=%d dropped=%d rate-limited=%d last-write=%dus max-write=%dus",
+                    orDash(c.getUsername()), orDash(c.getRoomId()), c.getRemoteAddress(), e.getValue(),
+                    c.getOutbound().getDropped(), c.getRateLimited(), micros(c.getLastWriteNanos()),
+                    micros(c.getMaxWriteNanos())));
+        }
+        return lines;
+    }
+
+    private static String histogramLine(String name, LatencyHistogram h) {
+        return String.format("%s count=%d p50=%dus p99=%dus p999=%dus max=%dus", name, h.count(),
+                micros(h.percentile(0.50)), micros(h.percentile(0.99)),
+                micros(h.percentile(0.999)), micros(h.max()));
+    }
+
+    private static String orDash(String s) {
+        return s != null ? s : "-";
+    }
+
+    private static long micros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+}
@@ -0,0 +1,43 @@
+package chat;
+
+import java.util.List;
+
+/**
+ * Server-wide metrics as seen through JMX (ObjectName chat:type=Server).
+ * Latencies are in microseconds and cover everything recorded since start
+ * or the last resetLatencies().
+ */
+public interface ServerMetricsMXBean {
+    int getActiveConnections();
+    long getTotalConnections();
+    int getRoomCount();
+
+    long getBroadcastCount();
+    long getBroadcastP50Micros();
+    long getBroadcastP99Micros();
+    long getBroadcastP999Micros();
+    long getBroadcastMaxMicros();
+
+    long getWriteCount();
+    long getWriteP50Micros();
+    long getWriteP99Micros();
+    long getWriteP999Micros();
+    long getWriteMaxMicros();
+    /** Slowest single write of any connected client, see getSlowestWriters(). */
+    long getMaxClientWriteMicros();
+    /** Up to ten connected clients with the slowest writes, slowest first: "user@room address last-write=..us max-write=..us". */
+    List<String> getSlowestWriters();
+
+    /** Lines queued for all connected clients. */
+    long getOutboundBacklog();
+    /** Longest outbound queue of any connected client. */
+    int getMaxOutboundBacklog();
+    /** Lines the overflow policy dropped for the connected clients. */
+    long getDroppedLines();
+    /** MSG and PM refused with "ERROR rate limited" since start, by connection or room limits. */
+    long getRateLimitedMessages();
+    /** Connections closed by Heartbeat for not answering PINGs or not reading their output. */
+    long getReapedConnections();
+
+    void resetLatencies();
+}
@@ -0,0 +1,88 @@
+package chat;
+
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Singleton registry of resume tokens. ClientHandler opens a session on
+ * every successful JOIN and hands the token to the client; RESUME with that
+ * token takes the session over, exactly once.
+ *
+ * A session stays resumable while its connection is up (the old handler may
+ * not have noticed a dead network yet) and for --resume-window seconds
+ * after the connection is lost. QUIT ends it right away.
+ */
+final class Sessions {
+    private static final Sessions instance = new Sessions();
+
+    /** Where a resumed client goes back to, and the handler it replaces. */
+    static final class Session {
+        final String roomId;
+        final String username;
+        final ClientHandler handler;
+        volatile long expiresAt = Long.MAX_VALUE;   // set once the connection is lost
+
+        Session(String roomId, String username, ClientHandler handler) {
+            this.roomId = roomId;
+            this.username = username;
+            this.handler = handler;
+        }
+    }
+
+    private final SecureRandom random = new SecureRandom();
+    private final Map<String, Session> sessions = new ConcurrentHashMap<>();
+
+    private Sessions() {
+        ScheduledExecutorService reaper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "session-reaper");
+            t.setDaemon(true);
+            return t;
+        });
+        reaper.scheduleWithFixedDelay(this::removeExpired, 10, 10, TimeUnit.SECONDS);
+    }
+
+    static Sessions getInstance() {
+        return instance;
+    }
+
+    /** New session for a member that just joined; returns its token. */
+    String open(String roomId, String username, ClientHandler handler) {
+        byte[] bytes = new byte[16];
+        random.nextBytes(bytes);
+        String token = Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+        sessions.put(token, new Session(roomId, username, handler));
+        return token;
+    }
+
+    /** The client quit or moved on: the token can no longer be resumed. */
+    void close(String token) {
+        if (token != null) sessions.remove(token);
+    }
+
+    /** The connection was lost: the session can be resumed for windowMillis from now. */
+    void detach(String token, long windowMillis) {
+        Session s = token != null ? sessions.get(token) : null;
+        if (s == null) return;
+        if (windowMillis <= 0) {
+            sessions.remove(token);
+        } else {
+            s.expiresAt = System.currentTimeMillis() + windowMillis;
+        }
+    }
+
+    /** Removes and returns the session for RESUME; null if unknown or expired. */
+    Session take(String token) {
+        Session s = sessions.remove(token);
+        return s != null && s.expiresAt > System.currentTimeMillis() ? s : null;
+    }
+
+    private void removeExpired() {
+        long now = System.currentTimeMillis();
+        sessions.values().removeIf(s -> s.expiresAt <= now);
+    }
+}
@@ -0,0 +1,48 @@
+package chat;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free token bucket: holds up to burst tokens and refills at a fixed
+ * rate per second. Instead of a token count it keeps the time at which the
+ * bucket will be full again (as in the generic cell rate algorithm), so
+ * taking a token is a single compare-and-set and nothing has to refill it
+ * in the background.
+ */
+final class TokenBucket {
+    private final long interval;   // nanoseconds per token
+    private final long capacity;   // nanoseconds of tokens the bucket holds
+    private final AtomicLong fullAt = new AtomicLong(System.nanoTime());
+
+    TokenBucket(double perSecond, int burst) {
+        this.interval = Math.max(1, (long) (1e9 / perSecond));
+        this.capacity = interval * Math.max(1, burst);
+    }
+
+    /** Per-connection MSG/PM limit from --rate-limit and --rate-burst; null when off. */
+    static TokenBucket forConnection() {
+        ServerConfig config = ServerConfig.get();
+        return create(config.getRateLimit(), config.getRateBurst());
+    }
+
+    /** Per-room MSG/PM limit from --room-rate-limit and --room-rate-burst; null when off. */
+    static TokenBucket forRoom() {
+        ServerConfig config = ServerConfig.get();
+        return create(config.getRoomRateLimit(), config.getRoomRateBurst());
+    }
+
+    private static TokenBucket create(int perSecond, int burst) {
+        return perSecond > 0 ? new TokenBucket(perSecond, burst) : null;
+    }
+
+    /** Takes a token if one is left. */
+    boolean tryAcquire() {
+        long now = System.nanoTime();
+        while (true) {
+            long full = fullAt.get();
+            long next = (full - now > 0 ? full : now) + interval;
+            if (next - now > capacity) return false;
+            if (fullAt.compareAndSet(full, next)) return true;
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package chat;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Per-room table of usernames, so stored messages carry a small int per
+ * user instead of a String reference each, and every message from the same
+ * user (including ones replayed from the MessageLog) shares one String.
+ *
+ * Ids are handed out in first-seen order and never reused; the table lives
+ * as long as its room. Lookups are lock-free, only a new name takes the lock.
+ */
+final class UserTable {
+    /** Id of "no user", e.g. the recipient of a room message. */
+    static final int NONE = -1;
+
+    private final Map<String, Integer> ids;   // null for a detached table
+    private volatile String[] names;
+    private int size;   // guarded by this
+
+    UserTable() {
+        this.ids = new ConcurrentHashMap<>();
+        this.names = new String[8];
+    }
+
+    private UserTable(String[] names) {
+        this.ids = null;
+        this.names = names;
+        this.size = names.length;
+    }
+
+    /**
+     * Table holding just the given names (ids 0, 1, ...), for a message that
+     * is not stored in a room yet. Nothing can be interned into it.
+     */
+    static UserTable detached(String... names) {
+        return new UserTable(names);
+    }
+
+    /** Id of name, assigning the next one if the name is new. */
+    int intern(String name) {
+        Integer id = ids.get(name);
+        if (id != null) return id;
+        synchronized (this) {
+            id = ids.get(name);
+            if (id != null) return id;
+            String[] current = names;
+            if (size == current.length) current = Arrays.copyOf(current, size * 2);
+            current[size] = name;
+            names = current;   // publishes the name before its id
+            ids.put(name, size);
+            return size++;
+        }
+    }
+
+    /** Id of name, or NONE if it was never interned. */
+    int find(String name) {
+        Integer id = ids.get(name);
+        return id != null ? id : NONE;
+    }
+
+    String name(int id) {
+        return names[id];
+    }
+
+    /** Order-independent key of the conversation between two users. */
+    static long pair(int a, int b) {
+        return a < b ? (long) a << 32 | b : (long) b << 32 | a;
+    }
+}
@@ -0,0 +1,158 @@
+package chat;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class BinaryProtocolTest {
+
+    /** Collects what an InboundDecoder hands over, as "LINE text" or "FRAME op payload". */
+    static final class Recorder implements InboundDecoder.Sink {
+        final List<String> units = new ArrayList<>();
+        InboundDecoder decoder;
+        boolean oversized;
+
+        @Override
+        public void onLine(byte[] buf, int start, int end) {
+            String line = new String(buf, start, end - start, StandardCharsets.UTF_8);
+            units.add("LINE " + line);
+            if (line.equals("PROTO BIN")) decoder.switchToBinary();
+        }
+
+        @Override
+        public void onFrame(byte opcode, ByteBuffer payload) {
+            units.add("FRAME " + opcode + " " + BinaryProtocol.getText(payload));
+        }
+
+        @Override
+        public void onOversized() {
+            oversized = true;
+        }
+    }
+
+    static ByteBuffer frameBody(byte[] frame) {
+        ByteBuffer buf = ByteBuffer.wrap(frame);
+        long length = BinaryProtocol.getVarint(buf);
+        assertEquals(buf.remaining(), length, "length prefix counts opcode and payload");
+        return buf;
+    }
+
+    @Test
+    void varintsRoundTripAtEveryWidth() {
+        long[] values = {0, 1, 127, 128, 16_383, 16_384, Integer.MAX_VALUE, Long.MAX_VALUE, -1};
+        for (long v : values) {
+            ByteBuffer buf = ByteBuffer.allocate(10);
+            BinaryProtocol.putVarint(buf, v);
+            assertEquals(BinaryProtocol.varintSize(v), buf.position(), "size of " + v);
+            buf.flip();
+            assertEquals(v, BinaryProtocol.getVarint(buf));
+        }
+        assertEquals(-1, BinaryProtocol.getVarint(ByteBuffer.wrap(new byte[] {(byte) 0x80})), "truncated");
+        byte[] tooLong = new byte[11];
+        Arrays.fill(tooLong, (byte) 0x80);
+        assertThrows(IllegalArgumentException.class, () -> BinaryProtocol.getVarint(ByteBuffer.wrap(tooLong)));
+    }
+
+    @Test
+    void messageFrameCarriesEveryField() {
+        Message pm = new Message("alice", "bob", "héllo", true, 1_700_000_000_000L, 300);
+        ByteBuffer buf = frameBody(BinaryProtocol.messageFrame(pm));
+        assertEquals(BinaryProtocol.OUT_MESSAGE, buf.get());
+        assertEquals(300, BinaryProtocol.getVarint(buf));
+        assertEquals(1_700_000_000_000L, BinaryProtocol.getVarint(buf));
+        assertEquals(1, buf.get(), "private flag");
+        assertEquals("alice", BinaryProtocol.getString(buf));
+        assertEquals("bob", BinaryProtocol.getString(buf));
+        assertEquals("héllo", BinaryProtocol.getText(buf));
+        assertFalse(buf.hasRemaining());
+
+        ByteBuffer pub = frameBody(BinaryProtocol.messageFrame(new Message("alice", null, "hi", false, 1, 2)));
+        pub.position(pub.position() + 3);   // opcode, id, epoch
+        assertEquals(0, pub.get());
+        assertEquals("alice", BinaryProtocol.getString(pub));
+        assertEquals("", BinaryProtocol.getString(pub));
+    }
+
+    @Test
+    void textLinesAreReframedByPrefix() {
+        String[][] cases = {
+                {"[SYSTEM] bob joined", "SYSTEM", "bob joined"},
+                {"[USERS] alice,bob", "USERS", "alice,bob"},
+                {"[PRESENCE] +carol", "PRESENCE", "+carol"},
+                {"ERROR rate limited", "ERROR", "rate limited"},
+                {"SESSION abc 7", "TEXT", "SESSION abc 7"},
+        };
+        byte[] ops = {BinaryProtocol.OUT_SYSTEM, BinaryProtocol.OUT_USERS, BinaryProtocol.OUT_PRESENCE,
+                BinaryProtocol.OUT_ERROR, BinaryProtocol.OUT_TEXT};
+        for (int i = 0; i < cases.length; i++) {
+            byte[] frame = BinaryProtocol.fromLine(OutboundQueue.encode(cases[i][0]));
+            assertEquals(ops[i], BinaryProtocol.opcodeOf(frame), cases[i][1]);
+            ByteBuffer buf = frameBody(frame);
+            buf.get();
+            assertEquals(cases[i][2], BinaryProtocol.getText(buf));
+        }
+    }
+
+    @Test
+    void roomFrameWrapsACompleteFrame() {
+        byte[] inner = BinaryProtocol.fromLine(OutboundQueue.encode("[PRESENCE] +zoe"));
+        byte[] frame = BinaryProtocol.roomFrame("dev".getBytes(StandardCharsets.UTF_8), inner);
+        assertEquals(BinaryProtocol.OUT_ROOM, BinaryProtocol.opcodeOf(frame));
+        ByteBuffer buf = frameBody(frame);
+        buf.get();
+        assertEquals("dev", BinaryProtocol.getString(buf));
+        byte[] rest = new byte[buf.remaining()];
+        buf.get(rest);
+        assertEquals(ByteBuffer.wrap(inner), ByteBuffer.wrap(rest));
+    }
+
+    @Test
+    void truncatedStringIsRejected() {
+        ByteBuffer buf = ByteBuffer.wrap(new byte[] {5, 'a', 'b'});
+        assertThrows(IllegalArgumentException.class, () -> BinaryProtocol.getString(buf));
+    }
+
+    @Test
+    void decoderSwitchesModeMidReadAndReassemblesSplitFrames() {
+        Recorder sink = new Recorder();
+        InboundDecoder decoder = new InboundDecoder(sink);
+        sink.decoder = decoder;
+        byte[] text = "PROTO BIN\n".getBytes(StandardCharsets.UTF_8);
+        byte[] msg = BinaryProtocol.msg("x".repeat(200));   // two-byte length prefix
+        byte[] quit = BinaryProtocol.request(BinaryProtocol.QUIT);
+        ByteBuffer all = ByteBuffer.allocate(text.length + msg.length + quit.length);
+        all.put(text).put(msg).put(quit);
+        byte[] bytes = all.array();
+
+        // the line and the start of the first frame share a read, the rest trickles in
+        decoder.feed(ByteBuffer.wrap(bytes, 0, text.length + 1));
+        for (int i = text.length + 1; i < bytes.length; i++) decoder.feed(ByteBuffer.wrap(bytes, i, 1));
+        assertEquals(List.of("LINE PROTO BIN", "FRAME " + BinaryProtocol.MSG + " " + "x".repeat(200),
+                "FRAME " + BinaryProtocol.QUIT + " "), sink.units);
+        assertFalse(sink.oversized);
+    }
+
+    @Test
+    void oversizedFrameStopsTheDecoder() {
+        Recorder sink = new Recorder();
+        InboundDecoder decoder = new InboundDecoder(sink);
+        sink.decoder = decoder;
+        decoder.switchToBinary();
+        ByteBuffer buf = ByteBuffer.allocate(16);
+        BinaryProtocol.putVarint(buf, BinaryProtocol.MAX_FRAME_LENGTH + 1);
+        buf.put(BinaryProtocol.MSG);
+        buf.flip();
+        decoder.feed(buf);
+        decoder.feed(ByteBuffer.wrap(BinaryProtocol.request(BinaryProtocol.USERS)));
+        assertTrue(sink.oversized);
+        assertTrue(sink.units.isEmpty());
+    }
+}
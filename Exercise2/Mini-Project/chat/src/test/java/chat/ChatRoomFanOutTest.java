@@ -0,0 +1,110 @@
+package chat;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+class ChatRoomFanOutTest {
+    private static final Logger chatLogger = Logger.getLogger("chat");
+
+    @BeforeAll
+    static void config() {
+        ServerConfig.install(ServerConfig.parse(new String[] {"--outbound-capacity=1000000"}));
+        chatLogger.setLevel(Level.SEVERE);   // the failure test logs a warning per message
+    }
+
+    /** "#id ..." lines a detached member received, tag and presence lines stripped. */
+    static List<String> received(ClientHandler member) {
+        List<String> lines = new ArrayList<>();
+        byte[] frame;
+        while ((frame = member.getOutbound().poll()) != null) {
+            String line = new String(frame, StandardCharsets.UTF_8).trim();
+            if (line.startsWith("@")) line = line.substring(line.indexOf(' ') + 1);
+            if (line.startsWith("#")) lines.add(line);
+        }
+        return lines;
+    }
+
+    static long idOf(String line) {
+        return Long.parseLong(line.substring(1, line.indexOf(' ')));
+    }
+
+    @Test
+    void concurrentSendersAreDeliveredInIdOrder() throws InterruptedException {
+        ChatRoom room = new ChatRoom("fan-out-order");
+        ClientHandler reader = new ClientHandler(null, "reader");
+        assertTrue(room.addUser("reader", reader));
+
+        int threads = 8;
+        int perThread = 2_000;   // well past FAN_OUT_WINDOW, so senders wait for the window too
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> senders = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            String from = "s" + t;
+            Thread sender = new Thread(() -> {
+                try {
+                    start.await();
+                    for (int i = 0; i < perThread; i++) room.broadcast(new Message(from, null, "n" + i, false));
+                } catch (InterruptedException e) {
+                    return;
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            senders.add(sender);
+            sender.start();
+        }
+        start.countDown();
+        for (Thread sender : senders) {
+            sender.join(TimeUnit.SECONDS.toMillis(30));
+            assertTrue(!sender.isAlive(), "sender stalled");
+        }
+
+        List<String> lines = received(reader);
+        assertEquals(threads * perThread, lines.size());
+        Map<String, Integer> nextPerSender = new HashMap<>();
+        for (int i = 0; i < lines.size(); i++) {
+            String line = lines.get(i);
+            assertEquals(i + 1, idOf(line), "out of order at " + line);
+            // each sender's own messages keep the order they were sent in
+            String from = line.substring(line.indexOf("] ") + 2, line.indexOf(':', line.indexOf("] ")));
+            int n = Integer.parseInt(line.substring(line.lastIndexOf(" n") + 2));
+            assertEquals(nextPerSender.getOrDefault(from, 0), n);
+            nextPerSender.put(from, n + 1);
+        }
+    }
+
+    @Test
+    void failingMemberDoesNotStopDelivery() throws IOException {
+        ChatRoom room = new ChatRoom("fan-out-failure");
+        ClientHandler broken = new ClientHandler(null, "broken") {
+            @Override
+            public void notifyMessage(ChatRoom from, Message msg) {
+                throw new IllegalStateException("delivery failed");
+            }
+        };
+        ClientHandler reader = new ClientHandler(null, "reader");
+        assertTrue(room.addUser("broken", broken));
+        assertTrue(room.addUser("reader", reader));
+
+        int total = 3 * 1024;   // several windows' worth
+        for (int i = 0; i < total; i++) room.broadcast(new Message("alice", null, "m" + i, false));
+
+        List<String> lines = received(reader);
+        assertEquals(total, lines.size());
+        assertEquals(total, idOf(lines.get(total - 1)));
+    }
+}
@@ -0,0 +1,137 @@
+package chat;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+class ClientHandlerTest {
+
+    @BeforeAll
+    static void config() {
+        ServerConfig.install(ServerConfig.parse(new String[] {"--history-page=5", "--history-capacity=20", "--join-replay=0"}));
+    }
+
+    static ClientHandler joined(String roomId, String username) {
+        ClientHandler client = new ClientHandler(null, username);
+        command(client, "JOIN " + roomId + " " + username);
+        drain(client);
+        return client;
+    }
+
+    static void command(ClientHandler client, String line) {
+        client.onBytes(ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8)));
+    }
+
+    static List<String> drain(ClientHandler client) {
+        List<String> lines = new ArrayList<>();
+        byte[] frame;
+        while ((frame = client.getOutbound().poll()) != null) lines.add(new String(frame, StandardCharsets.UTF_8).trim());
+        return lines;
+    }
+
+    /** Ids of the message lines in a reply, then its last line if that is a hint. */
+    static List<String> page(List<String> reply) {
+        List<String> out = new ArrayList<>();
+        for (String line : reply) {
+            if (line.startsWith("#")) out.add(line.substring(0, line.indexOf(' ')));
+        }
+        String last = reply.get(reply.size() - 1);
+        if (last.startsWith("[SYSTEM]")) out.add(last);
+        return out;
+    }
+
+    static ClientHandler roomWith(String roomId, int messages) throws IOException {
+        ChatRoom room = ChatRoomManager.getInstance().getOrCreateRoom(roomId);
+        for (int i = 0; i < messages; i++) room.broadcast(new Message("bob", null, "m" + i, false));
+        return joined(roomId, "alice");
+    }
+
+    @Test
+    void historyPagesFollowTheirCursors() throws IOException {
+        ClientHandler client = roomWith("paged", 12);
+
+        command(client, "HISTORY 100");
+        assertEquals(List.of("#8", "#9", "#10", "#11", "#12",
+                "[SYSTEM] 7 older messages, use HISTORY BEFORE 8 <n>"), page(drain(client)));
+        command(client, "HISTORY BEFORE 8 3");
+        assertEquals(List.of("#5", "#6", "#7",
+                "[SYSTEM] 4 older messages, use HISTORY BEFORE 5 <n>"), page(drain(client)));
+        command(client, "HISTORY BEFORE #3 10");
+        assertEquals(List.of("#1", "#2"), page(drain(client)));
+
+        // SINCE walks forward, oldest page first
+        command(client, "HISTORY SINCE 0");
+        assertEquals(List.of("#1", "#2", "#3", "#4", "#5",
+                "[SYSTEM] more messages, use HISTORY SINCE 5"), page(drain(client)));
+        command(client, "HISTORY SINCE 10");
+        assertEquals(List.of("#11", "#12"), page(drain(client)));
+        command(client, "HISTORY SINCE 12");
+        assertEquals(List.of(), page(drain(client)));
+    }
+
+    @Test
+    void staleSinceCursorContinuesFromTheOldestRetained() throws IOException {
+        ClientHandler client = roomWith("paged-stale", 30);   // ids 11..30 retained
+        command(client, "HISTORY SINCE 2");
+        assertEquals(List.of("#11", "#12", "#13", "#14", "#15",
+                "[SYSTEM] more messages, use HISTORY SINCE 15"), page(drain(client)));
+    }
+
+    @Test
+    void privateHistoryPagesTheSameWay() throws IOException {
+        ChatRoom room = ChatRoomManager.getInstance().getOrCreateRoom("paged-pm");
+        for (int i = 0; i < 7; i++) room.sendPrivate("alice", "bob", "pm" + i);
+        ClientHandler client = joined("paged-pm", "alice");
+
+        command(client, "/pmh bob SINCE 0");
+        assertEquals(List.of("#1", "#2", "#3", "#4", "#5",
+                "[SYSTEM] more messages, use /pmh bob SINCE 5"), page(drain(client)));
+        command(client, "/pmh bob BEFORE 3 1");
+        assertEquals(List.of("#2", "[SYSTEM] 1 older messages, use /pmh bob BEFORE 2 <n>"), page(drain(client)));
+    }
+
+    @Test
+    void malformedCursorsGetTheUsage() {
+        ClientHandler client = joined("paged-bad", "alice");
+        for (String bad : List.of("HISTORY SINCE", "HISTORY BEFORE 5", "HISTORY SINCE x", "HISTORY 1 2 3 4")) {
+            command(client, bad);
+            assertEquals(List.of("ERROR Usage: HISTORY [<n> | SINCE <id> | BEFORE <id> <n>]"), drain(client), bad);
+        }
+    }
+
+    @Test
+    void searchTakesATrailingLimit() throws IOException {
+        ChatRoom room = ChatRoomManager.getInstance().getOrCreateRoom("search-limit");
+        for (int i = 0; i < 4; i++) room.broadcast(new Message("bob", null, "deploy step " + i, false));
+        ClientHandler client = joined("search-limit", "alice");
+
+        command(client, "SEARCH deploy   step  LIMIT 2 ");
+        List<String> reply = drain(client);
+        assertEquals("=== Search results for deploy   step ===", reply.get(0));
+        assertEquals(4, reply.size(), "two hits between the header and footer");
+
+        command(client, "SEARCH deploy");
+        assertEquals(6, drain(client).size());
+    }
+
+    @Test
+    void limitIsOnlyAKeywordAfterATerm() throws IOException {
+        ChatRoom room = ChatRoomManager.getInstance().getOrCreateRoom("search-words");
+        room.broadcast(new Message("bob", null, "limit 3 reached", false));
+        ClientHandler client = joined("search-words", "alice");
+
+        command(client, "SEARCH limit 3");
+        assertEquals("=== Search results for limit 3 ===", drain(client).get(0));
+
+        command(client, "SEARCH reached LIMIT x");
+        assertEquals(List.of("ERROR Usage: SEARCH <terms> [LIMIT n]"), drain(client));
+        command(client, "SEARCH reached LIMIT -1");
+        assertEquals(List.of("ERROR Usage: SEARCH <terms> [LIMIT n]"), drain(client));
+    }
+}
@@ -0,0 +1,31 @@
+package chat;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import org.junit.jupiter.api.Test;
+
+class ClientProtocolTest {
+
+    @Test
+    void shorthandsBecomeWireCommands() {
+        assertEquals("JOIN lobby alice", ClientProtocol.translate("/jn lobby alice"));
+        assertEquals("PM bob hi there", ClientProtocol.translate("/pm bob hi there"));
+        assertEquals("USERS", ClientProtocol.translate("/u"));
+        assertEquals("MSG hello", ClientProtocol.translate("hello"));
+        assertThrows(IllegalArgumentException.class, () -> ClientProtocol.translate("/pm bob"));
+    }
+
+    @Test
+    void roomTagNeedsAnExplicitCommand() {
+        assertEquals("@lobby MSG hi", ClientProtocol.translate("@lobby /msg hi"));
+        assertEquals("@lobby PM bob hi", ClientProtocol.translate("@lobby /pm bob hi"));
+        assertEquals("@lobby HISTORY", ClientProtocol.translate("@lobby /h"));
+    }
+
+    @Test
+    void mentionsStayOrdinaryMessages() {
+        assertEquals("MSG @alice are you there?", ClientProtocol.translate("@alice are you there?"));
+        assertEquals("MSG @", ClientProtocol.translate("@"));
+    }
+}
@@ -0,0 +1,44 @@
+package chat;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class LatencyHistogramTest {
+
+    @Test
+    void percentilesAreWithinABucketOfTheTrueValue() {
+        LatencyHistogram h = new LatencyHistogram();
+        for (long v = 1; v <= 10_000; v++) h.record(v * 1000);
+        assertEquals(10_000, h.count());
+        assertEquals(10_000_000, h.max());
+        long p50 = h.percentile(0.5);
+        assertTrue(p50 >= 5_000_000 && p50 <= 5_000_000 * 103 / 100, "p50 " + p50);
+        assertEquals(h.max(), h.percentile(1.0));
+        h.reset();
+        assertEquals(0, h.count());
+        assertEquals(0, h.percentile(0.99));
+    }
+
+    @Test
+    void concurrentRecordsAreAllCountedAcrossStripes() throws InterruptedException {
+        LatencyHistogram h = new LatencyHistogram();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            long value = (t + 1) * 100L;
+            threads.add(new Thread(() -> {
+                for (int i = 0; i < 50_000; i++) h.record(value);
+            }));
+        }
+        for (Thread t : threads) t.start();
+        for (Thread t : threads) t.join();
+        assertEquals(400_000, h.count());
+        assertEquals(800, h.max());
+        assertEquals(h.max(), h.percentile(1.0));
+        long p10 = h.percentile(0.1);
+        assertTrue(p10 >= 100 && p10 < 104, "p10 " + p10);
+    }
+}
@@ -0,0 +1,135 @@
+package chat;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import org.junit.jupiter.api.Test;
+
+class MessageHistoryTest {
+
+    static Message msg(String text) {
+        return new Message("alice", null, text, false);
+    }
+
+    static List<Long> ids(Iterable<Message> messages) {
+        List<Long> ids = new ArrayList<>();
+        for (Message m : messages) ids.add(m.getId());
+        return ids;
+    }
+
+    @Test
+    void appendWithIdKeepsTheOwnersIdsAndSkipsGaps() {
+        MessageHistory mirror = new MessageHistory(10, 0, 0);
+        mirror.appendWithId(msg("a").stored(null, 1));
+        mirror.appendWithId(msg("b").stored(null, 2));
+        mirror.appendWithId(msg("e").stored(null, 5));   // relays 3 and 4 were lost
+        mirror.appendWithId(msg("f").stored(null, 6));
+
+        assertEquals(List.of(1L, 2L, 5L, 6L), ids(mirror.snapshot()));
+        assertNull(mirror.snapshot().get(3));
+        assertEquals(List.of(5L, 6L), ids(mirror.snapshot().since(2)));
+    }
+
+    @Test
+    void appendWithIdIgnoresWhatItHasAlready() {
+        MessageHistory mirror = new MessageHistory(10, 0, 0);
+        mirror.appendWithId(msg("a").stored(null, 1));
+        mirror.appendWithId(msg("b").stored(null, 2));
+        assertNull(mirror.appendWithId(msg("a again").stored(null, 1)));
+        assertEquals(List.of(1L, 2L), ids(mirror.snapshot()));
+    }
+
+    @Test
+    void appendWithIdAcrossALongGapKeepsOnlyTheRing() {
+        MessageHistory mirror = new MessageHistory(4, 0, 0);
+        mirror.appendWithId(msg("a").stored(null, 1));
+        mirror.appendWithId(msg("z").stored(null, 1_000));
+        mirror.appendWithId(msg("zz").stored(null, 1_001));
+        assertEquals(List.of(1_000L, 1_001L), ids(mirror.snapshot()));
+        assertEquals(1_002L, mirror.append(msg("local")).getId());
+    }
+
+    @Test
+    void ringKeepsTheNewestCapacityMessages() {
+        MessageHistory history = new MessageHistory(4, 0, 0);
+        for (int i = 1; i <= 10; i++) assertEquals(i, history.append(msg("m" + i)).getId());
+        assertEquals(4, history.size());
+        MessageHistory.Snapshot snap = history.snapshot();
+        assertEquals(List.of(7L, 8L, 9L, 10L), ids(snap));
+        assertEquals(7, snap.firstId());
+        assertNull(snap.get(6), "overwritten");
+        assertEquals("m8", snap.get(8).getText());
+    }
+
+    @Test
+    void snapshotStaysPutAndSkipsWhatIsOverwritten() {
+        MessageHistory history = new MessageHistory(4, 0, 0);
+        for (int i = 0; i < 4; i++) history.append(msg("old"));
+        MessageHistory.Snapshot snap = history.snapshot();
+        history.append(msg("new"));
+        history.append(msg("new"));
+        assertEquals(4, snap.size());
+        assertEquals(List.of(3L, 4L), ids(snap), "ids 1 and 2 were evicted after the snapshot was taken");
+        assertEquals(List.of(3L, 4L, 5L, 6L), ids(history.snapshot()));
+    }
+
+    @Test
+    void cursorsPageThroughTheSnapshot() {
+        MessageHistory history = new MessageHistory(100, 0, 0);
+        for (int i = 0; i < 10; i++) history.append(msg("m"));
+        MessageHistory.Snapshot snap = history.snapshot();
+        assertEquals(List.of(8L, 9L, 10L), ids(snap.latest(3)));
+        assertEquals(List.of(9L, 10L), ids(snap.since(8)));
+        assertTrue(snap.since(10).isEmpty());
+        assertEquals(List.of(5L, 6L, 7L), ids(snap.before(8, 3)));
+        assertEquals(List.of(1L, 2L), ids(snap.before(3, 5)), "clamped at the oldest");
+        assertTrue(snap.before(1, 5).isEmpty());
+        assertEquals(List.of(9L, 10L), ids(snap.before(1_000, 2)), "a cursor past the end pages from the newest");
+    }
+
+    @Test
+    void byteAndAgeLimitsTrimTheOldest() {
+        MessageHistory bounded = new MessageHistory(100, 0, 3 * (64 + 100));
+        for (int i = 0; i < 5; i++) bounded.append(msg("x".repeat(100)));
+        assertEquals(List.of(3L, 4L, 5L), ids(bounded.snapshot()));
+        assertTrue(bounded.bytes() <= 3 * (64 + 100));
+
+        MessageHistory aged = new MessageHistory(100, 60_000, 0);
+        long now = System.currentTimeMillis();
+        aged.append(new Message("alice", null, "stale", false, now - 120_000));
+        aged.append(new Message("alice", null, "fresh", false, now));
+        assertEquals(List.of(2L), ids(aged.snapshot()));
+    }
+
+    @Test
+    void concurrentAppendsGetDistinctContiguousIds() throws InterruptedException {
+        MessageHistory history = new MessageHistory(1_000, 0, 0);
+        int writers = 8;
+        int each = 10_000;
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < writers; t++) {
+            threads.add(new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < each; i++) history.append(msg("m"));
+            }));
+        }
+        for (Thread t : threads) t.start();
+        start.countDown();
+        for (Thread t : threads) t.join();
+
+        MessageHistory.Snapshot snap = history.snapshot();
+        assertEquals(writers * each, snap.lastId());
+        assertEquals(1_000, snap.size());
+        List<Long> ids = ids(snap);
+        for (int i = 0; i < ids.size(); i++) assertEquals(snap.firstId() + i, ids.get(i));
+    }
+}
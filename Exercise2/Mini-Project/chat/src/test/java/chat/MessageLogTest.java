@@ -0,0 +1,133 @@
+package chat;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class MessageLogTest {
+    private static final Logger chatLogger = Logger.getLogger("chat");
+
+    @TempDir
+    Path dir;
+
+    @BeforeAll
+    static void config() {
+        ServerConfig.install(ServerConfig.parse(new String[0]));
+        chatLogger.setLevel(Level.OFF);   // the stray-file and failure tests log on purpose
+    }
+
+    MessageLog open() throws IOException {
+        return MessageLog.open(ServerConfig.parse(new String[] {
+                "--log-dir=" + dir, "--log-segment-bytes=65536", "--log-fsync=never"}));
+    }
+
+    static List<String> texts(Iterable<Message> messages) {
+        List<String> texts = new ArrayList<>();
+        for (Message m : messages) texts.add(m.getId() + " " + m.getText());
+        return texts;
+    }
+
+    @Test
+    void reopenedLogReplaysWhatWasAppended() throws IOException {
+        MessageLog log = open();
+        ChatRoom room = new ChatRoom("lobby", log);
+        room.broadcast(new Message("alice", null, "one", false));
+        room.sendPrivate("alice", "bob", "psst");
+        room.broadcast(new Message("bob", null, "two", false));
+        new ChatRoom("other", log).broadcast(new Message("carol", null, "elsewhere", false));
+        log.close();
+
+        MessageLog reopened = open();
+        assertTrue(reopened.hasRoom("lobby"));
+        assertFalse(reopened.hasRoom("never-used"));
+        ChatRoom back = new ChatRoom("lobby", reopened);
+        reopened.replay(back);
+        assertEquals(List.of("1 one", "2 two"), texts(back.getHistory()));
+        assertEquals(List.of("1 psst"), texts(back.getPrivateHistory("alice", "bob")));
+
+        // ids carry on after the replayed ones
+        back.broadcast(new Message("alice", null, "three", false));
+        assertEquals(3, back.getHistory().lastId());
+        reopened.close();
+    }
+
+    @Test
+    void recoveryAcrossRolledSegments() throws IOException {
+        MessageLog log = open();
+        ChatRoom room = new ChatRoom("busy", log);
+        String text = "x".repeat(1000);
+        for (int i = 0; i < 200; i++) room.broadcast(new Message("alice", null, text, false));   // ~3 segments
+        log.close();
+
+        MessageLog reopened = open();
+        ChatRoom back = new ChatRoom("busy", reopened);
+        reopened.replay(back);
+        assertEquals(200, back.getHistory().lastId());
+        assertEquals(Math.min(200, ServerConfig.get().getHistoryCapacity()), back.getHistory().size());
+        reopened.close();
+    }
+
+    @Test
+    void strayFilesWithTheSegmentPrefixAreSkipped() throws IOException {
+        MessageLog log = open();
+        new ChatRoom("lobby", log).broadcast(new Message("alice", null, "kept", false));
+        log.close();
+        Files.write(dir.resolve("segment-backup.log"), new byte[] {1, 2, 3});
+
+        MessageLog reopened = open();
+        ChatRoom back = new ChatRoom("lobby", reopened);
+        reopened.replay(back);
+        assertEquals(List.of("1 kept"), texts(back.getHistory()));
+        reopened.close();
+    }
+
+    @Test
+    void tooLargeMessageIsRefusedButTheLogCarriesOn() throws IOException {
+        MessageLog log = open();
+        ChatRoom room = new ChatRoom("lobby", log);
+        assertThrows(IOException.class, () -> room.broadcast(new Message("alice", null, "y".repeat(70_000), false)));
+        assertFalse(log.isFailed());
+        room.broadcast(new Message("alice", null, "small", false));
+        assertEquals(2, room.getHistory().size(), "refused by the log, still delivered and kept in memory");
+        log.close();
+    }
+
+    @Test
+    void failedWriteFailsTheLog() throws IOException {
+        MessageLog log = open();
+        ChatRoom room = new ChatRoom("lobby", log);
+        // take the directory away, so the next roll cannot create its segment
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+            for (Path f : files) Files.delete(f);
+        }
+        Files.delete(dir);
+
+        String text = "z".repeat(1000);
+        IOException first = null;
+        for (int i = 0; i < 100 && first == null; i++) {
+            try {
+                room.broadcast(new Message("alice", null, text, false));
+            } catch (IOException e) {
+                first = e;
+            }
+        }
+        assertTrue(first != null && log.isFailed());
+        IOException later = assertThrows(IOException.class,
+                () -> room.broadcast(new Message("alice", null, "after", false)));
+        assertEquals("message log failed", later.getMessage());
+        Files.createDirectories(dir);   // for @TempDir's cleanup
+    }
+}
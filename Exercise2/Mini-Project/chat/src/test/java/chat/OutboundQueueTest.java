@@ -0,0 +1,120 @@
+package chat;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+class OutboundQueueTest {
+    static final int CAPACITY = 50;
+
+    @BeforeAll
+    static void config() {
+        ServerConfig.install(ServerConfig.parse(new String[] {
+                "--outbound-capacity=" + CAPACITY, "--history-page=100", "--join-replay=100"}));
+    }
+
+    static void command(ClientHandler client, String line) {
+        client.onBytes(ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8)));
+    }
+
+    static List<String> drain(OutboundQueue queue) {
+        List<String> lines = new ArrayList<>();
+        byte[] frame;
+        while ((frame = queue.poll()) != null) lines.add(new String(frame, StandardCharsets.UTF_8).trim());
+        return lines;
+    }
+
+    static byte[] line(String text) {
+        return OutboundQueue.encode(text);
+    }
+
+    @Test
+    void presenceIsMergedWhereItIsQueued() {
+        OutboundQueue queue = new OutboundQueue(4, OutboundQueue.OverflowPolicy.COALESCE);
+        queue.offer(line("#1 a"));
+        queue.offer(line("[PRESENCE] +bob"));
+        queue.offer(line("@other [PRESENCE] +zoe"));
+        queue.offer(line("#2 b"));
+        // full: these fold into the queued lines for their rooms instead of dropping anything
+        queue.offer(line("[PRESENCE] +carol -bob"));
+        queue.offer(line("@other [PRESENCE] -zoe"));
+        assertEquals(List.of("#1 a", "[PRESENCE] +carol -bob", "@other [PRESENCE] -zoe", "#2 b"), drain(queue));
+    }
+
+    @Test
+    void deltasUpdateAQueuedSnapshot() {
+        OutboundQueue queue = new OutboundQueue(2, OutboundQueue.OverflowPolicy.COALESCE);
+        queue.offer(line("[USERS] alice,bob"));
+        queue.offer(line("#1 a"));
+        queue.offer(line("[PRESENCE] +carol -alice"));
+        assertEquals(List.of("[USERS] bob,carol", "#1 a"), drain(queue));
+    }
+
+    @Test
+    void presenceAlreadyWrittenOutIsNotMergedInto() {
+        OutboundQueue queue = new OutboundQueue(2, OutboundQueue.OverflowPolicy.COALESCE);
+        queue.offer(line("[PRESENCE] +bob"));
+        queue.poll();
+        queue.offer(line("#1 a"));
+        queue.offer(line("#2 b"));
+        queue.offer(line("[PRESENCE] +carol"));
+        assertEquals(List.of("[SYSTEM] 1 messages skipped (connection too slow)", "#2 b", "[PRESENCE] +carol"),
+                drain(queue));
+    }
+
+    @Test
+    void aUsersReplyIsNotMergedAcross() {
+        OutboundQueue queue = new OutboundQueue(2, OutboundQueue.OverflowPolicy.COALESCE);
+        queue.offer(line("[PRESENCE] +bob"));
+        queue.add(line("[USERS] alice,bob"));
+        queue.offer(line("[PRESENCE] +carol"));
+        assertEquals(List.of("[SYSTEM] 1 messages skipped (connection too slow)", "[USERS] alice,bob", "[PRESENCE] +carol"),
+                drain(queue));
+    }
+
+    @Test
+    void binaryPresenceIsMergedToo() {
+        OutboundQueue queue = new OutboundQueue(2, OutboundQueue.OverflowPolicy.COALESCE);
+        queue.useBinaryFraming();
+        byte[] other = "other".getBytes(StandardCharsets.UTF_8);
+        queue.offer(BinaryProtocol.roomFrame(other, BinaryProtocol.fromLine(line("[PRESENCE] +zoe"))));
+        queue.offer(BinaryProtocol.fromLine(line("#1 a")));
+        queue.offer(BinaryProtocol.roomFrame(other, BinaryProtocol.fromLine(line("[PRESENCE] +amy"))));
+        assertEquals(2, queue.size());
+        byte[] merged = queue.poll();
+        assertArrayEquals(BinaryProtocol.roomFrame(other, BinaryProtocol.fromLine(line("[PRESENCE] +zoe +amy"))), merged);
+    }
+
+    @Test
+    void largeRepliesAreCutToTheRoomLeft() throws IOException {
+        ChatRoom room = ChatRoomManager.getInstance().getOrCreateRoom("bounded-replies");
+        for (int i = 0; i < 200; i++) room.broadcast(new Message("bob", null, "m" + i, false));
+        ClientHandler client = new ClientHandler(null, "client");
+        command(client, "JOIN bounded-replies alice");
+        // the replay fills what is left; SESSION and the presence lines are single lines on top
+        assertTrue(client.getOutbound().size() <= CAPACITY + 3, "queued " + client.getOutbound().size());
+        drain(client.getOutbound());
+
+        command(client, "HISTORY 100");
+        assertTrue(client.getOutbound().size() <= CAPACITY);
+        List<String> page = drain(client.getOutbound());
+        String hint = page.get(page.size() - 1);
+        assertEquals("=== History end ===", page.get(page.size() - 2));
+        // the rest is one cursor away
+        long first = Long.parseLong(page.get(1).substring(1, page.get(1).indexOf(' ')));
+        assertEquals("[SYSTEM] " + (first - 1) + " older messages, use HISTORY BEFORE " + first + " <n>", hint);
+        assertEquals(200, Long.parseLong(page.get(page.size() - 3).substring(1, page.get(page.size() - 3).indexOf(' '))));
+
+        // pipelined without reading: the queue stays at capacity plus one reply's framing
+        for (int i = 0; i < 5; i++) command(client, "HISTORY 100");
+        assertTrue(client.getOutbound().size() <= CAPACITY + 3, "queued " + client.getOutbound().size());
+    }
+}
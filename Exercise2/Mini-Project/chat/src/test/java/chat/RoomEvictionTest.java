@@ -0,0 +1,81 @@
+package chat;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class RoomEvictionTest {
+
+    @TempDir
+    static Path spillDir;
+
+    @BeforeAll
+    static void startEviction() throws IOException {
+        ServerConfig.install(ServerConfig.parse(new String[0]));
+        // a long timeout keeps the background evictor out of the way; the test calls evictIdle(0)
+        ChatRoomManager.getInstance().startEviction(TimeUnit.DAYS.toMillis(1), RoomSpill.open(spillDir.toString()));
+    }
+
+    @Test
+    void evictedRoomComesBackWithItsHistory() throws IOException {
+        ChatRoomManager mgr = ChatRoomManager.getInstance();
+        ChatRoom room = mgr.getOrCreateRoom("evict-me");
+        room.broadcast(new Message("alice", null, "before eviction", false));
+        room.sendPrivate("alice", "bob", "secret");
+
+        assertTrue(mgr.evictIdle(0) >= 1);
+        assertTrue(room.isEvicted());
+        assertFalse(room.addUser("carol", new ClientHandler(null, "carol")), "an evicted room refuses joins");
+
+        ChatRoom back = mgr.getOrCreateRoom("evict-me");
+        assertNotSame(room, back);
+        List<String> texts = new ArrayList<>();
+        for (Message m : back.getHistory()) texts.add(m.getText());
+        assertEquals(List.of("before eviction"), texts);
+        assertEquals(1, back.getPrivateHistory("alice", "bob").size());
+        assertFalse(Files.exists(spillDir.resolve("evict-me.room")), "a rehydrated spill is dropped");
+    }
+
+    @Test
+    void occupiedRoomStays() {
+        ChatRoomManager mgr = ChatRoomManager.getInstance();
+        ChatRoom room = mgr.getOrCreateRoom("keep-me");
+        assertTrue(room.addUser("alice", new ClientHandler(null, "alice")));
+        mgr.evictIdle(0);
+        assertFalse(room.isEvicted());
+        assertTrue(mgr.getRoom("keep-me") == room);
+    }
+
+    @Test
+    void temporarySpillIsDeletedOnClose() throws IOException {
+        RoomSpill spill = RoomSpill.open(null);
+        ChatRoom room = new ChatRoom("temp-spill");
+        room.broadcast(new Message("alice", null, "hi", false));
+        spill.write(room);
+        Path dir = findSpillDir();
+        spill.close();
+        assertFalse(dir != null && Files.exists(dir));
+    }
+
+    private static Path findSpillDir() throws IOException {
+        Path tmp = Path.of(System.getProperty("java.io.tmpdir"));
+        Path newest = null;
+        try (var dirs = Files.newDirectoryStream(tmp, "chat-spill-*")) {
+            for (Path d : dirs) {
+                if (newest == null || Files.getLastModifiedTime(d).compareTo(Files.getLastModifiedTime(newest)) > 0) newest = d;
+            }
+        }
+        return newest;
+    }
+}